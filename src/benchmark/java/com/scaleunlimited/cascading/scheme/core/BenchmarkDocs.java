@@ -0,0 +1,151 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.File;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+
+/**
+ * Synthetic documents for the JMH benchmarks, built from the test core's dynamic fields so
+ * that the number and type of fields can be varied. Every document also has the (required)
+ * id field.
+ */
+public class BenchmarkDocs {
+    
+    public static final String SOLR_CORE_DIR = "src/test/resources/solr-home-4.1/collection1";
+    public static final String WORKING_DIR = "build/test/benchmarks/";
+    
+    public enum FieldType {
+        STRING("_s"),
+        TEXT("_t"),
+        INT("_i"),
+        FLOAT("_f"),
+        DATE("_dt"),
+        BOOLEAN("_b"),
+        MULTI_STRING("_ss");
+        
+        private String _suffix;
+        
+        private FieldType(String suffix) {
+            _suffix = suffix;
+        }
+        
+        public String getSuffix() {
+            return _suffix;
+        }
+    }
+    
+    private static final String[] WORDS = {
+        "solr", "lucene", "cascading", "hadoop", "index", "search", "document", "field",
+        "schema", "shard", "segment", "merge", "token", "analyzer", "query", "score"
+    };
+    
+    // Number of different documents we cycle through.
+    private static final int NUM_TUPLES = 1024;
+    
+    private Fields _fields;
+    private Tuple[] _tuples;
+    private int _nextTuple;
+    
+    /**
+     * @param fieldType type of all of the fields other than id
+     * @param numFields number of fields other than id
+     * @param valueSize number of words in string & text values, or values in multi-valued fields
+     */
+    public BenchmarkDocs(FieldType fieldType, int numFields, int valueSize) {
+        Comparable<?>[] fieldNames = new Comparable<?>[numFields + 1];
+        fieldNames[0] = "id";
+        for (int i = 0; i < numFields; i++) {
+            fieldNames[i + 1] = "field" + i + fieldType.getSuffix();
+        }
+        
+        _fields = new Fields(fieldNames);
+        
+        Random rand = new Random(1L);
+        _tuples = new Tuple[NUM_TUPLES];
+        for (int i = 0; i < NUM_TUPLES; i++) {
+            Tuple tuple = new Tuple(Integer.toString(i));
+            for (int j = 0; j < numFields; j++) {
+                tuple.add(makeValue(rand, fieldType, valueSize));
+            }
+            
+            _tuples[i] = tuple;
+        }
+        
+        _nextTuple = 0;
+    }
+    
+    public Fields getFields() {
+        return _fields;
+    }
+    
+    /**
+     * @return the next document, cycling through a fixed set of them.
+     */
+    public Tuple next() {
+        Tuple result = _tuples[_nextTuple];
+        _nextTuple = (_nextTuple + 1) % _tuples.length;
+        return result;
+    }
+    
+    /**
+     * @param name
+     * @return a new, empty working directory for the benchmark.
+     */
+    public static File makeWorkingDir(String name) throws Exception {
+        File result = new File(WORKING_DIR, name);
+        FileUtils.deleteDirectory(result);
+        result.mkdirs();
+        return result;
+    }
+    
+    public static SolrWriter makeWriter(Fields fields, File dataDir, SolrWriterOptions options) throws Exception {
+        return new SolrWriter(new KeepAliveHook() {
+            
+            @Override
+            public void keepAlive() {
+            }
+        }, fields, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, dataDir.getAbsolutePath(), new File(SOLR_CORE_DIR), options) { };
+    }
+    
+    private static Object makeValue(Random rand, FieldType fieldType, int valueSize) {
+        switch (fieldType) {
+            case STRING:
+            case TEXT:
+                return makeText(rand, valueSize);
+            case INT:
+                return rand.nextInt();
+            case FLOAT:
+                return rand.nextFloat() * 1000.0f;
+            case DATE:
+                return System.currentTimeMillis() - rand.nextInt(Integer.MAX_VALUE);
+            case BOOLEAN:
+                return rand.nextBoolean();
+            case MULTI_STRING:
+                Tuple result = new Tuple();
+                for (int i = 0; i < valueSize; i++) {
+                    result.add(WORDS[rand.nextInt(WORDS.length)]);
+                }
+                
+                return result;
+            default:
+                throw new IllegalArgumentException("Unknown field type: " + fieldType);
+        }
+    }
+    
+    private static String makeText(Random rand, int numWords) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < numWords; i++) {
+            if (i > 0) {
+                result.append(' ');
+            }
+            
+            result.append(WORDS[rand.nextInt(WORDS.length)]);
+        }
+        
+        return result.toString();
+    }
+}
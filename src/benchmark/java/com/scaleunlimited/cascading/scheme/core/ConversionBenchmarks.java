@@ -0,0 +1,98 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.schema.IndexSchema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cascading.tuple.Tuple;
+
+import com.scaleunlimited.cascading.scheme.core.BenchmarkDocs.FieldType;
+import com.scaleunlimited.cascading.scheme.core.DocumentBatch.ReusableDocument;
+
+/**
+ * Cost of turning a tuple into a SolrInputDocument, which is what SolrWriter.add() does on
+ * the calling thread before any indexing happens: convert each value for its Solr field
+ * type, and add it to a recycled document in the current batch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConversionBenchmarks {
+    
+    private static final int DOCS_PER_BATCH = 1000;
+    
+    @Param({"STRING", "TEXT", "INT", "FLOAT", "DATE", "BOOLEAN", "MULTI_STRING"})
+    public FieldType fieldType;
+    
+    @Param({"1", "10", "50"})
+    public int numFields;
+    
+    @Param({"1", "10", "100"})
+    public int valueSize;
+    
+    private BenchmarkDocs _docs;
+    private FieldConverter[] _converters;
+    private DocumentBatch _batch;
+    
+    @Setup
+    public void setup() throws Exception {
+        _docs = new BenchmarkDocs(fieldType, numFields, valueSize);
+        
+        IndexSchema schema = SolrSchemeUtil.getSchema(new File(BenchmarkDocs.SOLR_CORE_DIR));
+        String[] fieldNames = new String[_docs.getFields().size()];
+        _converters = new FieldConverter[fieldNames.length];
+        for (int i = 0; i < fieldNames.length; i++) {
+            fieldNames[i] = _docs.getFields().get(i).toString();
+            _converters[i] = FieldConverter.forField(schema.getFieldOrNull(fieldNames[i]));
+        }
+        
+        _batch = new DocumentBatch(fieldNames, DOCS_PER_BATCH);
+    }
+    
+    @Benchmark
+    public ReusableDocument convertTuple() {
+        if (_batch.size() == DOCS_PER_BATCH) {
+            _batch.clear();
+        }
+        
+        Tuple value = _docs.next();
+        ReusableDocument doc = _batch.newDocument();
+        long docSize = 0;
+        
+        for (int i = 0; i < _converters.length; i++) {
+            Object fieldValue = value.getObject(i);
+            if (fieldValue instanceof Tuple) {
+                Tuple list = (Tuple)fieldValue;
+                for (int j = 0; j < list.size(); j++) {
+                    docSize += addValue(doc, i, list.getObject(j));
+                }
+            } else {
+                docSize += addValue(doc, i, fieldValue);
+            }
+        }
+        
+        _batch.addEstimatedSize(docSize);
+        return doc;
+    }
+    
+    private int addValue(ReusableDocument doc, int fieldIndex, Object value) {
+        Object convertedValue = _converters[fieldIndex].convert(value);
+        doc.addValue(fieldIndex, convertedValue);
+        return FieldConverter.estimateSize(convertedValue);
+    }
+}
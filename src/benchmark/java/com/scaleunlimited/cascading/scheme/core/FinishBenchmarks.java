@@ -0,0 +1,78 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.scaleunlimited.cascading.scheme.core.BenchmarkDocs.FieldType;
+
+/**
+ * Time for SolrWriter.cleanup() to commit and then merge (optimize) the index down to
+ * maxSegments. Each invocation indexes numDocs documents first (not measured), with a
+ * small RAM buffer so that there are plenty of segments to merge.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class FinishBenchmarks {
+    
+    private static final double RAM_BUFFER_SIZE_MB = 4.0;
+    
+    @Param({"false", "true"})
+    public boolean luceneIndexing;
+    
+    @Param({"1", "5", "10"})
+    public int maxSegments;
+    
+    @Param({"TEXT", "MULTI_STRING"})
+    public FieldType fieldType;
+    
+    @Param({"10"})
+    public int numFields;
+    
+    @Param({"10"})
+    public int valueSize;
+    
+    @Param({"50000"})
+    public int numDocs;
+    
+    private BenchmarkDocs _docs;
+    private SolrWriter _writer;
+    
+    @Setup(Level.Trial)
+    public void setupDocs() {
+        _docs = new BenchmarkDocs(fieldType, numFields, valueSize);
+    }
+    
+    @Setup(Level.Invocation)
+    public void buildIndex() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setLuceneIndexing(luceneIndexing)
+            .setRamBufferSizeMB(RAM_BUFFER_SIZE_MB)
+            .setMaxSegments(maxSegments);
+        
+        _writer = BenchmarkDocs.makeWriter(_docs.getFields(), BenchmarkDocs.makeWorkingDir("FinishBenchmarks"), options);
+        for (int i = 0; i < numDocs; i++) {
+            _writer.add(_docs.next());
+        }
+    }
+    
+    @Benchmark
+    public void commitAndMerge() throws Exception {
+        _writer.cleanup();
+    }
+}
@@ -0,0 +1,87 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.scaleunlimited.cascading.scheme.core.BenchmarkDocs.FieldType;
+
+/**
+ * Throughput of SolrWriter.add(), including the batch flushes that it triggers, for each
+ * of the ways of getting documents into the index. With SOLR_SERVER each flush goes through
+ * a BinaryUpdateRequest to the embedded server, SOLR_DIRECT goes straight to the core's
+ * update processor chain, and LUCENE skips Solr entirely.
+ *
+ * A new writer is created for each iteration, and its commit isn't part of the measurement.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class IndexingBenchmarks {
+    
+    public enum WriterMode {
+        SOLR_SERVER,
+        SOLR_DIRECT,
+        LUCENE
+    }
+    
+    @Param({"SOLR_SERVER", "SOLR_DIRECT", "LUCENE"})
+    public WriterMode writerMode;
+    
+    @Param({"STRING", "TEXT", "INT", "MULTI_STRING"})
+    public FieldType fieldType;
+    
+    @Param({"5", "20"})
+    public int numFields;
+    
+    @Param({"1", "10", "100"})
+    public int valueSize;
+    
+    @Param({"100", "1000"})
+    public int maxDocsPerBatch;
+    
+    private BenchmarkDocs _docs;
+    private SolrWriter _writer;
+    
+    @Setup(Level.Trial)
+    public void setupDocs() {
+        _docs = new BenchmarkDocs(fieldType, numFields, valueSize);
+    }
+    
+    @Setup(Level.Iteration)
+    public void setupWriter() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setMaxDocsPerBatch(maxDocsPerBatch)
+            .setDirectUpdates(writerMode == WriterMode.SOLR_DIRECT)
+            .setLuceneIndexing(writerMode == WriterMode.LUCENE)
+            .setFinalizer(IndexFinalizer.none());
+        
+        _writer = BenchmarkDocs.makeWriter(_docs.getFields(), BenchmarkDocs.makeWorkingDir("IndexingBenchmarks"), options);
+    }
+    
+    @TearDown(Level.Iteration)
+    public void cleanupWriter() throws Exception {
+        _writer.cleanup();
+        _writer = null;
+    }
+    
+    @Benchmark
+    public void addDocument() throws Exception {
+        _writer.add(_docs.next());
+    }
+}
@@ -0,0 +1,87 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cascading.tuple.Fields;
+
+/**
+ * Startup cost of SolrSchemeUtil.validate(), which runs when every SolrScheme is constructed
+ * and again in each task. The uncached case changes the modification time of schema.xml
+ * (in a copy of the test core) before each call, so that the config and schema get parsed
+ * again; the cached case is what repeated calls in the same JVM cost.
+ */
+@Fork(1)
+public class ValidateBenchmarks {
+    
+    // validate() only knows about static fields, so we can't use the dynamic fields here.
+    private static final Fields SCHEME_FIELDS = new Fields("id", "name", "price", "cat", "inStock", "features");
+    
+    @State(Scope.Thread)
+    public static class ModifiedCore {
+        
+        private File _coreDir;
+        private File _schemaFile;
+        private long _lastModified;
+        
+        @Setup(Level.Trial)
+        public void copyCore() throws Exception {
+            _coreDir = new File(BenchmarkDocs.makeWorkingDir("ValidateBenchmarks"), "collection1");
+            FileUtils.copyDirectory(new File(BenchmarkDocs.SOLR_CORE_DIR), _coreDir);
+            _schemaFile = new File(_coreDir, "conf/schema.xml");
+            _lastModified = _schemaFile.lastModified();
+        }
+        
+        @Setup(Level.Invocation)
+        public void touchSchema() {
+            // File times can have one second resolution, so always bump by at least that much.
+            _lastModified += 1000L;
+            _schemaFile.setLastModified(_lastModified);
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class CachedCore {
+        
+        private File _coreDir;
+        
+        @Setup(Level.Trial)
+        public void loadCore() throws Exception {
+            _coreDir = new File(BenchmarkDocs.SOLR_CORE_DIR);
+            
+            // Load it once, so the benchmark never pays for the parse.
+            SolrSchemeUtil.validate(_coreDir, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, SCHEME_FIELDS);
+        }
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public void validateUncached(ModifiedCore core) throws Exception {
+        SolrSchemeUtil.validate(core._coreDir, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, SCHEME_FIELDS);
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public void validateCached(CachedCore core) throws Exception {
+        SolrSchemeUtil.validate(core._coreDir, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, SCHEME_FIELDS);
+    }
+}
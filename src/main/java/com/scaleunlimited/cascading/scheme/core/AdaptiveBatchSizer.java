@@ -0,0 +1,75 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunes the number of documents per batch while indexing. Batches that Solr handles
+ * quickly are grown, so per-request overhead gets amortized over more documents, while
+ * slow batches or a shortage of free heap space shrink the batch size.
+ *
+ * The batch size is read by the thread calling SolrWriter.add(), and updated by the
+ * thread(s) doing the indexing.
+ */
+class AdaptiveBatchSizer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+    
+    public static final int MIN_DOCS_PER_BATCH = 10;
+    
+    // We never grow the batch size beyond this multiple of the starting size.
+    private static final int MAX_GROWTH_FACTOR = 8;
+    
+    // Batches that take less time than this to index are candidates for growing, and
+    // batches that take more than the slow threshold get shrunk.
+    private static final long FAST_BATCH_MS = 250;
+    private static final long SLOW_BATCH_MS = 2000;
+    
+    // If less than this fraction of the max heap is free, cut the batch size in half.
+    private static final double MIN_FREE_HEAP_RATIO = 0.25;
+    
+    private int _maxDocsPerBatch;
+    private volatile int _docsPerBatch;
+    
+    public AdaptiveBatchSizer(int initialDocsPerBatch) {
+        _docsPerBatch = Math.max(MIN_DOCS_PER_BATCH, initialDocsPerBatch);
+        _maxDocsPerBatch = _docsPerBatch * MAX_GROWTH_FACTOR;
+    }
+    
+    public int getDocsPerBatch() {
+        return _docsPerBatch;
+    }
+    
+    /**
+     * Update the batch size, based on how long it took to index a batch.
+     *
+     * @param numDocs number of documents in the batch
+     * @param elapsedMS time spent indexing the batch
+     */
+    public synchronized void batchIndexed(int numDocs, long elapsedMS) {
+        int docsPerBatch = _docsPerBatch;
+        int newDocsPerBatch = docsPerBatch;
+        
+        if (getFreeHeapRatio() < MIN_FREE_HEAP_RATIO) {
+            newDocsPerBatch = docsPerBatch / 2;
+        } else if (elapsedMS > SLOW_BATCH_MS) {
+            newDocsPerBatch = (docsPerBatch * 3) / 4;
+        } else if ((elapsedMS < FAST_BATCH_MS) && (numDocs >= docsPerBatch)) {
+            // Only grow when the batch was full, versus cut short by the byte limit or
+            // the final flush, since otherwise a bigger limit wouldn't have mattered.
+            newDocsPerBatch = docsPerBatch + Math.max(1, docsPerBatch / 4);
+        }
+        
+        newDocsPerBatch = Math.max(MIN_DOCS_PER_BATCH, Math.min(_maxDocsPerBatch, newDocsPerBatch));
+        if (newDocsPerBatch != docsPerBatch) {
+            LOGGER.debug(String.format("Changing batch size from %d to %d docs (last batch of %d docs took %dms)", docsPerBatch, newDocsPerBatch, numDocs, elapsedMS));
+            _docsPerBatch = newDocsPerBatch;
+        }
+    }
+    
+    protected double getFreeHeapRatio() {
+        Runtime runtime = Runtime.getRuntime();
+        long maxMemory = runtime.maxMemory();
+        long usedMemory = runtime.totalMemory() - runtime.freeMemory();
+        return (double)(maxMemory - usedMemory) / maxMemory;
+    }
+}
@@ -0,0 +1,142 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.solr.core.SolrConfig;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Derives an indexing-only version of a core's solrconfig.xml, for building an index
+ * in one shot. Everything that only matters for a live server (transaction log, auto
+ * commits, searcher caches and warming) is removed, the RAM buffer is increased so we
+ * flush bigger segments, and a plain (non-NRT-caching) directory is used. The schema and
+ * analysis chains aren't touched, so the resulting index is the same.
+ *
+ * The result is written to a separate file, which the core loads via the config
+ * attribute in solr.xml, so the core directory itself is never modified.
+ */
+class BulkLoadConfig {
+    
+    private static final String[] CACHE_ELEMENTS = {
+        "filterCache",
+        "queryResultCache",
+        "documentCache",
+        "fieldValueCache"
+    };
+    
+    /**
+     * Write the indexing-only version of <solrCoreDir>'s solrconfig.xml to <configFile>.
+     *
+     * @param solrCoreDir directory containing the core's conf subdir
+     * @param configFile where to write the result
+     * @param ramBufferSizeMB size of the index writer's RAM buffer
+     * @param hdfsDirectory true if the index is being written via a Hadoop FileSystem
+     * @throws IOException
+     */
+    public static void write(File solrCoreDir, File configFile, double ramBufferSizeMB, boolean hdfsDirectory) throws IOException {
+        File sourceFile = new File(solrCoreDir, "conf/" + SolrConfig.DEFAULT_CONF_FILE);
+        
+        try {
+            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            dbf.setNamespaceAware(true);
+            dbf.setXIncludeAware(true);
+            DocumentBuilder db = dbf.newDocumentBuilder();
+            Document doc = db.parse(sourceFile);
+            Element config = doc.getDocumentElement();
+            
+            Element updateHandler = getChild(config, "updateHandler");
+            if (updateHandler != null) {
+                removeChildren(updateHandler, "updateLog");
+                removeChildren(updateHandler, "autoCommit");
+                removeChildren(updateHandler, "autoSoftCommit");
+            }
+            
+            Element query = getChild(config, "query");
+            if (query != null) {
+                for (String cacheElement : CACHE_ELEMENTS) {
+                    removeChildren(query, cacheElement);
+                }
+                
+                // newSearcher and firstSearcher warming queries.
+                removeChildren(query, "listener");
+            }
+            
+            Element indexConfig = getChild(config, "indexConfig");
+            if (indexConfig == null) {
+                indexConfig = doc.createElement("indexConfig");
+                config.appendChild(indexConfig);
+            }
+            
+            removeChildren(indexConfig, "maxBufferedDocs");
+            setChild(indexConfig, "ramBufferSizeMB", Double.toString(ramBufferSizeMB));
+            setChild(indexConfig, "useCompoundFile", "false");
+            
+            Element directoryFactory = getChild(config, "directoryFactory");
+            if (directoryFactory == null) {
+                directoryFactory = doc.createElement("directoryFactory");
+                directoryFactory.setAttribute("name", "DirectoryFactory");
+                config.appendChild(directoryFactory);
+            }
+            
+            while (directoryFactory.hasChildNodes()) {
+                directoryFactory.removeChild(directoryFactory.getFirstChild());
+            }
+            
+            if (hdfsDirectory) {
+                directoryFactory.setAttribute("class", HadoopDirectoryFactory.class.getName());
+                setChild(indexConfig, "lockType", "hdfs");
+            } else {
+                directoryFactory.setAttribute("class", "solr.MMapDirectoryFactory");
+            }
+            
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            transformer.transform(new DOMSource(doc), new StreamResult(configFile));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Can't create bulk load config from " + sourceFile, e);
+        }
+    }
+    
+    private static Element getChild(Element parent, String name) {
+        NodeList children = parent.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            if ((child.getNodeType() == Node.ELEMENT_NODE) && child.getNodeName().equals(name)) {
+                return (Element)child;
+            }
+        }
+        
+        return null;
+    }
+    
+    private static void removeChildren(Element parent, String name) {
+        Element child;
+        while ((child = getChild(parent, name)) != null) {
+            parent.removeChild(child);
+        }
+    }
+    
+    private static void setChild(Element parent, String name, String value) {
+        Element child = getChild(parent, name);
+        if (child == null) {
+            child = parent.getOwnerDocument().createElement(name);
+            parent.appendChild(child);
+        }
+        
+        child.setTextContent(value);
+    }
+}
@@ -0,0 +1,19 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+/**
+ * What SolrWriter does with a document that has the same uniqueKey as one it has
+ * already indexed (see SolrWriterOptions.setDedupMode()).
+ */
+public enum DedupMode {
+    
+    // Index every document. Since we don't ask Solr to check for an existing document
+    // (overwrite=false, for speed), duplicate keys wind up as duplicate documents.
+    NONE,
+    
+    // Keep the first document with each key, and drop the rest before they're indexed.
+    DROP,
+    
+    // Keep the last document with each key. Only the documents that replace an earlier
+    // one pay for the delete-by-term.
+    REPLACE
+}
@@ -0,0 +1,185 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+/**
+ * A batch of documents that gets recycled after it's been indexed, so that the
+ * SolrInputDocument (and its map) plus the SolrInputField for every sink field are
+ * only allocated once per slot in the batch, versus once per tuple.
+ *
+ * Not thread-safe - a batch is only ever owned by one thread at a time.
+ */
+class DocumentBatch {
+    
+    private String[] _fieldNames;
+    private ReusableDocument[] _docs;
+    private int _numDocs;
+    private long _estimatedSize;
+    private int _numReplacements;
+    
+    public DocumentBatch(String[] fieldNames, int maxDocs) {
+        _fieldNames = fieldNames;
+        _docs = new ReusableDocument[maxDocs];
+        _numDocs = 0;
+        _estimatedSize = 0;
+        _numReplacements = 0;
+    }
+    
+    /**
+     * @return next (empty) document in the batch.
+     */
+    public ReusableDocument newDocument() {
+        if (_numDocs == _docs.length) {
+            _docs = Arrays.copyOf(_docs, Math.max(1, _docs.length * 2));
+        }
+        
+        ReusableDocument result = _docs[_numDocs];
+        if (result == null) {
+            result = new ReusableDocument(_fieldNames);
+            _docs[_numDocs] = result;
+        }
+        
+        _numDocs += 1;
+        return result;
+    }
+    
+    /**
+     * Drop the document most recently returned by newDocument(), e.g. because we
+     * couldn't convert one of its values.
+     */
+    public void discardLastDocument() {
+        if (_numDocs > 0) {
+            _numDocs -= 1;
+            if (_docs[_numDocs].isReplacing()) {
+                _numReplacements -= 1;
+            }
+            
+            _docs[_numDocs].reset();
+        }
+    }
+    
+    /**
+     * Flag the document most recently returned by newDocument() as replacing any earlier
+     * document with the same uniqueKey, which means it has to be indexed with overwrite=true.
+     */
+    public void markLastDocumentReplacing() {
+        if ((_numDocs > 0) && !_docs[_numDocs - 1].isReplacing()) {
+            _docs[_numDocs - 1].setReplacing(true);
+            _numReplacements += 1;
+        }
+    }
+    
+    /**
+     * @return number of documents in the batch that replace earlier ones.
+     */
+    public int getNumReplacements() {
+        return _numReplacements;
+    }
+    
+    public int size() {
+        return _numDocs;
+    }
+    
+    /**
+     * Record the estimated size of the document most recently returned by newDocument(),
+     * once all of its values have been added.
+     * 
+     * @param docSize estimated size in bytes
+     */
+    public void addEstimatedSize(long docSize) {
+        _estimatedSize += docSize;
+    }
+    
+    /**
+     * @return estimated heap space used by the values of all documents in the batch.
+     */
+    public long getEstimatedSize() {
+        return _estimatedSize;
+    }
+    
+    public List<SolrInputDocument> getDocuments() {
+        return Arrays.<SolrInputDocument>asList(_docs).subList(0, _numDocs);
+    }
+    
+    /**
+     * Empty out the batch, so it can be used again. We reset the documents here
+     * versus when they get reused, so that we don't hang on to field values while
+     * the batch is idle.
+     */
+    public void clear() {
+        for (int i = 0; i < _numDocs; i++) {
+            _docs[i].reset();
+        }
+        
+        _numDocs = 0;
+        _estimatedSize = 0;
+        _numReplacements = 0;
+    }
+    
+    /**
+     * SolrInputDocument that keeps the SolrInputField for each sink field around
+     * between uses.
+     */
+    @SuppressWarnings("serial")
+    public static class ReusableDocument extends SolrInputDocument {
+        
+        private String[] _fieldNames;
+        private SolrInputField[] _fields;
+        private boolean _replacing;
+        
+        public ReusableDocument(String[] fieldNames) {
+            super();
+            
+            _fieldNames = fieldNames;
+            _fields = new SolrInputField[fieldNames.length];
+            _replacing = false;
+        }
+        
+        /**
+         * Add <value> to the sink field at <fieldIndex>. Multiple calls for the same
+         * field create a multi-valued field.
+         *
+         * @param fieldIndex position of the field in the sink fields
+         * @param value non-null value
+         */
+        public void addValue(int fieldIndex, Object value) {
+            SolrInputField field = _fields[fieldIndex];
+            if (field == null) {
+                field = new SolrInputField(_fieldNames[fieldIndex]);
+                _fields[fieldIndex] = field;
+            }
+            
+            if (field.getValue() == null) {
+                field.setValue(value, 1.0f);
+                put(_fieldNames[fieldIndex], field);
+            } else {
+                field.addValue(value, 1.0f);
+            }
+        }
+        
+        public boolean isReplacing() {
+            return _replacing;
+        }
+        
+        public void setReplacing(boolean replacing) {
+            _replacing = replacing;
+        }
+        
+        public void reset() {
+            // This also gets rid of any fields that Solr added, e.g. _version_
+            clear();
+            setDocumentBoost(1.0f);
+            _replacing = false;
+            
+            for (SolrInputField field : _fields) {
+                if (field != null) {
+                    field.setValue(null, 1.0f);
+                }
+            }
+        }
+    }
+}
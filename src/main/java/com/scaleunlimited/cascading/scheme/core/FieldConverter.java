@@ -0,0 +1,350 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.io.VLongWritable;
+import org.apache.solr.schema.BinaryField;
+import org.apache.solr.schema.BoolField;
+import org.apache.solr.schema.DateField;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TrieDateField;
+import org.apache.solr.schema.TrieField;
+
+/**
+ * Converts tuple values into what the Solr field type wants, without going through
+ * a String when the field type can take the native value. Numbers, dates and booleans
+ * are passed through as-is (after unwrapping Hadoop Writables), binary data is passed
+ * as a byte[] or a ByteBuffer view, and everything else uses toString().
+ *
+ * Binary values are copied by default, since documents are batched up before being
+ * indexed, and the caller is free to reuse the array (or BytesWritable) for the next
+ * tuple. They only share the caller's array when each document is indexed before the
+ * next tuple is converted (see forField(field, copyBinary)).
+ *
+ * Numbers for int and long fields have to be whole numbers that fit the field, since
+ * Solr would otherwise silently truncate them (e.g. 3.7 would be indexed as 3).
+ *
+ * Converters are selected once per sink field via forField(), versus checking the
+ * Solr field type for every value.
+ */
+public abstract class FieldConverter {
+    
+    private static final FieldConverter TEXT_CONVERTER = new TextConverter();
+    private static final FieldConverter NUMBER_CONVERTER = new NumberConverter();
+    private static final FieldConverter INT_CONVERTER = new NumberConverter(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    private static final FieldConverter LONG_CONVERTER = new NumberConverter(Long.MIN_VALUE, Long.MAX_VALUE);
+    private static final FieldConverter DATE_CONVERTER = new DateConverter();
+    private static final FieldConverter BOOLEAN_CONVERTER = new BooleanConverter();
+    private static final FieldConverter BINARY_CONVERTER = new BinaryConverter(false);
+    private static final FieldConverter COPYING_BINARY_CONVERTER = new BinaryConverter(true);
+    
+    /**
+     * Return the value that we should add to the Solr document.
+     *
+     * @param value non-null tuple value
+     * @return converted value
+     * @throws IllegalArgumentException if the value can't be converted
+     */
+    public abstract Object convert(Object value);
+    
+    /**
+     * @param valueClass type of tuple values (as declared by the sink Fields)
+     * @return true if values of this type can be converted.
+     */
+    public abstract boolean canConvert(Class<?> valueClass);
+    
+    /**
+     * Pick the converter to use for values of <field>.
+     *
+     * @param field Solr field (null if it's not in the schema, e.g. not-yet-resolved dynamic field)
+     * @return the appropriate converter
+     */
+    public static FieldConverter forField(SchemaField field) {
+        return forField(field, true);
+    }
+    
+    /**
+     * Pick the converter to use for values of <field>.
+     *
+     * @param field Solr field (null if it's not in the schema, e.g. not-yet-resolved dynamic field)
+     * @param copyBinary true if binary values have to be copied, because the document
+     *        will be used after the tuple value could have been reused (e.g. it's in a
+     *        batch with other documents, or is indexed by another thread).
+     * @return the appropriate converter
+     */
+    public static FieldConverter forField(SchemaField field, boolean copyBinary) {
+        if (field == null) {
+            return TEXT_CONVERTER;
+        }
+        
+        FieldType fieldType = field.getType();
+        if ((fieldType instanceof TrieDateField) || (fieldType instanceof DateField)) {
+            return DATE_CONVERTER;
+        } else if (fieldType instanceof TrieField) {
+            // All non-date Trie fields (int, long, float, double) take a Number.
+            switch (((TrieField)fieldType).getType()) {
+                case DATE:
+                    return DATE_CONVERTER;
+                case INTEGER:
+                    return INT_CONVERTER;
+                case LONG:
+                    return LONG_CONVERTER;
+                default:
+                    return NUMBER_CONVERTER;
+            }
+        } else if (fieldType instanceof BoolField) {
+            return BOOLEAN_CONVERTER;
+        } else if (fieldType instanceof BinaryField) {
+            return copyBinary ? COPYING_BINARY_CONVERTER : BINARY_CONVERTER;
+        } else {
+            return TEXT_CONVERTER;
+        }
+    }
+    
+    /**
+     * Turn a Hadoop Writable holding a primitive or text into the equivalent Java object.
+     *
+     * @param value
+     * @return the unwrapped value, or <value> if it's not one of the Writables we handle.
+     */
+    protected static Object unwrap(Object value) {
+        if (value instanceof IntWritable) {
+            return ((IntWritable)value).get();
+        } else if (value instanceof LongWritable) {
+            return ((LongWritable)value).get();
+        } else if (value instanceof FloatWritable) {
+            return ((FloatWritable)value).get();
+        } else if (value instanceof DoubleWritable) {
+            return ((DoubleWritable)value).get();
+        } else if (value instanceof BooleanWritable) {
+            return ((BooleanWritable)value).get();
+        } else if (value instanceof VIntWritable) {
+            return ((VIntWritable)value).get();
+        } else if (value instanceof VLongWritable) {
+            return ((VLongWritable)value).get();
+        } else if (value instanceof Text) {
+            return value.toString();
+        } else {
+            return value;
+        }
+    }
+    
+    /**
+     * Rough estimate of the heap space used by a converted value, for limiting the
+     * size of a batch of documents. We don't try to be exact, just to get the big
+     * values (long text, binary data) right.
+     *
+     * @param value converted value
+     * @return estimated size in bytes.
+     */
+    public static int estimateSize(Object value) {
+        if (value instanceof String) {
+            return 40 + (2 * ((String)value).length());
+        } else if (value instanceof byte[]) {
+            return 16 + ((byte[])value).length;
+        } else if (value instanceof ByteBuffer) {
+            return 64 + ((ByteBuffer)value).remaining();
+        } else {
+            return 16;
+        }
+    }
+    
+    protected static boolean isBinary(Class<?> valueClass) {
+        return (valueClass == byte[].class) || BytesWritable.class.isAssignableFrom(valueClass);
+    }
+    
+    private static class TextConverter extends FieldConverter {
+        
+        @Override
+        public Object convert(Object value) {
+            if (value instanceof String) {
+                return value;
+            } else if ((value instanceof byte[]) || (value instanceof BytesWritable)) {
+                throw new IllegalArgumentException("Can't index binary data in a non-binary field");
+            } else {
+                return value.toString();
+            }
+        }
+        
+        @Override
+        public boolean canConvert(Class<?> valueClass) {
+            return !isBinary(valueClass);
+        }
+    }
+    
+    private static class NumberConverter extends FieldConverter {
+        
+        private boolean _integral;
+        private long _minValue;
+        private long _maxValue;
+        
+        /**
+         * Converter for float and double fields, which take any number.
+         */
+        public NumberConverter() {
+            _integral = false;
+        }
+        
+        /**
+         * Converter for int and long fields, which only take whole numbers between
+         * <minValue> and <maxValue>.
+         */
+        public NumberConverter(long minValue, long maxValue) {
+            _integral = true;
+            _minValue = minValue;
+            _maxValue = maxValue;
+        }
+        
+        @Override
+        public Object convert(Object value) {
+            Object unwrapped = (value instanceof Number) ? value : unwrap(value);
+            if (unwrapped instanceof Number) {
+                if (_integral) {
+                    checkIntegral((Number)unwrapped);
+                }
+                
+                return unwrapped;
+            } else if ((value instanceof byte[]) || (value instanceof BytesWritable)) {
+                throw new IllegalArgumentException("Can't index binary data in a numeric field");
+            } else if (value instanceof Date) {
+                throw new IllegalArgumentException("Can't index a date in a numeric field");
+            } else {
+                // Let Solr parse it.
+                return unwrapped.toString();
+            }
+        }
+        
+        private void checkIntegral(Number value) {
+            if ((value instanceof Integer) || (value instanceof Long) || (value instanceof Short) || (value instanceof Byte)) {
+                long longValue = value.longValue();
+                if ((longValue < _minValue) || (longValue > _maxValue)) {
+                    throw new IllegalArgumentException(String.format("Value %d is out of range for the field", longValue));
+                }
+            } else {
+                double doubleValue = value.doubleValue();
+                if ((doubleValue != Math.rint(doubleValue)) || Double.isInfinite(doubleValue)) {
+                    throw new IllegalArgumentException(String.format("Value %s isn't a whole number", value));
+                }
+                
+                // Doubles can't represent Long.MAX_VALUE exactly, so we check against 2^63.
+                if ((doubleValue < _minValue) || (doubleValue >= _maxValue + 1.0)) {
+                    throw new IllegalArgumentException(String.format("Value %s is out of range for the field", value));
+                }
+            }
+        }
+        
+        @Override
+        public boolean canConvert(Class<?> valueClass) {
+            return !isBinary(valueClass) && !Date.class.isAssignableFrom(valueClass)
+                && !Boolean.class.isAssignableFrom(valueClass) && (valueClass != boolean.class);
+        }
+    }
+    
+    private static class DateConverter extends FieldConverter {
+        
+        @Override
+        public Object convert(Object value) {
+            if (value instanceof Date) {
+                return value;
+            }
+            
+            Object unwrapped = unwrap(value);
+            if ((unwrapped instanceof Long) || (unwrapped instanceof Integer)) {
+                // Treat as milliseconds since the epoch.
+                return new Date(((Number)unwrapped).longValue());
+            } else if (unwrapped instanceof String) {
+                // Let Solr parse it, e.g. 1995-12-31T23:59:59Z or NOW/DAY
+                return unwrapped;
+            } else {
+                throw new IllegalArgumentException("Can't index a " + value.getClass().getName() + " in a date field");
+            }
+        }
+        
+        @Override
+        public boolean canConvert(Class<?> valueClass) {
+            return Date.class.isAssignableFrom(valueClass)
+                || (valueClass == long.class) || (valueClass == int.class)
+                || Long.class.isAssignableFrom(valueClass) || Integer.class.isAssignableFrom(valueClass)
+                || LongWritable.class.isAssignableFrom(valueClass) || IntWritable.class.isAssignableFrom(valueClass)
+                || VLongWritable.class.isAssignableFrom(valueClass) || VIntWritable.class.isAssignableFrom(valueClass)
+                || CharSequence.class.isAssignableFrom(valueClass) || Text.class.isAssignableFrom(valueClass);
+        }
+    }
+    
+    private static class BooleanConverter extends FieldConverter {
+        
+        @Override
+        public Object convert(Object value) {
+            if (value instanceof Boolean) {
+                return value;
+            }
+            
+            Object unwrapped = unwrap(value);
+            if ((unwrapped instanceof Boolean) || (unwrapped instanceof String)) {
+                return unwrapped;
+            } else {
+                throw new IllegalArgumentException("Can't index a " + value.getClass().getName() + " in a boolean field");
+            }
+        }
+        
+        @Override
+        public boolean canConvert(Class<?> valueClass) {
+            return Boolean.class.isAssignableFrom(valueClass) || (valueClass == boolean.class)
+                || BooleanWritable.class.isAssignableFrom(valueClass)
+                || CharSequence.class.isAssignableFrom(valueClass) || Text.class.isAssignableFrom(valueClass);
+        }
+    }
+    
+    private static class BinaryConverter extends FieldConverter {
+        
+        private boolean _copy;
+        
+        public BinaryConverter(boolean copy) {
+            _copy = copy;
+        }
+        
+        @Override
+        public Object convert(Object value) {
+            if (value instanceof byte[]) {
+                return _copy ? ((byte[])value).clone() : value;
+            } else if (value instanceof BytesWritable) {
+                BytesWritable bw = (BytesWritable)value;
+                if (_copy) {
+                    return Arrays.copyOf(bw.getBytes(), bw.getLength());
+                }
+                
+                byte[] binaryData = bw.getBytes();
+                
+                // See if the array we get back is longer than the actual data we've got. If
+                // so we use a view of the data, which both javabin and Solr's BinaryField
+                // know how to handle, versus making a truncated copy.
+                if (binaryData.length != bw.getLength()) {
+                    return ByteBuffer.wrap(binaryData, 0, bw.getLength());
+                } else {
+                    return binaryData;
+                }
+            } else if (value instanceof String) {
+                // Solr assumes it's base64 encoded.
+                return value;
+            } else {
+                throw new IllegalArgumentException("Can't index a " + value.getClass().getName() + " in a binary field");
+            }
+        }
+        
+        @Override
+        public boolean canConvert(Class<?> valueClass) {
+            return isBinary(valueClass) || String.class.isAssignableFrom(valueClass);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.solr.core.HdfsDirectoryFactory;
+
+/**
+ * Solr's HdfsDirectoryFactory (so we get its block cache, HDFS lock factory and HDFS
+ * update log), but treating any fully qualified Hadoop path as absolute, versus only
+ * hdfs:// paths. This lets us write directly to whatever FileSystem the task output
+ * lives on, including the local file system when testing.
+ */
+public class HadoopDirectoryFactory extends HdfsDirectoryFactory {
+    
+    @Override
+    public boolean isAbsolute(String path) {
+        return super.isAbsolute(path) || (new Path(path).toUri().getScheme() != null);
+    }
+}
@@ -0,0 +1,89 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.solr.store.hdfs.HdfsDirectory;
+
+/**
+ * Finds and opens the index directories written by the Solr scheme, so that they can be
+ * read back in.
+ */
+public class IndexDirectories {
+    
+    private static final String INDEX_DIR_NAME = "index";
+    
+    /**
+     * Find all of the Lucene index directories at <path>, which can be an index directory,
+     * a data directory (with an index subdir), or a sink directory with one data directory
+     * per task (part-xxxxx) or shard (shardN).
+     *
+     * @param fs
+     * @param path
+     * @return index directories, sorted by path.
+     * @throws IOException
+     */
+    public static List<Path> find(FileSystem fs, Path path) throws IOException {
+        List<Path> result = new ArrayList<Path>();
+        if (isIndexDir(fs, path)) {
+            result.add(path);
+        } else if (isIndexDir(fs, new Path(path, INDEX_DIR_NAME))) {
+            result.add(new Path(path, INDEX_DIR_NAME));
+        } else {
+            FileStatus[] children = fs.listStatus(path);
+            Arrays.sort(children);
+            
+            for (FileStatus child : children) {
+                Path indexDir = new Path(child.getPath(), INDEX_DIR_NAME);
+                if (child.isDirectory() && isIndexDir(fs, indexDir)) {
+                    result.add(indexDir);
+                }
+            }
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Open <indexDir> for reading, as a regular Lucene directory if it's on the local
+     * file system, otherwise via Hadoop.
+     *
+     * @param indexDir
+     * @param conf
+     * @return directory, which the caller must close.
+     * @throws IOException
+     */
+    public static Directory open(Path indexDir, Configuration conf) throws IOException {
+        FileSystem fs = indexDir.getFileSystem(conf);
+        if (fs instanceof LocalFileSystem) {
+            return FSDirectory.open(new File(fs.makeQualified(indexDir).toUri().getPath()));
+        } else {
+            return new HdfsDirectory(indexDir, conf);
+        }
+    }
+    
+    private static boolean isIndexDir(FileSystem fs, Path path) throws IOException {
+        if (!fs.exists(path)) {
+            return false;
+        }
+        
+        for (FileStatus child : fs.listStatus(path)) {
+            if (child.getPath().getName().startsWith(IndexFileNames.SEGMENTS + "_")) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+}
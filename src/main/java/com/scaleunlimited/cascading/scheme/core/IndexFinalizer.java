@@ -0,0 +1,226 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SlowCompositeReaderWrapper;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.index.sorter.SortingAtomicReader;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.store.Directory;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+
+/**
+ * What to do with the index once all documents have been added, before the final
+ * commit. Forcing a merge down to a few segments makes for faster searches, but it's
+ * often the slowest part of building the index, so the right choice depends on how
+ * the index will be used.
+ *
+ * Implementations must be Serializable, since they're part of the SolrWriterOptions.
+ */
+@SuppressWarnings("serial")
+public abstract class IndexFinalizer implements Serializable {
+    
+    /**
+     * Do whatever merging is needed, and wait for it to complete. The caller commits
+     * the result.
+     *
+     * @param indexWriter writer that all documents have been added to
+     * @param schema schema of the core the index is for
+     * @throws IOException
+     */
+    public abstract void merge(IndexWriter indexWriter, IndexSchema schema) throws IOException;
+    
+    /**
+     * Don't merge anything, other than what the writer's merge policy is already doing.
+     */
+    public static IndexFinalizer none() {
+        return new NoMergeFinalizer();
+    }
+    
+    /**
+     * Merge down to at most <maxSegments> segments. This is the equivalent of a Solr
+     * optimize.
+     *
+     * @param maxSegments
+     * @param maxMergeThreads number of merges that can run concurrently, or 0 to use the
+     *        writer's current setting. Only helps when maxSegments is greater than 1, as
+     *        otherwise each merge depends on the previous one.
+     */
+    public static IndexFinalizer forceMerge(int maxSegments, int maxMergeThreads) {
+        return new ForceMergeFinalizer(maxSegments, maxMergeThreads);
+    }
+    
+    /**
+     * Merge similarly sized segments, until there are at most two segments per size tier,
+     * but without creating any segments bigger than <maxSegmentSizeMB>. This needs a
+     * TieredMergePolicy (the Solr and LuceneWriter default); for any other policy we
+     * only wait for the current merges to finish.
+     * The merge policy's settings are restored once merging is done.
+     *
+     * @param maxSegmentSizeMB
+     */
+    public static IndexFinalizer tieredMerge(double maxSegmentSizeMB) {
+        return new TieredMergeFinalizer(maxSegmentSizeMB);
+    }
+    
+    /**
+     * Rewrite the index as a single segment, with documents sorted by <fieldName>. This
+     * lets searches that sort by the same field stop early, and typically makes for a
+     * smaller index since similar documents wind up next to each other. It costs about
+     * the same as a force merge down to one segment.
+     *
+     * @param fieldName single-valued field that's indexed or has docValues.
+     * @param reverse true to sort in descending order, e.g. most popular first.
+     */
+    public static IndexFinalizer sorted(String fieldName, boolean reverse) {
+        return new SortingFinalizer(fieldName, reverse);
+    }
+    
+    /**
+     * @param indexDir
+     * @return number of segments in the most recent commit.
+     * @throws IOException
+     */
+    public static int countSegments(Directory indexDir) throws IOException {
+        SegmentInfos segmentInfos = new SegmentInfos();
+        segmentInfos.read(indexDir);
+        return segmentInfos.size();
+    }
+    
+    private static class NoMergeFinalizer extends IndexFinalizer {
+        
+        @Override
+        public void merge(IndexWriter indexWriter, IndexSchema schema) throws IOException {
+            indexWriter.waitForMerges();
+        }
+        
+        @Override
+        public String toString() {
+            return "no merge";
+        }
+    }
+    
+    private static class ForceMergeFinalizer extends IndexFinalizer {
+        
+        private int _maxSegments;
+        private int _maxMergeThreads;
+        
+        public ForceMergeFinalizer(int maxSegments, int maxMergeThreads) {
+            if (maxSegments < 1) {
+                throw new IllegalArgumentException("Max segments must be at least 1");
+            }
+            
+            _maxSegments = maxSegments;
+            _maxMergeThreads = maxMergeThreads;
+        }
+        
+        @Override
+        public void merge(IndexWriter indexWriter, IndexSchema schema) throws IOException {
+            IndexTuning.apply(indexWriter, 0, _maxMergeThreads);
+            indexWriter.forceMerge(_maxSegments, true);
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("force merge to %d segments", _maxSegments);
+        }
+    }
+    
+    private static class TieredMergeFinalizer extends IndexFinalizer {
+        
+        private static final double SEGMENTS_PER_TIER = 2.0;
+        
+        private double _maxSegmentSizeMB;
+        
+        public TieredMergeFinalizer(double maxSegmentSizeMB) {
+            if (maxSegmentSizeMB <= 0) {
+                throw new IllegalArgumentException("Max segment size must be greater than 0");
+            }
+            
+            _maxSegmentSizeMB = maxSegmentSizeMB;
+        }
+        
+        @Override
+        public void merge(IndexWriter indexWriter, IndexSchema schema) throws IOException {
+            MergePolicy mergePolicy = indexWriter.getConfig().getMergePolicy();
+            if (!(mergePolicy instanceof TieredMergePolicy)) {
+                indexWriter.waitForMerges();
+                return;
+            }
+            
+            // The merge policy's settings are used as-is for each new merge decision, so
+            // we change them while merging, and then put back what the writer had.
+            TieredMergePolicy tieredMergePolicy = (TieredMergePolicy)mergePolicy;
+            double oldMaxSegmentSizeMB = tieredMergePolicy.getMaxMergedSegmentMB();
+            double oldSegmentsPerTier = tieredMergePolicy.getSegmentsPerTier();
+            
+            try {
+                tieredMergePolicy.setMaxMergedSegmentMB(_maxSegmentSizeMB);
+                tieredMergePolicy.setSegmentsPerTier(SEGMENTS_PER_TIER);
+                indexWriter.maybeMerge();
+                
+                // Merges that finish can trigger more merges, so wait before restoring.
+                indexWriter.waitForMerges();
+            } finally {
+                tieredMergePolicy.setMaxMergedSegmentMB(oldMaxSegmentSizeMB);
+                tieredMergePolicy.setSegmentsPerTier(oldSegmentsPerTier);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("tiered merge up to %.0fMB segments", _maxSegmentSizeMB);
+        }
+    }
+    
+    private static class SortingFinalizer extends IndexFinalizer {
+        
+        private String _fieldName;
+        private boolean _reverse;
+        
+        public SortingFinalizer(String fieldName, boolean reverse) {
+            if (fieldName == null) {
+                throw new IllegalArgumentException("Sort field name can't be null");
+            }
+            
+            _fieldName = fieldName;
+            _reverse = reverse;
+        }
+        
+        @Override
+        public void merge(IndexWriter indexWriter, IndexSchema schema) throws IOException {
+            SchemaField field = schema.getFieldOrNull(_fieldName);
+            if (field == null) {
+                throw new IOException("Sort field isn't in the schema: " + _fieldName);
+            } else if (field.multiValued() || !(field.indexed() || field.hasDocValues())) {
+                throw new IOException("Sort field must be single-valued, and indexed or have docValues: " + _fieldName);
+            }
+            
+            Sort sort = new Sort(field.getSortField(_reverse));
+            
+            // The deletion policy keeps the files for this commit until the caller commits
+            // again, so we can read from it while replacing everything in the index.
+            indexWriter.waitForMerges();
+            indexWriter.commit();
+            DirectoryReader reader = DirectoryReader.open(indexWriter.getDirectory());
+            
+            try {
+                indexWriter.deleteAll();
+                indexWriter.addIndexes(SortingAtomicReader.wrap(SlowCompositeReaderWrapper.wrap(reader), sort));
+            } finally {
+                reader.close();
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("sorted by %s %s", _fieldName, _reverse ? "desc" : "asc");
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LiveIndexWriterConfig;
+import org.apache.lucene.index.MergeScheduler;
+
+/**
+ * Picks the IndexWriter RAM buffer size and number of merge threads based on the
+ * heap size and number of cores we've got, versus using the same values from the
+ * core's solrconfig.xml regardless of whether the task has a 2GB or a 16GB heap.
+ *
+ * A bigger RAM buffer means bigger flushed segments, and thus less merging, but the
+ * buffer has to share the heap with batches of documents, Solr itself, and merges.
+ */
+public class IndexTuning {
+    
+    // Fraction of the max heap that we'll use for all of the RAM buffers.
+    private static final double RAM_BUFFER_HEAP_RATIO = 0.25;
+    
+    private static final double MIN_RAM_BUFFER_SIZE_MB = 16.0;
+    
+    // Lucene has a hard limit of just under 2GB per indexing thread, and past a point
+    // bigger buffers don't buy us much.
+    private static final double MAX_RAM_BUFFER_SIZE_MB = 1024.0;
+    
+    private static final int MAX_MERGE_THREADS = 4;
+    
+    // Allow this many merges to be pending beyond the ones that are running, before
+    // indexing threads get stalled.
+    private static final int EXTRA_MERGE_COUNT = 2;
+    
+    // With less heap than this, concurrent merges risk running us out of memory.
+    private static final long MIN_HEAP_FOR_CONCURRENT_MERGES = 1024 * 1024 * 1024L;
+    
+    /**
+     * Set the RAM buffer size and max merge threads in <options>, unless they've
+     * already been explicitly set.
+     *
+     * @param options settings to update
+     * @param maxHeap max heap size, in bytes
+     * @param numProcessors number of available cores
+     */
+    public static void autoTune(SolrWriterOptions options, long maxHeap, int numProcessors) {
+        // Each sub-index has its own writer, and thus its own RAM buffer.
+        int numWriters = options.getNumSubIndexes();
+        
+        if (options.getRamBufferSizeMB() == 0) {
+            double ramBufferSizeMB = (maxHeap * RAM_BUFFER_HEAP_RATIO) / (1024.0 * 1024.0 * numWriters);
+            options.setRamBufferSizeMB(Math.floor(Math.max(MIN_RAM_BUFFER_SIZE_MB, Math.min(MAX_RAM_BUFFER_SIZE_MB, ramBufferSizeMB))));
+        }
+        
+        if (options.getMaxMergeThreads() == 0) {
+            // Use whatever cores the indexer threads aren't using, spread across the writers.
+            int numIndexerThreads = options.getNumIndexerThreads() * numWriters;
+            int maxMergeThreads = (numProcessors - numIndexerThreads) / numWriters;
+            if (maxHeap < MIN_HEAP_FOR_CONCURRENT_MERGES) {
+                maxMergeThreads = 1;
+            }
+            
+            options.setMaxMergeThreads(Math.max(1, Math.min(MAX_MERGE_THREADS, maxMergeThreads)));
+        }
+    }
+    
+    /**
+     * Apply the RAM buffer size and merge thread settings to an open index writer.
+     *
+     * @param indexWriter
+     * @param ramBufferSizeMB 0 to leave the writer's setting alone
+     * @param maxMergeThreads 0 to leave the writer's setting alone
+     */
+    public static void apply(IndexWriter indexWriter, double ramBufferSizeMB, int maxMergeThreads) {
+        LiveIndexWriterConfig config = indexWriter.getConfig();
+        
+        if (ramBufferSizeMB > 0) {
+            config.setRAMBufferSizeMB(ramBufferSizeMB);
+        }
+        
+        MergeScheduler mergeScheduler = config.getMergeScheduler();
+        if ((maxMergeThreads > 0) && (mergeScheduler instanceof ConcurrentMergeScheduler)) {
+            ((ConcurrentMergeScheduler)mergeScheduler).setMaxMergesAndThreads(maxMergeThreads + EXTRA_MERGE_COUNT, maxMergeThreads);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts and timings for the phases of building an index, so that we can tell whether
+ * a slow task is bound on conversion, analysis, committing, merging or uploading.
+ *
+ * Values are accumulated here, and then published as counters (via a KeepAliveHook) once
+ * per batch and when the index is finished, so the per-document cost is nothing more than
+ * what the caller does to keep its own running totals. Counter values that get published
+ * are the deltas since the previous publish(), so this can be called as often as needed.
+ */
+public class IndexingMetrics {
+    
+    public static final String COUNTER_GROUP = "Solr indexing";
+    
+    public enum Metric {
+        DOCS_ADDED("Documents added"),
+        FIELD_VALUES_CONVERTED("Field values converted"),
+        BYTES_CONVERTED("Bytes converted (estimated)"),
+        CORE_STARTUP_TIME("Core startup time (ms)"),
+        BATCHES_INDEXED("Batches indexed"),
+        BATCH_TIME("Batch indexing time (ms)"),
+        BATCHES_UNDER_10MS("Batches < 10ms"),
+        BATCHES_UNDER_100MS("Batches 10ms - 100ms"),
+        BATCHES_UNDER_1S("Batches 100ms - 1s"),
+        BATCHES_UNDER_10S("Batches 1s - 10s"),
+        BATCHES_OVER_10S("Batches >= 10s"),
+        COMMIT_TIME("Commit time (ms)"),
+        FINALIZE_TIME("Finalize time (ms)"),
+        SUB_INDEXES_MERGED("Sub-indexes merged"),
+        UPLOAD_BYTES("Bytes uploaded"),
+        UPLOAD_TIME("Upload time (ms)"),
+        STREAMED_BYTES("Bytes uploaded while indexing"),
+        DUPLICATES_DROPPED("Duplicate documents dropped"),
+        DUPLICATES_REPLACED("Duplicate documents replaced");
+        
+        private String _name;
+        
+        private Metric(String name) {
+            _name = name;
+        }
+        
+        /**
+         * @return name of the counter for this metric.
+         */
+        public String getName() {
+            return _name;
+        }
+    }
+    
+    // Upper bounds (exclusive) for the batch latency histogram buckets, other than the last one.
+    private static final long[] BATCH_TIME_LIMITS = {10, 100, 1000, 10000};
+    private static final Metric[] BATCH_TIME_BUCKETS = {
+        Metric.BATCHES_UNDER_10MS,
+        Metric.BATCHES_UNDER_100MS,
+        Metric.BATCHES_UNDER_1S,
+        Metric.BATCHES_UNDER_10S,
+        Metric.BATCHES_OVER_10S
+    };
+    
+    private AtomicLongArray _values;
+    private long[] _publishedValues;
+    
+    public IndexingMetrics() {
+        _values = new AtomicLongArray(Metric.values().length);
+        _publishedValues = new long[Metric.values().length];
+    }
+    
+    public void add(Metric metric, long amount) {
+        _values.addAndGet(metric.ordinal(), amount);
+    }
+    
+    public long get(Metric metric) {
+        return _values.get(metric.ordinal());
+    }
+    
+    /**
+     * Record one batch of documents being indexed, which took <durationMS>.
+     *
+     * @param durationMS
+     */
+    public void batchIndexed(long durationMS) {
+        add(Metric.BATCHES_INDEXED, 1);
+        add(Metric.BATCH_TIME, durationMS);
+        
+        int bucket = 0;
+        while ((bucket < BATCH_TIME_LIMITS.length) && (durationMS >= BATCH_TIME_LIMITS[bucket])) {
+            bucket += 1;
+        }
+        
+        add(BATCH_TIME_BUCKETS[bucket], 1);
+    }
+    
+    /**
+     * Increment the counters for everything that's changed since the last call.
+     *
+     * @param hook where to send counter increments
+     */
+    public synchronized void publish(KeepAliveHook hook) {
+        for (Metric metric : Metric.values()) {
+            long value = _values.get(metric.ordinal());
+            long delta = value - _publishedValues[metric.ordinal()];
+            if (delta != 0) {
+                hook.increment(COUNTER_GROUP, metric.getName(), delta);
+                _publishedValues[metric.ordinal()] = value;
+            }
+        }
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (Metric metric : Metric.values()) {
+            long value = get(metric);
+            if (value != 0) {
+                if (result.length() > 0) {
+                    result.append(", ");
+                }
+                
+                result.append(metric.getName());
+                result.append('=');
+                result.append(value);
+            }
+        }
+        
+        return result.toString();
+    }
+}
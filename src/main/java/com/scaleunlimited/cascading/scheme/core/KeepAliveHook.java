@@ -3,4 +3,14 @@ package com.scaleunlimited.cascading.scheme.core;
 public abstract class KeepAliveHook {
 
     public abstract void keepAlive();
+    
+    /**
+     * Increment a counter, if the platform supports them. By default this does nothing.
+     * 
+     * @param group
+     * @param counter
+     * @param amount
+     */
+    public void increment(String group, String counter, long amount) {
+    }
 }
@@ -0,0 +1,185 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tells the platform (via a KeepAliveHook) that we're alive while we're doing work that
+ * doesn't otherwise report progress, e.g. indexing a batch, committing & merging, or
+ * uploading the index.
+ *
+ * Callers bracket that work with startWork() and endWork(), and call progress() whenever
+ * something real gets done (a batch gets indexed, a file gets uploaded, and so on). If
+ * nothing gets done for stallTimeout milliseconds, we log the stall (with a thread dump)
+ * and stop heartbeating, so that a hung task gets killed by Hadoop instead of being kept
+ * alive forever. Heartbeating resumes if progress is made again.
+ *
+ * All services share one daemon scheduler thread, versus each unit of work firing off its
+ * own thread.
+ */
+public class KeepAliveService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeepAliveService.class);
+    
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 10 * 1000L;
+    
+    // Has to be longer than the slowest single step (e.g. a big force merge) we don't
+    // get progress from.
+    public static final long DEFAULT_STALL_TIMEOUT = 60 * 60 * 1000L;
+    
+    private static final ScheduledThreadPoolExecutor SCHEDULER = makeScheduler();
+    
+    private String _name;
+    private KeepAliveHook _hook;
+    private long _stallTimeout;
+    
+    private AtomicInteger _activeWork;
+    private volatile long _lastProgressTime;
+    private volatile boolean _stalled;
+    private ScheduledFuture<?> _heartbeat;
+    
+    public KeepAliveService(String name, KeepAliveHook hook, long stallTimeout) {
+        this(name, hook, DEFAULT_HEARTBEAT_INTERVAL, stallTimeout);
+    }
+    
+    /**
+     * @param name what's doing the work, for logging
+     * @param hook what gets called to say we're alive
+     * @param heartbeatInterval milliseconds between calls to the hook, while there's work
+     * @param stallTimeout milliseconds without progress before we stop heartbeating, or 0
+     *        to never stop.
+     */
+    public KeepAliveService(String name, KeepAliveHook hook, long heartbeatInterval, long stallTimeout) {
+        if (heartbeatInterval <= 0) {
+            throw new IllegalArgumentException("Heartbeat interval must be greater than 0");
+        }
+        
+        if (stallTimeout < 0) {
+            throw new IllegalArgumentException("Stall timeout can't be negative");
+        }
+        
+        _name = name;
+        _hook = hook;
+        _stallTimeout = stallTimeout;
+        _activeWork = new AtomicInteger();
+        _lastProgressTime = currentTimeMillis();
+        _stalled = false;
+        
+        _heartbeat = SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+            
+            @Override
+            public void run() {
+                try {
+                    heartbeat();
+                } catch (Throwable t) {
+                    // Otherwise the scheduler would silently stop running us.
+                    LOGGER.warn("Error reporting progress for " + _name, t);
+                }
+            }
+        }, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * We're starting work that doesn't report progress on its own. Calls can be nested,
+     * and can come from multiple threads.
+     */
+    public void startWork() {
+        if (_activeWork.getAndIncrement() == 0) {
+            _lastProgressTime = currentTimeMillis();
+        }
+    }
+    
+    public void endWork() {
+        _activeWork.decrementAndGet();
+    }
+    
+    /**
+     * Something got done, so we're not hung.
+     */
+    public void progress() {
+        _lastProgressTime = currentTimeMillis();
+    }
+    
+    /**
+     * @return true if we've stopped heartbeating because no progress is being made.
+     */
+    public boolean isStalled() {
+        return _stalled;
+    }
+    
+    /**
+     * Stop heartbeating. The service can't be used after this.
+     */
+    public void close() {
+        _heartbeat.cancel(false);
+    }
+    
+    /**
+     * @return the current time, which tests can override to control the clock.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+    
+    protected void heartbeat() {
+        if (_activeWork.get() == 0) {
+            return;
+        }
+        
+        long idleTime = currentTimeMillis() - _lastProgressTime;
+        if ((_stallTimeout > 0) && (idleTime >= _stallTimeout)) {
+            if (!_stalled) {
+                _stalled = true;
+                LOGGER.error(String.format("%s has made no progress in %dms, so we're no longer reporting that it's alive. Thread dump:%n%s", _name, idleTime, getThreadDump()));
+            }
+            
+            return;
+        }
+        
+        if (_stalled) {
+            _stalled = false;
+            LOGGER.info(String.format("%s is making progress again", _name));
+        }
+        
+        _hook.keepAlive();
+    }
+    
+    private static String getThreadDump() {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            Thread thread = entry.getKey();
+            result.append(String.format("\"%s\"%s state=%s%n", thread.getName(), thread.isDaemon() ? " daemon" : "", thread.getState()));
+            for (StackTraceElement element : entry.getValue()) {
+                result.append("    at ");
+                result.append(element);
+                result.append(String.format("%n"));
+            }
+            
+            result.append(String.format("%n"));
+        }
+        
+        return result.toString();
+    }
+    
+    private static ScheduledThreadPoolExecutor makeScheduler() {
+        ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "KeepAliveService heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        // Don't hang on to services that have been closed.
+        result.setRemoveOnCancelPolicy(true);
+        return result;
+    }
+}
@@ -0,0 +1,300 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.codecs.DocValuesFormat;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene410.Lucene410Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.LiveIndexWriterConfig;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.update.DocumentBuilder;
+
+/**
+ * Builds a Lucene index directly from SolrInputDocuments, using the Solr core's schema
+ * to create the Lucene fields (including copyFields and default values), but without
+ * any of the Solr core machinery - update handler, transaction log, commit listeners,
+ * searchers, etc. The result is a regular Solr index for the same core configuration.
+ *
+ * The add() method can be called from multiple threads.
+ */
+public class LuceneWriter {
+    
+    public static final double DEFAULT_RAM_BUFFER_SIZE_MB = 128.0;
+    
+    private IndexSchema _schema;
+    private Directory _indexDir;
+    private IndexWriter _indexWriter;
+    private SnapshotDeletionPolicy _deletionPolicy;
+    
+    public LuceneWriter(File solrCoreDir, File indexDir, int numIndexerThreads) throws IOException {
+        this(solrCoreDir, indexDir, numIndexerThreads, DEFAULT_RAM_BUFFER_SIZE_MB);
+    }
+    
+    public LuceneWriter(File solrCoreDir, File indexDir, int numIndexerThreads, double ramBufferSizeMB) throws IOException {
+        this(solrCoreDir, FSDirectory.open(indexDir), numIndexerThreads, ramBufferSizeMB);
+    }
+    
+    /**
+     * @param solrCoreDir
+     * @param indexDir where to write the index. This is closed by close().
+     * @param numIndexerThreads
+     * @param ramBufferSizeMB
+     * @throws IOException
+     */
+    public LuceneWriter(File solrCoreDir, Directory indexDir, int numIndexerThreads, double ramBufferSizeMB) throws IOException {
+        _indexDir = indexDir;
+        
+        SolrConfig solrConfig = SolrSchemeUtil.loadSolrConfig(solrCoreDir);
+        _schema = SolrSchemeUtil.loadSchema(solrConfig);
+        
+        IndexWriterConfig conf = new IndexWriterConfig(solrConfig.luceneMatchVersion, _schema.getIndexAnalyzer());
+        conf.setOpenMode(OpenMode.CREATE);
+        conf.setSimilarity(_schema.getSimilarity());
+        conf.setCodec(new SchemaCodec(_schema));
+        
+        // Bulk load settings - flush big segments, and don't waste time building compound files.
+        conf.setRAMBufferSizeMB(ramBufferSizeMB);
+        conf.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+        conf.setMaxThreadStates(Math.max(numIndexerThreads, IndexWriterConfig.DEFAULT_MAX_THREAD_STATES));
+        conf.setUseCompoundFile(false);
+        
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setNoCFSRatio(0.0);
+        conf.setMergePolicy(mergePolicy);
+        
+        // So we can hang on to commit points while their files get uploaded.
+        _deletionPolicy = new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+        conf.setIndexDeletionPolicy(_deletionPolicy);
+        
+        try {
+            _indexWriter = new IndexWriter(_indexDir, conf);
+        } catch (IOException e) {
+            _indexDir.close();
+            throw e;
+        }
+    }
+    
+    public IndexSchema getSchema() {
+        return _schema;
+    }
+    
+    /**
+     * Change the RAM buffer size and/or number of merge threads, as per IndexTuning.apply().
+     * 
+     * @param ramBufferSizeMB 0 to leave the current setting alone
+     * @param maxMergeThreads 0 to leave the current setting alone
+     */
+    public void tune(double ramBufferSizeMB, int maxMergeThreads) {
+        IndexTuning.apply(_indexWriter, ramBufferSizeMB, maxMergeThreads);
+    }
+    
+    /**
+     * @return the index writer's current settings, including any changes made by tune().
+     */
+    public LiveIndexWriterConfig getConfig() {
+        return _indexWriter.getConfig();
+    }
+    
+    public void add(List<SolrInputDocument> docs) throws IOException {
+        for (SolrInputDocument doc : docs) {
+            add(doc);
+        }
+    }
+    
+    public void add(SolrInputDocument doc) throws IOException {
+        _indexWriter.addDocument(toLuceneDocument(doc));
+    }
+    
+    /**
+     * Add <doc>, replacing any document that was already added with the same uniqueKey.
+     * This means a delete-by-term, so it's much slower than add().
+     * 
+     * @param doc
+     * @throws IOException
+     */
+    public void update(SolrInputDocument doc) throws IOException {
+        SchemaField keyField = _schema.getUniqueKeyField();
+        if (keyField == null) {
+            throw new IllegalStateException("Schema doesn't have a uniqueKey field");
+        }
+        
+        Object keyValue = doc.getFieldValue(keyField.getName());
+        if (keyValue == null) {
+            throw new IOException("Document doesn't have a value for uniqueKey field " + keyField.getName());
+        }
+        
+        // Same as how Solr gets the indexed form of the key (AddUpdateCommand.getIndexedId),
+        // which for some field types isn't the same as toInternal().
+        BytesRefBuilder indexedKey = new BytesRefBuilder();
+        keyField.getType().readableToIndexed(keyValue.toString(), indexedKey);
+        _indexWriter.updateDocument(new Term(keyField.getName(), indexedKey.get()), toLuceneDocument(doc));
+    }
+    
+    private Document toLuceneDocument(SolrInputDocument doc) throws IOException {
+        try {
+            return DocumentBuilder.toDocument(doc, _schema);
+        } catch (SolrException e) {
+            throw new IOException("Can't convert document to Lucene: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Commit everything added so far, and return the resulting commit point. Its files
+     * won't be deleted until releaseCommit() is called.
+     *
+     * @return the reserved commit point.
+     * @throws IOException
+     */
+    public IndexCommit reserveCommit() throws IOException {
+        _indexWriter.commit();
+        return _deletionPolicy.snapshot();
+    }
+    
+    public void releaseCommit(IndexCommit commit) throws IOException {
+        _deletionPolicy.release(commit);
+        _indexWriter.deleteUnusedFiles();
+    }
+    
+    /**
+     * Add all of the segments from each of the indexes in <indexDirs>, which must have
+     * been built using the same Solr core configuration. This is a file copy, not a
+     * re-index, so it's fast; call finish() afterwards to merge the segments.
+     *
+     * @param indexDirs
+     * @throws IOException
+     */
+    public void addIndexes(List<File> indexDirs) throws IOException {
+        Directory[] dirs = new Directory[indexDirs.size()];
+        
+        try {
+            for (int i = 0; i < dirs.length; i++) {
+                dirs[i] = FSDirectory.open(indexDirs.get(i));
+            }
+            
+            _indexWriter.addIndexes(dirs);
+        } finally {
+            for (Directory dir : dirs) {
+                if (dir != null) {
+                    dir.close();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Add all of the segments from each of the indexes in <dirs>, by copying their files
+     * as per addIndexes(). The directories aren't closed.
+     *
+     * @param dirs
+     * @throws IOException
+     */
+    public void copyIndexes(List<Directory> dirs) throws IOException {
+        _indexWriter.addIndexes(dirs.toArray(new Directory[dirs.size()]));
+    }
+    
+    /**
+     * Merge all of the documents in the indexes in <dirs> into one new segment. Per byte
+     * this is slower than copyIndexes(), but for lots of small indexes it avoids copying
+     * (and later merging) a huge number of tiny segments. The directories aren't closed.
+     *
+     * @param dirs
+     * @throws IOException
+     */
+    public void coalesceIndexes(List<Directory> dirs) throws IOException {
+        IndexReader[] readers = new IndexReader[dirs.size()];
+        
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = DirectoryReader.open(dirs.get(i));
+            }
+            
+            _indexWriter.addIndexes(readers);
+        } finally {
+            for (IndexReader reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Merge segments as per <finalizer>, and commit the result.
+     *
+     * @param finalizer
+     * @return number of segments in the final index.
+     * @throws IOException
+     */
+    public int finish(IndexFinalizer finalizer) throws IOException {
+        finalizer.merge(_indexWriter, _schema);
+        _indexWriter.commit();
+        return IndexFinalizer.countSegments(_indexDir);
+    }
+    
+    public void close() throws IOException {
+        try {
+            _indexWriter.close();
+        } finally {
+            _indexDir.close();
+        }
+    }
+    
+    /**
+     * Same logic as Solr's SchemaCodecFactory, so that field types with a custom
+     * postings or docValues format are written the same way as by a Solr core.
+     */
+    private static class SchemaCodec extends Lucene410Codec {
+        
+        private IndexSchema _schema;
+        
+        public SchemaCodec(IndexSchema schema) {
+            _schema = schema;
+        }
+        
+        @Override
+        public PostingsFormat getPostingsFormatForField(String field) {
+            SchemaField schemaField = _schema.getFieldOrNull(field);
+            if (schemaField != null) {
+                String postingsFormatName = schemaField.getType().getPostingsFormat();
+                if (postingsFormatName != null) {
+                    return PostingsFormat.forName(postingsFormatName);
+                }
+            }
+            
+            return super.getPostingsFormatForField(field);
+        }
+        
+        @Override
+        public DocValuesFormat getDocValuesFormatForField(String field) {
+            SchemaField schemaField = _schema.getFieldOrNull(field);
+            if (schemaField != null) {
+                String docValuesFormatName = schemaField.getType().getDocValuesFormat();
+                if (docValuesFormatName != null) {
+                    return DocValuesFormat.forName(docValuesFormatName);
+                }
+            }
+            
+            return super.getDocValuesFormatForField(field);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TrieDateField;
+import org.apache.solr.schema.TrieField;
+
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+
+/**
+ * Reads tuples back out of one segment of an index built by the Solr scheme. Only the
+ * requested fields are decoded: stored fields are loaded via a field-selective visitor,
+ * and fields that aren't stored are read from their docValues.
+ *
+ * Values are returned in the form that the sink accepts, so tuples can be re-indexed as-is:
+ * multi-valued fields are a Tuple of values, dates are milliseconds since the epoch, and
+ * binary fields are a byte[]. Missing values are null.
+ */
+public class SegmentTupleReader {
+    
+    private AtomicReader _reader;
+    private Bits _liveDocs;
+    private int _nextDoc;
+    private int _endDoc;
+    
+    private FieldSource[] _fieldSources;
+    private Set<String> _storedFieldNames;
+    
+    /**
+     * @param reader segment to read from. This isn't closed by the reader.
+     * @param schema schema the index was built with
+     * @param fields fields to read, which must all be stored or have docValues
+     * @param startDoc first doc id to read
+     * @param endDoc doc id after the last one to read
+     * @throws IOException
+     */
+    public SegmentTupleReader(AtomicReader reader, IndexSchema schema, Fields fields, int startDoc, int endDoc) throws IOException {
+        _reader = reader;
+        _liveDocs = reader.getLiveDocs();
+        _nextDoc = startDoc;
+        _endDoc = Math.min(endDoc, reader.maxDoc());
+        
+        _fieldSources = new FieldSource[fields.size()];
+        _storedFieldNames = new HashSet<String>();
+        
+        for (int i = 0; i < fields.size(); i++) {
+            String fieldName = fields.get(i).toString();
+            SchemaField field = schema.getFieldOrNull(fieldName);
+            if (field == null) {
+                throw new IllegalArgumentException("Field doesn't exist in Solr schema: " + fieldName);
+            } else if (field.stored()) {
+                _fieldSources[i] = new StoredFieldSource(field);
+                _storedFieldNames.add(fieldName);
+            } else if (field.hasDocValues()) {
+                _fieldSources[i] = makeDocValuesSource(reader, field);
+            } else {
+                throw new IllegalArgumentException("Field is neither stored nor has docValues: " + fieldName);
+            }
+        }
+    }
+    
+    /**
+     * @param field
+     * @return true if values for <field> can be read back from the index.
+     */
+    public static boolean canRead(SchemaField field) {
+        return field.stored() || field.hasDocValues();
+    }
+    
+    /**
+     * Fill in <result> with the values for the next live document.
+     *
+     * @param result tuple to fill in
+     * @return false if there are no more documents.
+     * @throws IOException
+     */
+    public boolean next(Tuple result) throws IOException {
+        while ((_nextDoc < _endDoc) && (_liveDocs != null) && !_liveDocs.get(_nextDoc)) {
+            _nextDoc += 1;
+        }
+        
+        if (_nextDoc >= _endDoc) {
+            return false;
+        }
+        
+        int docId = _nextDoc++;
+        Document doc = _storedFieldNames.isEmpty() ? null : _reader.document(docId, _storedFieldNames);
+        
+        result.clear();
+        for (FieldSource fieldSource : _fieldSources) {
+            result.add(fieldSource.getValue(docId, doc));
+        }
+        
+        return true;
+    }
+    
+    /**
+     * @return number of doc ids (including deleted docs) left to read.
+     */
+    public int getRemaining() {
+        return Math.max(0, _endDoc - _nextDoc);
+    }
+    
+    private static FieldSource makeDocValuesSource(AtomicReader reader, SchemaField field) throws IOException {
+        String fieldName = field.getName();
+        
+        if (field.multiValued()) {
+            return new SortedSetFieldSource(field, reader.getSortedSetDocValues(fieldName));
+        } else if (field.getType() instanceof TrieDateField) {
+            // TrieDateField isn't a TrieField, but it wraps one, and so has the same
+            // numeric docValues (milliseconds since the epoch).
+            return new NumericFieldSource(TrieField.TrieTypes.DATE, reader.getNumericDocValues(fieldName), reader.getDocsWithField(fieldName));
+        } else if (field.getType() instanceof TrieField) {
+            return new NumericFieldSource(((TrieField)field.getType()).getType(), reader.getNumericDocValues(fieldName), reader.getDocsWithField(fieldName));
+        } else {
+            return new SortedFieldSource(field, reader.getSortedDocValues(fieldName));
+        }
+    }
+    
+    /**
+     * Convert what Solr gives us into what the sink would take.
+     */
+    private static Object normalize(Object value) {
+        if (value instanceof Date) {
+            return ((Date)value).getTime();
+        } else if (value instanceof ByteBuffer) {
+            ByteBuffer buffer = ((ByteBuffer)value).duplicate();
+            byte[] result = new byte[buffer.remaining()];
+            buffer.get(result);
+            return result;
+        } else {
+            return value;
+        }
+    }
+    
+    private static abstract class FieldSource {
+        
+        /**
+         * @param docId
+         * @param doc stored fields for docId (null if no stored fields were requested)
+         * @return value for the field, or null if it's missing.
+         */
+        public abstract Object getValue(int docId, Document doc) throws IOException;
+    }
+    
+    private static class StoredFieldSource extends FieldSource {
+        
+        private SchemaField _field;
+        
+        public StoredFieldSource(SchemaField field) {
+            _field = field;
+        }
+        
+        @Override
+        public Object getValue(int docId, Document doc) {
+            IndexableField[] values = doc.getFields(_field.getName());
+            if (_field.multiValued()) {
+                Tuple result = new Tuple();
+                for (IndexableField value : values) {
+                    result.add(normalize(_field.getType().toObject(value)));
+                }
+                
+                return result;
+            } else if (values.length == 0) {
+                return null;
+            } else {
+                return normalize(_field.getType().toObject(values[0]));
+            }
+        }
+    }
+    
+    private static class NumericFieldSource extends FieldSource {
+        
+        private TrieField.TrieTypes _type;
+        private NumericDocValues _values;
+        private Bits _docsWithField;
+        
+        public NumericFieldSource(TrieField.TrieTypes type, NumericDocValues values, Bits docsWithField) {
+            _type = type;
+            _values = values;
+            _docsWithField = docsWithField;
+        }
+        
+        @Override
+        public Object getValue(int docId, Document doc) {
+            if ((_values == null) || (_docsWithField == null) || !_docsWithField.get(docId)) {
+                return null;
+            }
+            
+            long value = _values.get(docId);
+            switch (_type) {
+                case INTEGER:
+                    return (int)value;
+                case FLOAT:
+                    return Float.intBitsToFloat((int)value);
+                case DOUBLE:
+                    return Double.longBitsToDouble(value);
+                default:
+                    // Longs and dates (as milliseconds)
+                    return value;
+            }
+        }
+    }
+    
+    private static class SortedFieldSource extends FieldSource {
+        
+        private SchemaField _field;
+        private SortedDocValues _values;
+        
+        public SortedFieldSource(SchemaField field, SortedDocValues values) {
+            _field = field;
+            _values = values;
+        }
+        
+        @Override
+        public Object getValue(int docId, Document doc) {
+            if ((_values == null) || (_values.getOrd(docId) == -1)) {
+                return null;
+            }
+            
+            BytesRef value = _values.get(docId);
+            return normalize(_field.getType().toObject(_field, value));
+        }
+    }
+    
+    private static class SortedSetFieldSource extends FieldSource {
+        
+        private SchemaField _field;
+        private SortedSetDocValues _values;
+        
+        public SortedSetFieldSource(SchemaField field, SortedSetDocValues values) {
+            _field = field;
+            _values = values;
+        }
+        
+        @Override
+        public Object getValue(int docId, Document doc) {
+            Tuple result = new Tuple();
+            if (_values == null) {
+                return result;
+            }
+            
+            _values.setDocument(docId);
+            long ord;
+            while ((ord = _values.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                result.add(normalize(_field.getType().toObject(_field, _values.lookupOrd(ord))));
+            }
+            
+            return result;
+        }
+    }
+}
@@ -2,26 +2,41 @@ package com.scaleunlimited.cascading.scheme.core;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.solr.core.CoreContainer;
-import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.core.SolrResourceLoader;
 import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.IndexSchemaFactory;
 import org.apache.solr.schema.SchemaField;
 
 import cascading.tap.TapException;
 import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
 
 public class SolrSchemeUtil {
 
     public static final String DEFAULT_DATA_DIR_PROPERTY_NAME = "solr.data.dir";
+    
+    // Parsed schemas, keyed by canonical path of the core directory.
+    private static final Map<String, CachedSchema> SCHEMA_CACHE = new ConcurrentHashMap<String, CachedSchema>();
 
     public static File makeTempSolrHome(File solrCoreDir) throws IOException {
+        return makeTempSolrHome(solrCoreDir, null);
+    }
+    
+    /**
+     * @param solrCoreDir
+     * @param configFile config file to use instead of the core's solrconfig.xml, or null
+     * @return Solr home directory, with a solr.xml that references the core directory.
+     * @throws IOException
+     */
+    public static File makeTempSolrHome(File solrCoreDir, File configFile) throws IOException {
         String tmpFolder = System.getProperty("java.io.tmpdir");
         File tmpSolrHome = new File(tmpFolder, UUID.randomUUID().toString());
         
@@ -29,80 +44,190 @@ public class SolrSchemeUtil {
         // that references the core directory.
         String coreName = solrCoreDir.getName();
         String corePath = solrCoreDir.getAbsolutePath();
-        String solrXmlContent = String.format("<solr><cores><core name=\"%s\" instanceDir=\"%s\"></core></cores></solr>",
-                                              coreName, corePath);
+        String configAttribute = (configFile == null) ? "" : String.format(" config=\"%s\"", configFile.getAbsolutePath());
+        String solrXmlContent = String.format("<solr><cores><core name=\"%s\" instanceDir=\"%s\"%s></core></cores></solr>",
+                                              coreName, corePath, configAttribute);
         File solrXmlFile = new File(tmpSolrHome, "solr.xml");
         FileUtils.write(solrXmlFile, solrXmlContent);
 
         return tmpSolrHome;
     }
     
-    public static void validate(File solrCoreDir, String dataDirPropertyName, Fields schemeFields) throws IOException {
+    /**
+     * Parse the core's solrconfig.xml, without instantiating the core.
+     * 
+     * @param solrCoreDir directory containing the core's conf subdir
+     * @return parsed configuration
+     * @throws IOException
+     */
+    public static SolrConfig loadSolrConfig(File solrCoreDir) throws IOException {
+        SolrResourceLoader loader = new SolrResourceLoader(solrCoreDir.getAbsolutePath());
         
-        // Verify solrHomeDir exists
-        if (!solrCoreDir.exists() || !solrCoreDir.isDirectory()) {
-            throw new TapException("Solr core directory doesn't exist: " + solrCoreDir);
+        try {
+            return new SolrConfig(loader, SolrConfig.DEFAULT_CONF_FILE, null);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Can't load Solr config from " + solrCoreDir, e);
         }
+    }
+    
+    /**
+     * Parse the schema referenced by <solrConfig>, without instantiating the core.
+     * 
+     * @param solrConfig configuration returned by loadSolrConfig()
+     * @return parsed schema
+     * @throws IOException
+     */
+    public static IndexSchema loadSchema(SolrConfig solrConfig) throws IOException {
+        try {
+            return IndexSchemaFactory.buildIndexSchema(IndexSchema.DEFAULT_SCHEMA_FILE, solrConfig);
+        } catch (Exception e) {
+            throw new IOException("Can't load Solr schema", e);
+        }
+    }
+    
+    /**
+     * Get the schema for the core in <solrCoreDir>, by parsing its config files without
+     * starting up the core. Schemas are cached by core directory, and re-parsed if any
+     * of the core's conf files (including ones in subdirs) have been modified since they
+     * were cached.
+     * 
+     * @param solrCoreDir directory containing the core's conf subdir
+     * @return parsed schema
+     * @throws IOException
+     */
+    public static IndexSchema getSchema(File solrCoreDir) throws IOException {
+        String corePath = solrCoreDir.getCanonicalPath();
+        long lastModified = getLastModified(new File(solrCoreDir, "conf"));
         
-        File tmpSolrHome = makeTempSolrHome(solrCoreDir);
-        
-        // Set up a temp location for Solr home, where we're write out a synthetic solr.xml
-        // that references the core directory.
-        String coreName = solrCoreDir.getName();
-        String corePath = solrCoreDir.getAbsolutePath();
-        String solrXmlContent = String.format("<solr><cores><core name=\"%s\" instanceDir=\"%s\"></core></cores></solr>",
-                                              coreName, corePath);
-        File solrXmlFile = new File(tmpSolrHome, "solr.xml");
-        FileUtils.write(solrXmlFile, solrXmlContent);
+        CachedSchema cachedSchema = SCHEMA_CACHE.get(corePath);
+        if ((cachedSchema != null) && (cachedSchema.getLastModified() == lastModified)) {
+            return cachedSchema.getSchema();
+        }
         
-        // Set up a temp location for data, so when we instantiate the coreContainer,
-        // we don't pollute the solr home with a /data sub-dir.
-        String tmpFolder = System.getProperty("java.io.tmpdir");
-        File tmpDataDir = new File(tmpFolder, UUID.randomUUID().toString());
-        tmpDataDir.mkdir();
+        IndexSchema result = loadSchema(loadSolrConfig(solrCoreDir));
+        SCHEMA_CACHE.put(corePath, new CachedSchema(result, lastModified));
+        return result;
+    }
+    
+    /**
+     * @return the most recent modification time of <dir> and everything in it, including
+     *         subdirs (e.g. the lang/ stopwords files that analyzers load).
+     */
+    private static long getLastModified(File dir) {
+        long result = dir.lastModified();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    result = Math.max(result, getLastModified(file));
+                } else {
+                    result = Math.max(result, file.lastModified());
+                }
+            }
+        }
         
-        System.setProperty(dataDirPropertyName, tmpDataDir.getAbsolutePath());
-        System.setProperty("enable.special-handlers", "false"); // All we need is the update request handler
-        System.setProperty("enable.cache-warming", "false"); // We certainly don't need to warm the cache
+        return result;
+    }
+    
+    /**
+     * Make sure the tuples for <schemeFields> can be indexed by the core in <solrCoreDir>.
+     * Only the core's config files are parsed, so this is fast (and the result is cached),
+     * and it doesn't leave anything behind.
+     * 
+     * @param solrCoreDir directory containing the core's conf subdir
+     * @param dataDirPropertyName not currently used, since we never start up the core
+     * @param schemeFields fields that will be indexed
+     * @throws IOException
+     */
+    public static void validate(File solrCoreDir, String dataDirPropertyName, Fields schemeFields) throws IOException {
         
-        CoreContainer coreContainer = new CoreContainer(tmpSolrHome.getAbsolutePath());
+        // Verify solrHomeDir exists
+        if (!solrCoreDir.exists() || !solrCoreDir.isDirectory()) {
+            throw new TapException("Solr core directory doesn't exist: " + solrCoreDir);
+        }
         
+        IndexSchema schema;
         try {
-            coreContainer.load();
-            Collection<SolrCore> cores = coreContainer.getCores();
-            SolrCore core = null;
-            
-            if (cores.size() == 0) {
-                throw new TapException("No Solr cores are available");
-            } else if (cores.size() > 1) {
-                throw new TapException("Only one Solr core is supported");
-            } else {
-                core = cores.iterator().next();
-            }
-
-            IndexSchema schema = core.getLatestSchema();
-            Map<String, SchemaField> solrFields = schema.getFields();
-            Set<String> schemeFieldnames = new HashSet<String>();
+            schema = getSchema(solrCoreDir);
+        } catch (IOException e) {
+            throw new TapException("Can't load Solr schema from " + solrCoreDir, e);
+        }
+        
+        Map<String, SchemaField> solrFields = schema.getFields();
+        Set<String> schemeFieldnames = new HashSet<String>();
 
-            for (int i = 0; i < schemeFields.size(); i++) {
-                String fieldName = schemeFields.get(i).toString();
-                if (!solrFields.containsKey(fieldName)) {
-                    throw new TapException("Sink field name doesn't exist in Solr schema: " + fieldName);
-                }
+        for (int i = 0; i < schemeFields.size(); i++) {
+            String fieldName = schemeFields.get(i).toString();
+            if (!solrFields.containsKey(fieldName)) {
+                throw new TapException("Sink field name doesn't exist in Solr schema: " + fieldName);
+            }
                 
-                schemeFieldnames.add(fieldName);
+            schemeFieldnames.add(fieldName);
+            
+            // If we know the type of the field, make sure we'll be able to convert it. For
+            // multi-valued fields (Tuples) we have to wait until we see the actual values.
+            Class<?> fieldClass = schemeFields.getTypeClass(i);
+            if ((fieldClass != null) && (fieldClass != Object.class) && (fieldClass != Tuple.class)) {
+                SchemaField solrField = solrFields.get(fieldName);
+                if (!FieldConverter.forField(solrField).canConvert(fieldClass)) {
+                    throw new TapException(String.format("Sink field %s of type %s can't be converted for Solr field type %s",
+                                    fieldName, fieldClass.getName(), solrField.getType().getTypeName()));
+                }
             }
+        }
 
-            for (String solrFieldname : solrFields.keySet()) {
-                SchemaField solrField = solrFields.get(solrFieldname);
-                if (solrField.isRequired() && !schemeFieldnames.contains(solrFieldname)) {
-                    throw new TapException("No sink field name for required Solr field: " + solrFieldname);
-                }
+        for (String solrFieldname : solrFields.keySet()) {
+            SchemaField solrField = solrFields.get(solrFieldname);
+            if (solrField.isRequired() && !schemeFieldnames.contains(solrFieldname)) {
+                throw new TapException("No sink field name for required Solr field: " + solrFieldname);
             }
-        } finally {
-            if (coreContainer != null) {
-                coreContainer.shutdown();
+        }
+    }
+    
+    /**
+     * Make sure the values for <sourceFields> can be read back from indexes built with the
+     * core in <solrCoreDir>, which means they have to be stored, or have docValues.
+     * 
+     * @param solrCoreDir directory containing the core's conf subdir
+     * @param sourceFields fields that will be read
+     */
+    public static void validateSource(File solrCoreDir, Fields sourceFields) {
+        IndexSchema schema;
+        try {
+            schema = getSchema(solrCoreDir);
+        } catch (IOException e) {
+            throw new TapException("Can't load Solr schema from " + solrCoreDir, e);
+        }
+        
+        for (int i = 0; i < sourceFields.size(); i++) {
+            String fieldName = sourceFields.get(i).toString();
+            SchemaField solrField = schema.getFieldOrNull(fieldName);
+            if (solrField == null) {
+                throw new TapException("Source field name doesn't exist in Solr schema: " + fieldName);
+            } else if (!SegmentTupleReader.canRead(solrField)) {
+                throw new TapException("Source field is neither stored nor has docValues: " + fieldName);
             }
         }
     }
+    
+    private static class CachedSchema {
+        
+        private IndexSchema _schema;
+        private long _lastModified;
+        
+        public CachedSchema(IndexSchema schema, long lastModified) {
+            _schema = schema;
+            _lastModified = lastModified;
+        }
+        
+        public IndexSchema getSchema() {
+            return _schema;
+        }
+        
+        public long getLastModified() {
+            return _lastModified;
+        }
+    }
 }
@@ -0,0 +1,54 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.pipe.Each;
+import cascading.pipe.GroupBy;
+import cascading.pipe.Pipe;
+import cascading.pipe.SubAssembly;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+
+/**
+ * Groups documents by the shard they'll be routed to, for writing to a sharded Solr sink.
+ * Each shard's documents wind up in the same reducer, so each shard index is built by
+ * exactly one task. The shard number is added to the tuple in SHARD_FIELD_NAME.
+ */
+@SuppressWarnings("serial")
+public class SolrShardPipe extends SubAssembly {
+    
+    public static final String SHARD_FIELD_NAME = "solr-shard";
+    
+    /**
+     * @param pipe documents to be indexed
+     * @param routingFieldName field with the value used to route each document, typically
+     *        the uniqueKey field
+     * @param numShards
+     */
+    public SolrShardPipe(Pipe pipe, String routingFieldName, int numShards) {
+        super(pipe);
+        
+        Pipe shardPipe = new Each(pipe, new Fields(routingFieldName), new ShardFunction(numShards), Fields.ALL);
+        shardPipe = new GroupBy(shardPipe, new Fields(SHARD_FIELD_NAME));
+        setTails(shardPipe);
+    }
+    
+    private static class ShardFunction extends BaseOperation<Void> implements Function<Void> {
+        
+        private SolrShardRouter _router;
+        
+        public ShardFunction(int numShards) {
+            super(1, new Fields(SHARD_FIELD_NAME));
+            
+            _router = new SolrShardRouter(numShards);
+        }
+        
+        @Override
+        public void operate(FlowProcess flowProcess, FunctionCall<Void> functionCall) {
+            int shard = _router.getShard(functionCall.getArguments().getObject(0));
+            functionCall.getOutputCollector().add(new Tuple(shard));
+        }
+    }
+}
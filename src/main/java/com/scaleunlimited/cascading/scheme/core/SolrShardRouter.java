@@ -0,0 +1,71 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.apache.solr.common.cloud.CompositeIdRouter;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.cloud.DocRouter.Range;
+
+/**
+ * Maps documents to shards the same way as SolrCloud's default (compositeId) router, so
+ * that shard N built by us can be loaded directly into shard N of a collection that was
+ * created with the same number of shards.
+ *
+ * The routing value is normally the uniqueKey field (including any "shardKey!" prefix),
+ * or the router.field value if the collection was created with one.
+ */
+@SuppressWarnings("serial")
+public class SolrShardRouter implements Serializable {
+    
+    private int _numShards;
+    
+    private transient CompositeIdRouter _router;
+    private transient List<Range> _ranges;
+    
+    public SolrShardRouter(int numShards) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("Number of shards must be at least 1");
+        }
+        
+        _numShards = numShards;
+    }
+    
+    public int getNumShards() {
+        return _numShards;
+    }
+    
+    /**
+     * @param routingValue
+     * @return shard (0...numShards - 1) for a document with <routingValue>.
+     */
+    public int getShard(Object routingValue) {
+        if (routingValue == null) {
+            throw new IllegalArgumentException("Documents must have a routing value");
+        }
+        
+        if (_router == null) {
+            // Same split of the hash range as SolrCloud uses when creating the collection.
+            _router = (CompositeIdRouter)DocRouter.getDocRouter(CompositeIdRouter.NAME);
+            _ranges = _router.partitionRange(_numShards, _router.fullRange());
+        }
+        
+        int hash = _router.sliceHash(routingValue.toString(), null, null, null);
+        for (int i = 0; i < _numShards; i++) {
+            if (_ranges.get(i).includes(hash)) {
+                return i;
+            }
+        }
+        
+        throw new IllegalStateException(String.format("No shard found for hash %08x of %s", hash, routingValue));
+    }
+    
+    /**
+     * @param shard
+     * @return SolrCloud's name for <shard> (shard1...shardN), which is also the name of
+     *         the shard's output directory.
+     */
+    public static String getShardName(int shard) {
+        return "shard" + (shard + 1);
+    }
+}
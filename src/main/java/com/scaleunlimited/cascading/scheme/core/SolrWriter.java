@@ -2,153 +2,839 @@ package com.scaleunlimited.cascading.scheme.core;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LiveIndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.UpdateParams;
 import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.IndexDeletionPolicyWrapper;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.store.hdfs.HdfsDirectory;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.util.RefCounted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
 
-public abstract class SolrWriter {
-
-    // TODO KKr - make this configurable.
-    private static final int MAX_DOCS_PER_ADD = 500;
+import com.scaleunlimited.cascading.scheme.core.DocumentBatch.ReusableDocument;
+import com.scaleunlimited.cascading.scheme.core.IndexingMetrics.Metric;
 
+public abstract class SolrWriter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SolrWriter.class);
+    
+    // Number of times we try to reserve the latest commit point, before giving up.
+    private static final int MAX_RESERVE_ATTEMPTS = 10;
+    
+    // Min number of full batches waiting for the indexer threads, before add() blocks.
+    private static final int MIN_PENDING_BATCHES = 4;
+    
+    // Special batch that tells an indexer thread to terminate.
+    private static final DocumentBatch END_OF_BATCHES = new DocumentBatch(new String[0], 0);
+    
+    // System properties used by solrconfig.xml to select the directory implementation.
+    private static final String DIRECTORY_FACTORY_PROPERTY = "solr.directoryFactory";
+    private static final String LOCK_TYPE_PROPERTY = "solr.lock.type";
+    
     private KeepAliveHook _keepAlive;
-
+    private transient KeepAliveService _keepAliveService;
+    
     private Fields _sinkFields;
-    private int _maxSegments;
+    private SolrWriterOptions _options;
     
     private transient CoreContainer _coreContainer;
     private transient SolrServer _solrServer;
+    private transient SolrCore _solrCore;
+    private transient LuceneWriter _luceneWriter;
     private transient BinaryUpdateRequest _updateRequest;
-
+    private transient DocumentBatch _batch;
+    private transient String[] _fieldNames;
+    private transient FieldConverter[] _converters;
+    private transient AdaptiveBatchSizer _batchSizer;
+    private transient File _bulkLoadConfigFile;
+    private transient long _numDocs;
+    private transient long _startTime;
+    private transient IndexingMetrics _metrics;
+    private transient UniqueKeyFilter _dedupFilter;
+    private transient int _keyFieldPos;
+    
+    // Field values converted for the current batch, which get added to the metrics when
+    // the batch is flushed, to keep the per-document cost down.
+    private transient long _batchFieldValues;
+    
+    private transient BlockingQueue<DocumentBatch> _pendingBatches;
+    private transient Queue<DocumentBatch> _freeBatches;
+    private transient Thread[] _indexerThreads;
+    private transient volatile Throwable _indexingError;
+    
     public SolrWriter(KeepAliveHook keepAlive, Fields sinkFields, String dataDirPropertyName, String dataDir, File solrCoreDir, int maxSegments) throws IOException {
+        this(keepAlive, sinkFields, dataDirPropertyName, dataDir, solrCoreDir, maxSegments, false);
+    }
+    
+    public SolrWriter(KeepAliveHook keepAlive, Fields sinkFields, String dataDirPropertyName, String dataDir, File solrCoreDir, int maxSegments, boolean asyncIndexing) throws IOException {
+        this(keepAlive, sinkFields, dataDirPropertyName, dataDir, solrCoreDir, maxSegments, asyncIndexing, 1);
+    }
+    
+    public SolrWriter(KeepAliveHook keepAlive, Fields sinkFields, String dataDirPropertyName, String dataDir, File solrCoreDir, int maxSegments, boolean asyncIndexing, int numIndexerThreads) throws IOException {
+        this(keepAlive, sinkFields, dataDirPropertyName, dataDir, solrCoreDir, maxSegments, asyncIndexing, numIndexerThreads, false);
+    }
+    
+    public SolrWriter(KeepAliveHook keepAlive, Fields sinkFields, String dataDirPropertyName, String dataDir, File solrCoreDir, int maxSegments, boolean asyncIndexing, int numIndexerThreads, boolean directUpdates) throws IOException {
+        this(keepAlive, sinkFields, dataDirPropertyName, dataDir, solrCoreDir, maxSegments, asyncIndexing, numIndexerThreads, directUpdates, false);
+    }
+    
+    /**
+     * See the matching SolrWriterOptions setters for details of each setting.
+     */
+    public SolrWriter(KeepAliveHook keepAlive, Fields sinkFields, String dataDirPropertyName, String dataDir, File solrCoreDir, int maxSegments, boolean asyncIndexing, int numIndexerThreads, boolean directUpdates, boolean luceneIndexing) throws IOException {
+        this(keepAlive, sinkFields, dataDirPropertyName, dataDir, solrCoreDir, new SolrWriterOptions()
+            .setMaxSegments(maxSegments)
+            .setAsyncIndexing(asyncIndexing)
+            .setNumIndexerThreads(numIndexerThreads)
+            .setDirectUpdates(directUpdates)
+            .setLuceneIndexing(luceneIndexing));
+    }
+    
+    public SolrWriter(KeepAliveHook keepAlive, Fields sinkFields, String dataDirPropertyName, String dataDir, File solrCoreDir, SolrWriterOptions options) throws IOException {
+        this(keepAlive, sinkFields, dataDirPropertyName, dataDir, solrCoreDir, options, new Configuration());
+    }
+    
+    /**
+     * @param conf Hadoop configuration for the job, used to access the FileSystem when
+     *        writing the index directly to a Hadoop path (see SolrWriterOptions.setHdfsDirectory).
+     *        Note that a Solr core uses its own configuration, via HdfsDirectoryFactory.
+     */
+    public SolrWriter(KeepAliveHook keepAlive, Fields sinkFields, String dataDirPropertyName, String dataDir, File solrCoreDir, SolrWriterOptions options, Configuration conf) throws IOException {
         _keepAlive = keepAlive;
         _sinkFields = sinkFields;
-        _maxSegments = maxSegments;
         
-        _updateRequest = new BinaryUpdateRequest();
-        // Set up overwrite=false. See https://issues.apache.org/jira/browse/SOLR-653
-        // for details why we have to do it this way.
-        _updateRequest.setParam(UpdateParams.OVERWRITE, Boolean.toString(false));
-
+        // Make our own copy, so the caller can't change settings out from under us.
+        _options = new SolrWriterOptions(options);
+        
+        _updateRequest = makeUpdateRequest();
+        _metrics = new IndexingMetrics();
+        makeDedupFilter(solrCoreDir);
+        
+        if (_options.isHdfsDirectory()) {
+            // Solr needs a fully qualified path, to know that it's not relative to the core.
+            Path dataPath = new Path(dataDir);
+            dataDir = dataPath.getFileSystem(conf).makeQualified(dataPath).toString();
+        }
+        
+        if (_options.isLuceneIndexing()) {
+            // Solr expects to find the index in an "index" subdir of the data dir.
+            Directory indexDir;
+            if (_options.isHdfsDirectory()) {
+                indexDir = new HdfsDirectory(new Path(dataDir, "index"), conf);
+            } else {
+                indexDir = FSDirectory.open(new File(dataDir, "index"));
+            }
+            
+            long startTime = System.currentTimeMillis();
+            _luceneWriter = new LuceneWriter(solrCoreDir, indexDir, _options.getNumIndexerThreads(), LuceneWriter.DEFAULT_RAM_BUFFER_SIZE_MB);
+            _luceneWriter.tune(_options.getRamBufferSizeMB(), _options.getMaxMergeThreads());
+            _metrics.add(Metric.CORE_STARTUP_TIME, System.currentTimeMillis() - startTime);
+            makeConverters(_luceneWriter.getSchema());
+        } else {
+            startSolrServer(dataDirPropertyName, dataDir, solrCoreDir);
+            makeConverters(_solrCore.getLatestSchema());
+        }
+        
+        if (_options.isAdaptiveBatching()) {
+            _batchSizer = new AdaptiveBatchSizer(_options.getMaxDocsPerBatch());
+        }
+        
+        _batch = makeBatch();
+        
+        _keepAliveService = new KeepAliveService(String.format("SolrWriter (%s)", dataDir), _keepAlive, _options.getStallTimeout());
+        
+        if (_options.isAsyncIndexing()) {
+            int numIndexerThreads = _options.getNumIndexerThreads();
+            _freeBatches = new ConcurrentLinkedQueue<DocumentBatch>();
+            _pendingBatches = new ArrayBlockingQueue<DocumentBatch>(Math.max(MIN_PENDING_BATCHES, 2 * numIndexerThreads));
+            _indexerThreads = new Thread[numIndexerThreads];
+            for (int i = 0; i < numIndexerThreads; i++) {
+                _indexerThreads[i] = new IndexerThread(i);
+                _indexerThreads[i].start();
+            }
+        }
+        
+        _numDocs = 0;
+        _startTime = System.currentTimeMillis();
+    }
+    
+    private void startSolrServer(String dataDirPropertyName, String dataDir, File solrCoreDir) throws IOException {
+        // These only need to be set while the core is loading, and we don't want them
+        // to affect any other cores created by this JVM.
+        String oldDirectoryFactory = System.getProperty(DIRECTORY_FACTORY_PROPERTY);
+        String oldLockType = System.getProperty(LOCK_TYPE_PROPERTY);
+        
         // Fire up an embedded Solr server
         try {
             System.setProperty(dataDirPropertyName, dataDir);
             System.setProperty("enable.special-handlers", "false"); // All we need is the update request handler
             System.setProperty("enable.cache-warming", "false"); // We certainly don't need to warm the cache
-            File solrHome = SolrSchemeUtil.makeTempSolrHome(solrCoreDir);
+            
+            if (_options.isHdfsDirectory()) {
+                System.setProperty(DIRECTORY_FACTORY_PROPERTY, HadoopDirectoryFactory.class.getName());
+                System.setProperty(LOCK_TYPE_PROPERTY, "hdfs");
+            }
+            
+            if (_options.isBulkLoadConfig()) {
+                _bulkLoadConfigFile = File.createTempFile("solrconfig-bulk-", ".xml");
+                double ramBufferSizeMB = (_options.getRamBufferSizeMB() > 0) ? _options.getRamBufferSizeMB() : LuceneWriter.DEFAULT_RAM_BUFFER_SIZE_MB;
+                BulkLoadConfig.write(solrCoreDir, _bulkLoadConfigFile, ramBufferSizeMB, _options.isHdfsDirectory());
+            }
+            
+            long startTime = System.currentTimeMillis();
+            File solrHome = SolrSchemeUtil.makeTempSolrHome(solrCoreDir, _bulkLoadConfigFile);
             _coreContainer = new CoreContainer(solrHome.getAbsolutePath());
             _coreContainer.load();
             _solrServer = new EmbeddedSolrServer(_coreContainer, solrCoreDir.getName());
+            
+            // We hold a reference to the core until cleanup(), when we close it. It's
+            // used for direct updates, and to get at the core's commit points.
+            _solrCore = _coreContainer.getCore(solrCoreDir.getName());
+            if (_solrCore == null) {
+                throw new IllegalStateException("Can't find Solr core " + solrCoreDir.getName());
+            }
+            
+            long startupTime = System.currentTimeMillis() - startTime;
+            _metrics.add(Metric.CORE_STARTUP_TIME, startupTime);
+            LOGGER.info(String.format("Started Solr core %s in %dms, using %s config", solrCoreDir.getName(), startupTime, getConfigName()));
+            
+            if ((_options.getRamBufferSizeMB() > 0) || (_options.getMaxMergeThreads() > 0)) {
+                RefCounted<IndexWriter> indexWriter = _solrCore.getSolrCoreState().getIndexWriter(_solrCore);
+                try {
+                    IndexTuning.apply(indexWriter.get(), _options.getRamBufferSizeMB(), _options.getMaxMergeThreads());
+                } finally {
+                    indexWriter.decref();
+                }
+            }
         } catch (Exception e) {
             if (_coreContainer != null) {
                 _coreContainer.shutdown();
             }
             
             throw new IOException(e);
+        } finally {
+            if (_options.isHdfsDirectory()) {
+                restoreProperty(DIRECTORY_FACTORY_PROPERTY, oldDirectoryFactory);
+                restoreProperty(LOCK_TYPE_PROPERTY, oldLockType);
+            }
         }
     }
     
-    public void add(Tuple value) throws IOException {
-        SolrInputDocument doc = new SolrInputDocument();
-
+    private static void restoreProperty(String name, String value) {
+        if (value == null) {
+            System.clearProperty(name);
+        } else {
+            System.setProperty(name, value);
+        }
+    }
+    
+    /**
+     * Figure out up front how to convert the value for each sink field, based on
+     * the field's type in the Solr schema.
+     * 
+     * @param schema
+     */
+    private void makeConverters(IndexSchema schema) {
+        _fieldNames = new String[_sinkFields.size()];
+        _converters = new FieldConverter[_sinkFields.size()];
+        
+        // The caller can reuse a binary value (e.g. a BytesWritable) for the next tuple,
+        // so unless each document gets indexed before add() returns, we need a copy.
+        boolean copyBinary = _options.isAsyncIndexing() || (_options.getMaxDocsPerBatch() > 1);
+        
         for (int i = 0; i < _sinkFields.size(); i++) {
-            String name = (String)_sinkFields.get(i);
+            _fieldNames[i] = _sinkFields.get(i).toString();
+            _converters[i] = FieldConverter.forField(schema.getFieldOrNull(_fieldNames[i]), copyBinary);
+        }
+    }
+    
+    /**
+     * If we're deduplicating, set up tracking of the uniqueKey values we've seen. This
+     * happens before the core gets loaded, so that bad settings fail fast.
+     * 
+     * @param solrCoreDir
+     * @throws IOException
+     */
+    private void makeDedupFilter(File solrCoreDir) throws IOException {
+        DedupMode dedupMode = _options.getDedupMode();
+        if (dedupMode == DedupMode.NONE) {
+            return;
+        }
+        
+        if ((dedupMode == DedupMode.REPLACE) && _options.isAsyncIndexing() && (_options.getNumIndexerThreads() > 1)) {
+            throw new IllegalArgumentException("Replacing duplicates can't be done with more than one indexer thread");
+        }
+        
+        SchemaField keyField = SolrSchemeUtil.getSchema(solrCoreDir).getUniqueKeyField();
+        if (keyField == null) {
+            throw new IllegalArgumentException("Schema must have a uniqueKey field to deduplicate documents");
+        }
+        
+        _keyFieldPos = -1;
+        for (int i = 0; i < _sinkFields.size(); i++) {
+            if (_sinkFields.get(i).toString().equals(keyField.getName())) {
+                _keyFieldPos = i;
+                break;
+            }
+        }
+        
+        if (_keyFieldPos == -1) {
+            throw new IllegalArgumentException(String.format("Sink fields must include uniqueKey field %s to deduplicate documents", keyField.getName()));
+        }
+        
+        _dedupFilter = new UniqueKeyFilter();
+    }
+    
+    private DocumentBatch makeBatch() {
+        return new DocumentBatch(_fieldNames, getMaxDocsPerBatch());
+    }
+    
+    private int getMaxDocsPerBatch() {
+        if (_batchSizer != null) {
+            return _batchSizer.getDocsPerBatch();
+        } else {
+            return _options.getMaxDocsPerBatch();
+        }
+    }
+    
+    private BinaryUpdateRequest makeUpdateRequest() {
+        BinaryUpdateRequest result = new BinaryUpdateRequest();
+        
+        // Set up overwrite=false. See https://issues.apache.org/jira/browse/SOLR-653
+        // for details why we have to do it this way.
+        result.setParam(UpdateParams.OVERWRITE, Boolean.toString(false));
+        return result;
+    }
+    
+    public void add(Tuple value) throws IOException {
+        // Fail fast if the indexer thread has run into trouble.
+        checkIndexingError();
+        
+        // Check the key first, so we don't convert documents that get dropped.
+        boolean isDuplicate = (_dedupFilter != null) && isDuplicate(value);
+        if (isDuplicate && (_options.getDedupMode() == DedupMode.DROP)) {
+            return;
+        }
+        
+        ReusableDocument doc = _batch.newDocument();
+        long docSize = 0;
+        int numValues = 0;
+        
+        for (int i = 0; i < _fieldNames.length; i++) {
+            FieldConverter converter = _converters[i];
             Object fieldValue = value.getObject(i);
-            if (fieldValue == null) {
-                // Don't add null values.
-            } else if (fieldValue instanceof Tuple) {
-                Tuple list = (Tuple)fieldValue;
-                for (int j = 0; j < list.size(); j++) {
-                    safeAdd(doc, name, list.getObject(j).toString());
+            
+            try {
+                if (fieldValue == null) {
+                    // Don't add null values.
+                } else if (fieldValue instanceof Tuple) {
+                    Tuple list = (Tuple)fieldValue;
+                    for (int j = 0; j < list.size(); j++) {
+                        Object listValue = list.getObject(j);
+                        if (listValue != null) {
+                            docSize += safeAdd(doc, i, converter, listValue);
+                            numValues += 1;
+                        }
+                    }
+                } else {
+                    docSize += safeAdd(doc, i, converter, fieldValue);
+                    numValues += 1;
                 }
-            } else if (fieldValue instanceof byte[]) {
-                safeAdd(doc, name, fieldValue);
-            } else if (fieldValue instanceof BytesWritable) {
-                BytesWritable bw = (BytesWritable)fieldValue;
-                byte[] binaryData = bw.getBytes();
+            } catch (IllegalArgumentException e) {
+                _batch.discardLastDocument();
+                throw new IOException(String.format("Can't convert value for field %s: %s", _fieldNames[i], e.getMessage()), e);
+            }
+        }
+        
+        if (isDuplicate) {
+            _batch.markLastDocumentReplacing();
+            _metrics.add(Metric.DUPLICATES_REPLACED, 1);
+        }
+        
+        _batch.addEstimatedSize(docSize);
+        _batchFieldValues += numValues;
+        _numDocs += 1;
+        flushInputDocuments(false);
+    }
+    
+    /**
+     * Check if we've already seen the key for <value>, and remember it if not.
+     * 
+     * @param value tuple for the document
+     * @return true if the document is a duplicate.
+     */
+    private boolean isDuplicate(Tuple value) {
+        Object key = value.getObject(_keyFieldPos);
+        
+        // Solr will complain about a missing key, so let it through.
+        if ((key == null) || _dedupFilter.add(key.toString())) {
+            return false;
+        }
+        
+        if (_options.getDedupMode() == DedupMode.DROP) {
+            LOGGER.debug(String.format("Dropping document with duplicate key %s", key));
+            _metrics.add(Metric.DUPLICATES_DROPPED, 1);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Convert and add <value> to the document, if it's not null.
+     * 
+     * @return estimated size of the converted value.
+     */
+    private int safeAdd(ReusableDocument doc, int fieldIndex, FieldConverter converter, Object value) {
+        if (value == null) {
+            return 0;
+        }
+        
+        Object convertedValue = converter.convert(value);
+        doc.addValue(fieldIndex, convertedValue);
+        return FieldConverter.estimateSize(convertedValue);
+    }
+    
+    /**
+     * @return true if the current batch has hit the document count or byte size limit.
+     */
+    private boolean isBatchFull() {
+        if (_batch.size() >= getMaxDocsPerBatch()) {
+            return true;
+        }
+        
+        long maxBytesPerBatch = _options.getMaxBytesPerBatch();
+        return (maxBytesPerBatch > 0) && (_batch.getEstimatedSize() >= maxBytesPerBatch);
+    }
+    
+    private void flushInputDocuments(boolean force) throws IOException {
+        if ((force && (_batch.size() > 0)) || isBatchFull()) {
+            _metrics.add(Metric.DOCS_ADDED, _batch.size());
+            _metrics.add(Metric.FIELD_VALUES_CONVERTED, _batchFieldValues);
+            _metrics.add(Metric.BYTES_CONVERTED, _batch.getEstimatedSize());
+            _batchFieldValues = 0;
+            
+            if (_options.isAsyncIndexing()) {
+                // The indexer thread now owns this batch, so we need another one.
+                queueBatch(_batch);
                 
-                // See if the array we get back is longer than the actual data we've got.
-                if (binaryData.length != bw.getLength()) {
-                    byte[] truncatedData = new byte[bw.getLength()];
-                    System.arraycopy(binaryData, 0, truncatedData, 0, bw.getLength());
-                    safeAdd(doc, name, truncatedData);
+                _batch = _freeBatches.poll();
+                if (_batch == null) {
+                    _batch = makeBatch();
+                }
+            } else {
+                try {
+                    indexBatch(_updateRequest, _batch);
+                } finally {
+                    _batch.clear();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Hand off the batch to the indexer threads. If they're falling behind, we'll block
+     * here until there's room in the queue, which keeps us from running out of memory.
+     *
+     * @param batch documents to be indexed
+     * @throws IOException if the indexer thread has failed.
+     */
+    private void queueBatch(DocumentBatch batch) throws IOException {
+        try {
+            while (!_pendingBatches.offer(batch, 1, TimeUnit.SECONDS)) {
+                // If an indexer thread died, we might never get room in the queue.
+                checkIndexingError();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queuing documents for indexing", e);
+        }
+    }
+    
+    private void indexBatch(BinaryUpdateRequest updateRequest, DocumentBatch documents) throws IOException {
+        _keepAliveService.startWork();
+        
+        try {
+            List<SolrInputDocument> batch = documents.getDocuments();
+            long startTime = System.currentTimeMillis();
+            
+            if (_options.isLuceneIndexing()) {
+                if (documents.getNumReplacements() == 0) {
+                    _luceneWriter.add(batch);
                 } else {
-                    safeAdd(doc, name, binaryData);
+                    for (SolrInputDocument doc : batch) {
+                        if (((ReusableDocument)doc).isReplacing()) {
+                            _luceneWriter.update(doc);
+                        } else {
+                            _luceneWriter.add(doc);
+                        }
+                    }
                 }
+            } else if (_options.isDirectUpdates()) {
+                processBatch(batch);
+            } else if (documents.getNumReplacements() == 0) {
+                updateRequest.add(batch);
+                updateRequest.process(_solrServer);
             } else {
-                safeAdd(doc, name, fieldValue.toString());
+                processWithReplacements(updateRequest, batch);
+            }
+            
+            long deltaTime = System.currentTimeMillis() - startTime;
+            if (_batchSizer != null) {
+                _batchSizer.batchIndexed(batch.size(), deltaTime);
             }
+            
+            _metrics.batchIndexed(deltaTime);
+            _keepAliveService.progress();
+            _metrics.publish(_keepAlive);
+        } catch (SolrServerException e) {
+            throw new IOException(e);
+        } finally {
+            updateRequest.clear();
+            _keepAliveService.endWork();
         }
-
-        _updateRequest.add(doc);
-        flushInputDocuments(false);
     }
     
-    private void safeAdd(SolrInputDocument doc, String fieldName, Object value) {
-        if (value != null) {
-            doc.addField(fieldName, value);
+    /**
+     * Send the documents that don't replace anything with overwrite=false as usual, and
+     * then the ones that do in a separate request with overwrite=true, so only they pay
+     * for the delete-by-term. A replacing document always comes after the document that
+     * it replaces, so this doesn't change the result.
+     * 
+     * @param updateRequest
+     * @param batch documents to be indexed
+     * @throws IOException
+     * @throws SolrServerException
+     */
+    private void processWithReplacements(BinaryUpdateRequest updateRequest, List<SolrInputDocument> batch) throws IOException, SolrServerException {
+        List<SolrInputDocument> replacements = new ArrayList<SolrInputDocument>();
+        for (SolrInputDocument doc : batch) {
+            if (((ReusableDocument)doc).isReplacing()) {
+                replacements.add(doc);
+            } else {
+                updateRequest.add(doc);
+            }
+        }
+        
+        if (replacements.size() < batch.size()) {
+            updateRequest.process(_solrServer);
+            updateRequest.clear();
+        }
+        
+        updateRequest.add(replacements);
+        updateRequest.setParam(UpdateParams.OVERWRITE, Boolean.toString(true));
+        
+        try {
+            updateRequest.process(_solrServer);
+        } finally {
+            updateRequest.setParam(UpdateParams.OVERWRITE, Boolean.toString(false));
         }
     }
     
-    private void flushInputDocuments(boolean force) throws IOException {
-        if ((force && (_updateRequest.getDocListSize() > 0)) || (_updateRequest.getDocListSize() >= MAX_DOCS_PER_ADD)) {
+    /**
+     * Send the documents straight to the core's update processor chain, which avoids
+     * the javabin serialize/parse round trip of going through the embedded server.
+     * 
+     * @param batch documents to be indexed
+     * @throws IOException
+     */
+    private void processBatch(List<SolrInputDocument> batch) throws IOException {
+        SolrQueryRequest request = new LocalSolrQueryRequest(_solrCore, new ModifiableSolrParams());
+        SolrQueryResponse response = new SolrQueryResponse();
+        
+        // Some update processors & field types expect to find the current request here.
+        SolrRequestInfo.setRequestInfo(new SolrRequestInfo(request, response));
+        
+        try {
+            UpdateRequestProcessor processor = _solrCore.getUpdateProcessingChain(null).createProcessor(request, response);
             
-            // TODO do we need to do this?
-            Thread reporterThread = startProgressThread();
-
-            try {
-                _updateRequest.process(_solrServer);
+            for (SolrInputDocument doc : batch) {
+                AddUpdateCommand cmd = new AddUpdateCommand(request);
+                cmd.solrDoc = doc;
+                
+                // Same as overwrite=false for the update request, see SOLR-653, unless
+                // the document has to replace one we've already indexed.
+                cmd.overwrite = ((ReusableDocument)doc).isReplacing();
+                processor.processAdd(cmd);
+            }
+            
+            processor.finish();
+            
+            if (response.getException() != null) {
+                throw new IOException(response.getException());
+            }
+        } finally {
+            SolrRequestInfo.clearRequestInfo();
+            request.close();
+        }
+    }
+    
+    private void checkIndexingError() throws IOException {
+        if (_indexingError != null) {
+            throw new IOException("Error while indexing documents", _indexingError);
+        }
+    }
+    
+    private void stopIndexerThreads() throws IOException {
+        for (int i = 0; i < _indexerThreads.length; i++) {
+            queueBatch(END_OF_BATCHES);
+        }
+        
+        try {
+            for (Thread indexerThread : _indexerThreads) {
+                indexerThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for indexing to complete", e);
+        }
+        
+        checkIndexingError();
+    }
+    
+    private void commitAndFinish() throws IOException {
+        _keepAliveService.startWork();
+        IndexFinalizer finalizer = _options.getFinalizer();
+        
+        try {
+            long startTime = System.currentTimeMillis();
+            int numSegments;
+            
+            if (_options.isLuceneIndexing()) {
+                numSegments = _luceneWriter.finish(finalizer);
+            } else {
+                _solrServer.commit(true, true);
+                _metrics.add(Metric.COMMIT_TIME, System.currentTimeMillis() - startTime);
+                _keepAliveService.progress();
                 
-                if (force) {
+                // Use the core's index writer directly, since Solr's optimize is the
+                // only merge option it supports.
+                startTime = System.currentTimeMillis();
+                RefCounted<IndexWriter> indexWriter = _solrCore.getSolrCoreState().getIndexWriter(_solrCore);
+                try {
+                    finalizer.merge(indexWriter.get(), _solrCore.getLatestSchema());
                     _solrServer.commit(true, true);
-                    _solrServer.optimize(true, true, _maxSegments);
+                    numSegments = IndexFinalizer.countSegments(indexWriter.get().getDirectory());
+                } finally {
+                    indexWriter.decref();
                 }
-            } catch (SolrServerException e) {
-                throw new IOException(e);
-            } finally {
-                _updateRequest.clear();
-                reporterThread.interrupt();
             }
+            
+            long deltaTime = System.currentTimeMillis() - startTime;
+            _metrics.add(Metric.FINALIZE_TIME, deltaTime);
+            LOGGER.info(String.format("Finished index (%s) in %dms, with %d segments", finalizer, deltaTime, numSegments));
+        } catch (SolrServerException e) {
+            throw new IOException(e);
+        } finally {
+            _keepAliveService.endWork();
+        }
+    }
+    
+    /**
+     * Commit everything that's been indexed so far (without opening a searcher), and
+     * return the resulting commit point. The files referenced by the commit won't be
+     * deleted, even if their segments get merged away, until releaseCommit() is called.
+     * 
+     * Documents that haven't been sent to Solr yet (still in a batch, or waiting for
+     * an indexer thread) aren't included.
+     * 
+     * @return the reserved commit point.
+     * @throws IOException
+     */
+    public IndexCommit reserveCommit() throws IOException {
+        long startTime = System.currentTimeMillis();
+        
+        if (_options.isLuceneIndexing()) {
+            IndexCommit result = _luceneWriter.reserveCommit();
+            _metrics.add(Metric.COMMIT_TIME, System.currentTimeMillis() - startTime);
+            return result;
+        }
+        
+        UpdateRequest commitRequest = new UpdateRequest();
+        commitRequest.setAction(AbstractUpdateRequest.ACTION.COMMIT, true, false);
+        commitRequest.setParam(UpdateParams.OPEN_SEARCHER, Boolean.toString(false));
+        
+        try {
+            commitRequest.process(_solrServer);
+        } catch (SolrServerException e) {
+            throw new IOException(e);
+        }
+        
+        _metrics.add(Metric.COMMIT_TIME, System.currentTimeMillis() - startTime);
+        
+        // An autoCommit could delete the latest commit point before we get to save it. If
+        // so we try again with the newer commit point, which has everything that ours did.
+        IndexDeletionPolicyWrapper deletionPolicy = _solrCore.getDeletionPolicy();
+        for (int i = 0; i < MAX_RESERVE_ATTEMPTS; i++) {
+            IndexCommit result = deletionPolicy.getLatestCommit();
+            long generation = result.getGeneration();
+            deletionPolicy.saveCommitPoint(generation);
+            
+            // Once saved, the commit point can't be deleted. But it might already be gone.
+            if (!result.isDeleted() && (deletionPolicy.getCommitPoint(generation) == result)) {
+                return result;
+            }
+            
+            deletionPolicy.releaseCommitPoint(generation);
         }
+        
+        throw new IOException(String.format("Unable to reserve a commit point after %d attempts", MAX_RESERVE_ATTEMPTS));
+    }
     
+    /**
+     * Let the files for <commit> get deleted, once they're no longer needed.
+     * 
+     * @param commit commit point returned by reserveCommit()
+     * @throws IOException
+     */
+    public void releaseCommit(IndexCommit commit) throws IOException {
+        if (_options.isLuceneIndexing()) {
+            _luceneWriter.releaseCommit(commit);
+        } else {
+            _solrCore.getDeletionPolicy().releaseCommitPoint(commit.getGeneration());
+        }
     }
 
     public void cleanup() throws IOException {
-        flushInputDocuments(true);
-        _coreContainer.shutdown();
-        _solrServer = null;
+        try {
+            flushInputDocuments(true);
+            
+            if (_options.isAsyncIndexing()) {
+                stopIndexerThreads();
+            }
+            
+            commitAndFinish();
+            
+            long deltaTime = Math.max(1, System.currentTimeMillis() - _startTime);
+            LOGGER.info(String.format("Indexed %d documents in %dms (%.1f docs/sec), using %s config", _numDocs, deltaTime, (_numDocs * 1000.0) / deltaTime, getConfigName()));
+            LOGGER.info("Indexing metrics: " + _metrics);
+            
+            if (_dedupFilter != null) {
+                LOGGER.info(String.format("Tracked %d unique keys using %dKB (%d fingerprint collisions)", _dedupFilter.size(), _dedupFilter.getMemorySize() / 1024, _dedupFilter.getNumCollisions()));
+            }
+        } finally {
+            _metrics.publish(_keepAlive);
+            _keepAliveService.close();
+            
+            if (_bulkLoadConfigFile != null) {
+                _bulkLoadConfigFile.delete();
+                _bulkLoadConfigFile = null;
+            }
+            
+            if (_options.isLuceneIndexing()) {
+                _luceneWriter.close();
+                _luceneWriter = null;
+            } else {
+                if (_solrCore != null) {
+                    _solrCore.close();
+                    _solrCore = null;
+                }
+                
+                _coreContainer.shutdown();
+                _solrServer = null;
+            }
+        }
+    }
+    
+    /**
+     * @return current settings of the index writer that we're using, for testing.
+     * @throws IOException
+     */
+    LiveIndexWriterConfig getIndexWriterConfig() throws IOException {
+        if (_options.isLuceneIndexing()) {
+            return _luceneWriter.getConfig();
+        }
+        
+        RefCounted<IndexWriter> indexWriter = _solrCore.getSolrCoreState().getIndexWriter(_solrCore);
+        try {
+            return indexWriter.get().getConfig();
+        } finally {
+            indexWriter.decref();
+        }
     }
     
     /**
-     * Fire off a thread that repeatedly calls Cascading to tell it we're making progress.
-     * @return
+     * @return counts and timings for everything this writer has done so far.
      */
-    private Thread startProgressThread() {
-        Thread result = new Thread() {
-            @Override
-            public void run() {
-                while (!isInterrupted()) {
-                    _keepAlive.keepAlive();
+    public IndexingMetrics getMetrics() {
+        return _metrics;
+    }
+    
+    private String getConfigName() {
+        if (_options.isLuceneIndexing()) {
+            return "Lucene";
+        } else if (_options.isBulkLoadConfig()) {
+            return "bulk load";
+        } else {
+            return "original";
+        }
+    }
+    
+    /**
+     * Thread that pulls batches of documents off of the queue and sends them to Solr,
+     * until it gets the end of batches marker. Any error is saved away, so that the
+     * next call to add() or cleanup() will report it. Each thread has its own update
+     * request, as these aren't thread-safe.
+     */
+    private class IndexerThread extends Thread {
+        
+        public IndexerThread(int threadIndex) {
+            super("SolrWriter indexer #" + threadIndex);
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            BinaryUpdateRequest updateRequest = makeUpdateRequest();
+            
+            try {
+                while (true) {
+                    DocumentBatch batch = _pendingBatches.take();
+                    if (batch == END_OF_BATCHES) {
+                        break;
+                    }
                     
                     try {
-                        sleep(10 * 1000);
-                    } catch (InterruptedException e) {
-                        interrupt();
+                        indexBatch(updateRequest, batch);
+                    } finally {
+                        batch.clear();
+                        _freeBatches.add(batch);
                     }
                 }
+            } catch (Throwable t) {
+                _indexingError = t;
             }
-        };
-        
-        result.start();
-        return result;
+        }
     }
-
 }
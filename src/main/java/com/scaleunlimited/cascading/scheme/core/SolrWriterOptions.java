@@ -0,0 +1,425 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.Serializable;
+
+/**
+ * Settings that control how SolrWriter builds the index. The schemes hold on to an
+ * instance of this (so it gets serialized with the flow), and in Hadoop mode each
+ * setting is passed to the tasks via a SolrOutputFormat JobConf key.
+ */
+@SuppressWarnings("serial")
+public class SolrWriterOptions implements Serializable {
+    
+    public static final int DEFAULT_MAX_SEGMENTS = 1;
+    public static final int DEFAULT_NUM_INDEXER_THREADS = 1;
+    public static final int DEFAULT_MAX_DOCS_PER_BATCH = 500;
+    public static final long DEFAULT_MAX_BYTES_PER_BATCH = 32 * 1024 * 1024L;
+    public static final int DEFAULT_NUM_SUB_INDEXES = 1;
+    public static final long DEFAULT_STREAMING_UPLOAD_INTERVAL = 0;
+    public static final int DEFAULT_NUM_UPLOAD_THREADS = 4;
+    public static final long DEFAULT_STALL_TIMEOUT = KeepAliveService.DEFAULT_STALL_TIMEOUT;
+    
+    private int _maxSegments = 0;
+    private boolean _asyncIndexing = false;
+    private int _numIndexerThreads = DEFAULT_NUM_INDEXER_THREADS;
+    private boolean _directUpdates = false;
+    private boolean _luceneIndexing = false;
+    private int _maxDocsPerBatch = DEFAULT_MAX_DOCS_PER_BATCH;
+    private long _maxBytesPerBatch = DEFAULT_MAX_BYTES_PER_BATCH;
+    private boolean _adaptiveBatching = false;
+    private int _numSubIndexes = DEFAULT_NUM_SUB_INDEXES;
+    private long _streamingUploadInterval = DEFAULT_STREAMING_UPLOAD_INTERVAL;
+    private int _numUploadThreads = DEFAULT_NUM_UPLOAD_THREADS;
+    private boolean _verifyUploads = false;
+    private boolean _hdfsDirectory = false;
+    private boolean _bulkLoadConfig = false;
+    private boolean _autoTune = false;
+    private double _ramBufferSizeMB = 0;
+    private int _maxMergeThreads = 0;
+    private long _stallTimeout = DEFAULT_STALL_TIMEOUT;
+    private DedupMode _dedupMode = DedupMode.NONE;
+    private IndexFinalizer _finalizer = null;
+    
+    public SolrWriterOptions() {
+    }
+    
+    public SolrWriterOptions(SolrWriterOptions options) {
+        _maxSegments = options._maxSegments;
+        _asyncIndexing = options._asyncIndexing;
+        _numIndexerThreads = options._numIndexerThreads;
+        _directUpdates = options._directUpdates;
+        _luceneIndexing = options._luceneIndexing;
+        _maxDocsPerBatch = options._maxDocsPerBatch;
+        _maxBytesPerBatch = options._maxBytesPerBatch;
+        _adaptiveBatching = options._adaptiveBatching;
+        _numSubIndexes = options._numSubIndexes;
+        _streamingUploadInterval = options._streamingUploadInterval;
+        _numUploadThreads = options._numUploadThreads;
+        _verifyUploads = options._verifyUploads;
+        _hdfsDirectory = options._hdfsDirectory;
+        _bulkLoadConfig = options._bulkLoadConfig;
+        _autoTune = options._autoTune;
+        _ramBufferSizeMB = options._ramBufferSizeMB;
+        _maxMergeThreads = options._maxMergeThreads;
+        _stallTimeout = options._stallTimeout;
+        _dedupMode = options._dedupMode;
+        _finalizer = options._finalizer;
+    }
+    
+    public boolean hasMaxSegments() {
+        return _maxSegments > 0;
+    }
+    
+    /**
+     * @return the max segments that were set, or DEFAULT_MAX_SEGMENTS if none was set. Note
+     *         that in Hadoop mode an unset value means SolrOutputFormat's default is used.
+     */
+    public int getMaxSegments() {
+        return hasMaxSegments() ? _maxSegments : DEFAULT_MAX_SEGMENTS;
+    }
+    
+    /**
+     * @param maxSegments number of segments to merge down to, once all documents have been
+     *        added. Only used if no finalizer has been set.
+     */
+    public SolrWriterOptions setMaxSegments(int maxSegments) {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("Max segments must be at least 1");
+        }
+        
+        _maxSegments = maxSegments;
+        return this;
+    }
+    
+    public boolean isAsyncIndexing() {
+        return _asyncIndexing || (_numIndexerThreads > 1);
+    }
+    
+    /**
+     * @param asyncIndexing if true, documents are handed off to a background thread
+     *        for indexing, so tuple conversion on the calling thread overlaps with
+     *        analysis and indexing by Solr.
+     */
+    public SolrWriterOptions setAsyncIndexing(boolean asyncIndexing) {
+        _asyncIndexing = asyncIndexing;
+        return this;
+    }
+    
+    public int getNumIndexerThreads() {
+        return _numIndexerThreads;
+    }
+    
+    /**
+     * @param numIndexerThreads number of threads concurrently sending batches to the
+     *        (single) Solr core. Values greater than 1 imply asyncIndexing. Note that
+     *        Lucene limits concurrent adds to the core's indexConfig/maxIndexingThreads.
+     */
+    public SolrWriterOptions setNumIndexerThreads(int numIndexerThreads) {
+        if (numIndexerThreads < 1) {
+            throw new IllegalArgumentException("Number of indexer threads must be at least 1");
+        }
+        
+        _numIndexerThreads = numIndexerThreads;
+        return this;
+    }
+    
+    public boolean isDirectUpdates() {
+        return _directUpdates;
+    }
+    
+    /**
+     * @param directUpdates if true, documents are passed directly to the core's default
+     *        update processor chain, instead of being serialized to javabin and then
+     *        parsed again by the embedded server's update request handler. Note that
+     *        any update.chain param in the /update handler's defaults is ignored.
+     */
+    public SolrWriterOptions setDirectUpdates(boolean directUpdates) {
+        _directUpdates = directUpdates;
+        return this;
+    }
+    
+    public boolean isLuceneIndexing() {
+        return _luceneIndexing;
+    }
+    
+    /**
+     * @param luceneIndexing if true, no Solr core is started. Documents are converted
+     *        using the core's schema and written with a bulk load tuned Lucene IndexWriter
+     *        (see LuceneWriter). Update processors are skipped, and directUpdates is ignored.
+     */
+    public SolrWriterOptions setLuceneIndexing(boolean luceneIndexing) {
+        _luceneIndexing = luceneIndexing;
+        return this;
+    }
+    
+    public int getMaxDocsPerBatch() {
+        return _maxDocsPerBatch;
+    }
+    
+    /**
+     * @param maxDocsPerBatch max number of documents sent to Solr in one request. With
+     *        adaptive batching, this is the starting point.
+     */
+    public SolrWriterOptions setMaxDocsPerBatch(int maxDocsPerBatch) {
+        if (maxDocsPerBatch < 1) {
+            throw new IllegalArgumentException("Max docs per batch must be at least 1");
+        }
+        
+        _maxDocsPerBatch = maxDocsPerBatch;
+        return this;
+    }
+    
+    public long getMaxBytesPerBatch() {
+        return _maxBytesPerBatch;
+    }
+    
+    /**
+     * @param maxBytesPerBatch a batch is sent to Solr once the estimated size of its
+     *        documents reaches this many bytes, even if it has fewer than maxDocsPerBatch
+     *        documents. 0 means no limit.
+     */
+    public SolrWriterOptions setMaxBytesPerBatch(long maxBytesPerBatch) {
+        if (maxBytesPerBatch < 0) {
+            throw new IllegalArgumentException("Max bytes per batch can't be negative");
+        }
+        
+        _maxBytesPerBatch = maxBytesPerBatch;
+        return this;
+    }
+    
+    public boolean isAdaptiveBatching() {
+        return _adaptiveBatching;
+    }
+    
+    /**
+     * @param adaptiveBatching if true, the number of documents per batch is adjusted
+     *        based on how long Solr takes to index each batch, and how much free heap
+     *        space we have (see AdaptiveBatchSizer).
+     */
+    public SolrWriterOptions setAdaptiveBatching(boolean adaptiveBatching) {
+        _adaptiveBatching = adaptiveBatching;
+        return this;
+    }
+    
+    public int getNumSubIndexes() {
+        return _numSubIndexes;
+    }
+    
+    /**
+     * @param numSubIndexes number of separate indexes that each Hadoop task builds in
+     *        parallel (documents are assigned round-robin), each with its own writer and
+     *        indexer thread(s). These get merged into the task's single index at the end.
+     *        Sub-indexes are always built as if luceneIndexing was set, so update processors
+     *        are skipped. Currently ignored in local mode.
+     */
+    public SolrWriterOptions setNumSubIndexes(int numSubIndexes) {
+        if (numSubIndexes < 1) {
+            throw new IllegalArgumentException("Number of sub-indexes must be at least 1");
+        }
+        
+        _numSubIndexes = numSubIndexes;
+        return this;
+    }
+    
+    public long getStreamingUploadInterval() {
+        return _streamingUploadInterval;
+    }
+    
+    /**
+     * @param streamingUploadInterval if greater than 0, then every this many milliseconds
+     *        each Hadoop task commits what it has indexed so far, and starts copying the
+     *        new segment files to the task's output directory, so that less remains to be
+     *        copied once indexing is done. This only helps when the final merge leaves most
+     *        segments alone (maxSegments isn't small), and it's ignored when building
+     *        multiple sub-indexes, or in local mode.
+     */
+    public SolrWriterOptions setStreamingUploadInterval(long streamingUploadInterval) {
+        if (streamingUploadInterval < 0) {
+            throw new IllegalArgumentException("Streaming upload interval can't be negative");
+        }
+        
+        _streamingUploadInterval = streamingUploadInterval;
+        return this;
+    }
+    
+    public int getNumUploadThreads() {
+        return _numUploadThreads;
+    }
+    
+    /**
+     * @param numUploadThreads number of files that each Hadoop task copies to its output
+     *        directory in parallel, when uploading the index.
+     */
+    public SolrWriterOptions setNumUploadThreads(int numUploadThreads) {
+        if (numUploadThreads < 1) {
+            throw new IllegalArgumentException("Number of upload threads must be at least 1");
+        }
+        
+        _numUploadThreads = numUploadThreads;
+        return this;
+    }
+    
+    public boolean isVerifyUploads() {
+        return _verifyUploads;
+    }
+    
+    /**
+     * @param verifyUploads if true, each Hadoop task reads back the index files it copied
+     *        to its output directory, and checks them against their Lucene checksums. The
+     *        local files are always checked while they're being copied, so this only catches
+     *        corruption on the way to the FileSystem, at the cost of reading everything twice.
+     */
+    public SolrWriterOptions setVerifyUploads(boolean verifyUploads) {
+        _verifyUploads = verifyUploads;
+        return this;
+    }
+    
+    public boolean isHdfsDirectory() {
+        return _hdfsDirectory;
+    }
+    
+    /**
+     * @param hdfsDirectory if true, the index is written directly to its destination via
+     *        a Hadoop FileSystem backed Lucene Directory (Solr's HdfsDirectoryFactory, with
+     *        its block cache), instead of being built on local disk and then copied. The
+     *        Solr core's solrconfig.xml has to use ${solr.directoryFactory:...} for its
+     *        directoryFactory class, and ${solr.lock.type:...} for its lockType. In Hadoop
+     *        mode numSubIndexes and streamingUploadInterval are ignored, since there's
+     *        nothing left to copy.
+     */
+    public SolrWriterOptions setHdfsDirectory(boolean hdfsDirectory) {
+        _hdfsDirectory = hdfsDirectory;
+        return this;
+    }
+    
+    public boolean isBulkLoadConfig() {
+        return _bulkLoadConfig;
+    }
+    
+    /**
+     * @param bulkLoadConfig if true, the Solr core is started with an indexing-only
+     *        version of its solrconfig.xml (no transaction log, auto commits or caches,
+     *        a bigger RAM buffer, and an MMap directory - see BulkLoadConfig). The schema
+     *        isn't changed. Ignored with luceneIndexing, since no core is started.
+     */
+    public SolrWriterOptions setBulkLoadConfig(boolean bulkLoadConfig) {
+        _bulkLoadConfig = bulkLoadConfig;
+        return this;
+    }
+    
+    public boolean isAutoTune() {
+        return _autoTune;
+    }
+    
+    /**
+     * @param autoTune if true, each Hadoop task picks ramBufferSizeMB and maxMergeThreads
+     *        (unless they've been explicitly set) based on its max heap size, number of
+     *        cores, and number of indexer threads (see IndexTuning). Ignored in local mode.
+     */
+    public SolrWriterOptions setAutoTune(boolean autoTune) {
+        _autoTune = autoTune;
+        return this;
+    }
+    
+    public double getRamBufferSizeMB() {
+        return _ramBufferSizeMB;
+    }
+    
+    /**
+     * @param ramBufferSizeMB size of the index writer's RAM buffer, which determines the
+     *        size of flushed segments. 0 means use the value from the core's config (or
+     *        LuceneWriter's default, with luceneIndexing).
+     */
+    public SolrWriterOptions setRamBufferSizeMB(double ramBufferSizeMB) {
+        if (ramBufferSizeMB < 0) {
+            throw new IllegalArgumentException("RAM buffer size can't be negative");
+        }
+        
+        _ramBufferSizeMB = ramBufferSizeMB;
+        return this;
+    }
+    
+    public int getMaxMergeThreads() {
+        return _maxMergeThreads;
+    }
+    
+    /**
+     * @param maxMergeThreads number of threads the index writer's merge scheduler can
+     *        use to run merges concurrently. 0 means use the value from the core's config
+     *        (or Lucene's default, with luceneIndexing).
+     */
+    public SolrWriterOptions setMaxMergeThreads(int maxMergeThreads) {
+        if (maxMergeThreads < 0) {
+            throw new IllegalArgumentException("Max merge threads can't be negative");
+        }
+        
+        _maxMergeThreads = maxMergeThreads;
+        return this;
+    }
+    
+    public long getStallTimeout() {
+        return _stallTimeout;
+    }
+    
+    /**
+     * @param stallTimeout if no batch gets indexed (or no other progress gets made while
+     *        committing, merging or uploading) for this many milliseconds, stop telling
+     *        the platform that we're alive, and log a thread dump. In Hadoop mode this lets
+     *        a hung task get killed. 0 means never stop.
+     */
+    public SolrWriterOptions setStallTimeout(long stallTimeout) {
+        if (stallTimeout < 0) {
+            throw new IllegalArgumentException("Stall timeout can't be negative");
+        }
+        
+        _stallTimeout = stallTimeout;
+        return this;
+    }
+    
+    public DedupMode getDedupMode() {
+        return _dedupMode;
+    }
+    
+    /**
+     * @param dedupMode what to do with documents whose uniqueKey has already been seen by the
+     *        same writer (in Hadoop mode, the same task). Keys are tracked in memory, using about
+     *        two bytes per char of the key plus 32 bytes per document. The sink fields have to
+     *        include the schema's uniqueKey field. REPLACE needs documents to be indexed in order,
+     *        so it can't be used with more than one indexer thread when asyncIndexing is set.
+     *        Dropped and replaced documents are counted in the indexing metrics.
+     */
+    public SolrWriterOptions setDedupMode(DedupMode dedupMode) {
+        if (dedupMode == null) {
+            throw new IllegalArgumentException("Dedup mode can't be null");
+        }
+        
+        _dedupMode = dedupMode;
+        return this;
+    }
+    
+    public boolean hasFinalizer() {
+        return _finalizer != null;
+    }
+    
+    /**
+     * @return the finalizer that was set, or else one that force merges down to maxSegments
+     *         using maxMergeThreads.
+     */
+    public IndexFinalizer getFinalizer() {
+        if (_finalizer != null) {
+            return _finalizer;
+        } else {
+            return IndexFinalizer.forceMerge(getMaxSegments(), _maxMergeThreads);
+        }
+    }
+    
+    /**
+     * @param finalizer what to do with the index after all documents have been added,
+     *        e.g. IndexFinalizer.none() to skip merging. Null means merge down to
+     *        maxSegments.
+     */
+    public SolrWriterOptions setFinalizer(IndexFinalizer finalizer) {
+        _finalizer = finalizer;
+        return this;
+    }
+}
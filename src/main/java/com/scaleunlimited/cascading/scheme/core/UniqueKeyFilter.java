@@ -0,0 +1,211 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remembers the uniqueKey values that a SolrWriter has seen, so that duplicates can be
+ * found without asking Lucene. Each key is reduced to a 64-bit fingerprint, and these are
+ * kept in an open addressing hash set backed by a long[], so there's no per-key object.
+ *
+ * The keys themselves are appended to big shared char[] pages, and the slot's location in
+ * those pages is kept in a parallel long[]. When a key has the same fingerprint as one we've
+ * already seen, we compare the actual keys, so two different keys never get treated as
+ * duplicates. The memory used is two bytes per char of the key, plus 23 to 46 bytes for
+ * the key's slot (depending on how full the set is).
+ *
+ * Not thread-safe.
+ */
+class UniqueKeyFilter {
+    
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final double MAX_LOAD_FACTOR = 0.7;
+    
+    // Keys are stored as two chars of length, followed by the key's chars.
+    private static final int KEY_PAGE_SIZE = 1 << 20;
+    private static final int KEY_HEADER_LENGTH = 2;
+    
+    // Slots with this value are empty, so no fingerprint can be 0.
+    private static final long EMPTY = 0L;
+    
+    private long[] _slots;
+    private long[] _keyLocations;
+    private int _size;
+    private int _resizeThreshold;
+    private int _numCollisions;
+    
+    private List<char[]> _keyPages;
+    private int _keyPageOffset;
+    private long _keyMemorySize;
+    
+    public UniqueKeyFilter() {
+        _slots = new long[INITIAL_CAPACITY];
+        _keyLocations = new long[INITIAL_CAPACITY];
+        _size = 0;
+        _resizeThreshold = (int)(INITIAL_CAPACITY * MAX_LOAD_FACTOR);
+        _numCollisions = 0;
+        
+        _keyPages = new ArrayList<char[]>();
+        _keyPageOffset = KEY_PAGE_SIZE;
+        _keyMemorySize = 0;
+    }
+    
+    /**
+     * @param key
+     * @return true if <key> hasn't been seen before.
+     */
+    public boolean add(CharSequence key) {
+        long fingerprint = getFingerprint(key);
+        int mask = _slots.length - 1;
+        int slot = (int)fingerprint & mask;
+        
+        while (true) {
+            long slotValue = _slots[slot];
+            if (slotValue == EMPTY) {
+                _slots[slot] = fingerprint;
+                _keyLocations[slot] = storeKey(key);
+                _size += 1;
+                if (_size > _resizeThreshold) {
+                    resize();
+                }
+                
+                return true;
+            } else if (slotValue == fingerprint) {
+                if (keyEquals(_keyLocations[slot], key)) {
+                    return false;
+                }
+                
+                // Different key with the same fingerprint, so keep looking.
+                _numCollisions += 1;
+            }
+            
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    /**
+     * @return number of different keys seen so far.
+     */
+    public int size() {
+        return _size;
+    }
+    
+    /**
+     * @return number of times a key had the same fingerprint as a different key.
+     */
+    public int getNumCollisions() {
+        return _numCollisions;
+    }
+    
+    /**
+     * @return bytes of heap used for the set and the keys.
+     */
+    public long getMemorySize() {
+        return 16L * _slots.length + _keyMemorySize;
+    }
+    
+    /**
+     * @return fingerprint to use for <key>, which can't be EMPTY.
+     */
+    protected long getFingerprint(CharSequence key) {
+        return fingerprint(key);
+    }
+    
+    /**
+     * Append <key> to the current key page, starting a new one if it doesn't fit.
+     *
+     * @return location of the key, as the page index in the upper 32 bits and the
+     *         offset in the page in the lower 32 bits.
+     */
+    private long storeKey(CharSequence key) {
+        int length = key.length();
+        int storedLength = KEY_HEADER_LENGTH + length;
+        
+        if (_keyPageOffset + storedLength > KEY_PAGE_SIZE) {
+            // Keys that are bigger than a page get a page of their own.
+            char[] page = new char[Math.max(KEY_PAGE_SIZE, storedLength)];
+            _keyPages.add(page);
+            _keyPageOffset = 0;
+            _keyMemorySize += 2L * page.length;
+        }
+        
+        int pageIndex = _keyPages.size() - 1;
+        char[] page = _keyPages.get(pageIndex);
+        int offset = _keyPageOffset;
+        
+        page[offset] = (char)(length >>> 16);
+        page[offset + 1] = (char)length;
+        for (int i = 0; i < length; i++) {
+            page[offset + KEY_HEADER_LENGTH + i] = key.charAt(i);
+        }
+        
+        _keyPageOffset += storedLength;
+        return ((long)pageIndex << 32) | offset;
+    }
+    
+    private boolean keyEquals(long keyLocation, CharSequence key) {
+        char[] page = _keyPages.get((int)(keyLocation >>> 32));
+        int offset = (int)keyLocation;
+        
+        int length = (page[offset] << 16) | page[offset + 1];
+        if (length != key.length()) {
+            return false;
+        }
+        
+        offset += KEY_HEADER_LENGTH;
+        for (int i = 0; i < length; i++) {
+            if (page[offset + i] != key.charAt(i)) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private void resize() {
+        if (_slots.length == MAX_CAPACITY) {
+            throw new IllegalStateException(String.format("Can't track more than %d unique keys", _size));
+        }
+        
+        long[] oldSlots = _slots;
+        long[] oldKeyLocations = _keyLocations;
+        _slots = new long[oldSlots.length * 2];
+        _keyLocations = new long[oldSlots.length * 2];
+        _resizeThreshold = (int)(_slots.length * MAX_LOAD_FACTOR);
+        
+        int mask = _slots.length - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            long fingerprint = oldSlots[i];
+            if (fingerprint != EMPTY) {
+                int slot = (int)fingerprint & mask;
+                while (_slots[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                
+                _slots[slot] = fingerprint;
+                _keyLocations[slot] = oldKeyLocations[i];
+            }
+        }
+    }
+    
+    /**
+     * 64-bit FNV-1a hash of <key>, followed by the MurmurHash3 finalizer to spread the
+     * bits around, since we use the low bits to pick the slot.
+     */
+    protected static long fingerprint(CharSequence key) {
+        long result = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            result ^= key.charAt(i);
+            result *= 0x100000001b3L;
+        }
+        
+        result ^= result >>> 33;
+        result *= 0xff51afd7ed558ccdL;
+        result ^= result >>> 33;
+        result *= 0xc4ceb9fe1a85ec53L;
+        result ^= result >>> 33;
+        
+        return (result == EMPTY) ? 1L : result;
+    }
+}
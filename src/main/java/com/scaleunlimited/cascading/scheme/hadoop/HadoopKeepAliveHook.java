@@ -1,5 +1,6 @@
 package com.scaleunlimited.cascading.scheme.hadoop;
 
+import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.Progressable;
 
 import com.scaleunlimited.cascading.scheme.core.KeepAliveHook;
@@ -16,5 +17,13 @@ public class HadoopKeepAliveHook extends KeepAliveHook {
     public void keepAlive() {
         _progress.progress();
     }
+    
+    @Override
+    public void increment(String group, String counter, long amount) {
+        // Hadoop passes in the task's Reporter as the Progressable.
+        if (_progress instanceof Reporter) {
+            ((Reporter)_progress).incrCounter(group, counter, amount);
+        }
+    }
 
 }
@@ -0,0 +1,367 @@
+package com.scaleunlimited.cascading.scheme.hadoop;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.scaleunlimited.cascading.scheme.core.KeepAliveService;
+
+/**
+ * Copies the files of a local index to a directory in a Hadoop FileSystem, using
+ * multiple threads (and thus multiple output streams) in parallel. Because Lucene never
+ * changes a file once it's been written (other than segments.gen), the files for a
+ * commit can be uploaded while indexing continues, and then at the end we only need to
+ * upload whatever is new, followed by the segments files.
+ *
+ * As each file is copied we calculate its checksum, and compare it to the checksum in
+ * the Lucene codec footer (for files that have one), so that we never ship a corrupted
+ * file. For all files we check the length of the copy. Optionally (see setVerifyUploads)
+ * we also read back each copy that has a footer, and check it against its own footer,
+ * so that anything that went wrong on the way to the FileSystem also gets caught. This
+ * doubles the I/O for the upload, so it's off by default.
+ *
+ * The public methods should only be called by one thread at a time.
+ */
+class IndexUploader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexUploader.class);
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    // Magic int, algorithm id int, and checksum long
+    private static final int FOOTER_LENGTH = 16;
+    private static final int CHECKSUM_LENGTH = 8;
+    
+    private FileSystem _fs;
+    private Path _outputPath;
+    private int _numThreads;
+    private Map<String, Long> _uploadedFiles;
+    private ExecutorService _executor;
+    private KeepAliveService _keepAliveService;
+    private boolean _verifyUploads = false;
+    
+    public IndexUploader(FileSystem fs, Path outputPath, int numThreads) {
+        this(fs, outputPath, numThreads, null);
+    }
+    
+    /**
+     * @param keepAliveService if not null, told about progress as data gets copied.
+     */
+    public IndexUploader(FileSystem fs, Path outputPath, int numThreads, KeepAliveService keepAliveService) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Number of upload threads must be at least 1");
+        }
+        
+        _fs = fs;
+        _outputPath = outputPath;
+        _numThreads = numThreads;
+        _uploadedFiles = new ConcurrentHashMap<String, Long>();
+        _keepAliveService = keepAliveService;
+    }
+    
+    /**
+     * @param verifyUploads if true, read back every uploaded file that has a codec footer,
+     *        and make sure the copy's checksum matches.
+     */
+    public IndexUploader setVerifyUploads(boolean verifyUploads) {
+        _verifyUploads = verifyUploads;
+        return this;
+    }
+    
+    /**
+     * Upload all of the files for <commit> that we haven't already uploaded, other
+     * than the segments files. The caller has to make sure that the commit's files
+     * don't get deleted while this is happening.
+     *
+     * @param commit
+     * @return number of bytes uploaded.
+     * @throws IOException
+     */
+    public long uploadCommit(IndexCommit commit) throws IOException {
+        List<String> fileNames = new ArrayList<String>();
+        for (String fileName : commit.getFileNames()) {
+            if (!isSegmentsFile(fileName) && !_uploadedFiles.containsKey(fileName)) {
+                fileNames.add(fileName);
+            }
+        }
+        
+        return upload(commit.getDirectory(), fileNames);
+    }
+    
+    /**
+     * Upload everything in <indexDir> that hasn't already been uploaded, with the segments
+     * files going last so that the output directory never looks like a complete index
+     * before it is one. Previously uploaded files that are no longer part of the index
+     * (e.g. because their segment got merged away) are deleted.
+     *
+     * @param indexDir index that's no longer being written to
+     * @return number of bytes uploaded.
+     * @throws IOException
+     */
+    public long finish(File indexDir) throws IOException {
+        Directory dir = FSDirectory.open(indexDir);
+        
+        try {
+            Set<String> indexFiles = new HashSet<String>();
+            List<String> segmentsFiles = new ArrayList<String>();
+            List<String> dataFiles = new ArrayList<String>();
+            
+            for (String fileName : dir.listAll()) {
+                // Skip the lock file, and .crc files that Hadoop may have left around.
+                if (fileName.equals(IndexWriter.WRITE_LOCK_NAME) || fileName.endsWith(".crc")) {
+                    continue;
+                }
+                
+                indexFiles.add(fileName);
+                
+                if (isSegmentsFile(fileName)) {
+                    segmentsFiles.add(fileName);
+                } else if (!isUploaded(dir, fileName)) {
+                    dataFiles.add(fileName);
+                }
+            }
+            
+            long result = upload(dir, dataFiles);
+            
+            for (String fileName : new ArrayList<String>(_uploadedFiles.keySet())) {
+                if (!indexFiles.contains(fileName)) {
+                    _fs.delete(new Path(_outputPath, fileName), false);
+                    _uploadedFiles.remove(fileName);
+                }
+            }
+            
+            // Lucene writes segments.gen after segments_N, so we do the same.
+            for (String fileName : segmentsFiles) {
+                if (!fileName.equals(IndexFileNames.SEGMENTS_GEN)) {
+                    result += uploadFile(dir, fileName, new byte[BUFFER_SIZE]);
+                }
+            }
+            
+            if (segmentsFiles.contains(IndexFileNames.SEGMENTS_GEN)) {
+                result += uploadFile(dir, IndexFileNames.SEGMENTS_GEN, new byte[BUFFER_SIZE]);
+            }
+            
+            return result;
+        } finally {
+            dir.close();
+        }
+    }
+    
+    /**
+     * Shut down the upload threads.
+     */
+    public void close() {
+        if (_executor != null) {
+            _executor.shutdownNow();
+            _executor = null;
+        }
+    }
+    
+    private boolean isUploaded(Directory dir, String fileName) throws IOException {
+        Long uploadedLength = _uploadedFiles.get(fileName);
+        return (uploadedLength != null) && (uploadedLength == dir.fileLength(fileName));
+    }
+    
+    private static boolean isSegmentsFile(String fileName) {
+        return fileName.startsWith(IndexFileNames.SEGMENTS);
+    }
+    
+    /**
+     * Upload <fileNames> in parallel, and wait for all of them to complete.
+     *
+     * @return total number of bytes uploaded.
+     * @throws IOException the first failure we run into.
+     */
+    private long upload(final Directory dir, Collection<String> fileNames) throws IOException {
+        if (fileNames.isEmpty()) {
+            return 0;
+        }
+        
+        if (_executor == null) {
+            _executor = Executors.newFixedThreadPool(_numThreads, new UploaderThreadFactory());
+        }
+        
+        List<Future<Long>> futures = new ArrayList<Future<Long>>(fileNames.size());
+        for (final String fileName : fileNames) {
+            futures.add(_executor.submit(new Callable<Long>() {
+                
+                @Override
+                public Long call() throws Exception {
+                    return uploadFile(dir, fileName, new byte[BUFFER_SIZE]);
+                }
+            }));
+        }
+        
+        long result = 0;
+        
+        try {
+            for (Future<Long> future : futures) {
+                result += future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while uploading index files", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            } else {
+                throw new IOException("Error uploading index files", e.getCause());
+            }
+        } finally {
+            // No point in continuing with other files if one failed.
+            for (Future<Long> future : futures) {
+                future.cancel(false);
+            }
+        }
+        
+        return result;
+    }
+    
+    private long uploadFile(Directory dir, String fileName, byte[] buffer) throws IOException {
+        Path outputFile = new Path(_outputPath, fileName);
+        IndexInput in = dir.openInput(fileName, IOContext.READONCE);
+        
+        try {
+            long length = in.length();
+            CRC32 checksum = new CRC32();
+            FSDataOutputStream out = _fs.create(outputFile, true);
+            
+            try {
+                // The stored checksum covers everything before the checksum itself.
+                long checksummedLength = length - CHECKSUM_LENGTH;
+                long offset = 0;
+                while (offset < length) {
+                    int numBytes = (int)Math.min(buffer.length, length - offset);
+                    in.readBytes(buffer, 0, numBytes);
+                    out.write(buffer, 0, numBytes);
+                    
+                    if (offset < checksummedLength) {
+                        checksum.update(buffer, 0, (int)Math.min(numBytes, checksummedLength - offset));
+                    }
+                    
+                    offset += numBytes;
+                    
+                    if (_keepAliveService != null) {
+                        _keepAliveService.progress();
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            
+            boolean hasFooter = verifyChecksum(in, fileName, checksum.getValue());
+            
+            long outputLength = _fs.getFileStatus(outputFile).getLen();
+            if (outputLength != length) {
+                throw new IOException(String.format("Uploaded %d bytes for %s, but got %d bytes in %s", length, fileName, outputLength, outputFile));
+            }
+            
+            if (hasFooter && _verifyUploads) {
+                verifyUploadedChecksum(outputFile, length, buffer);
+            }
+            
+            LOGGER.debug(String.format("Uploaded %d bytes to %s", length, outputFile));
+            _uploadedFiles.put(fileName, length);
+            return length;
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * If the file has a Lucene codec footer, make sure the checksum we calculated for
+     * the data we copied matches what's in the footer.
+     * 
+     * @return true if the file has a footer.
+     */
+    private static boolean verifyChecksum(IndexInput in, String fileName, long actualChecksum) throws IOException {
+        if (in.length() < FOOTER_LENGTH) {
+            return false;
+        }
+        
+        in.seek(in.length() - FOOTER_LENGTH);
+        if ((in.readInt() != CodecUtil.FOOTER_MAGIC) || (in.readInt() != 0)) {
+            // Older format file, without a footer.
+            return false;
+        }
+        
+        long expectedChecksum = in.readLong();
+        if (expectedChecksum != actualChecksum) {
+            throw new IOException(String.format("Checksum mismatch for %s: expected %x, got %x", fileName, expectedChecksum, actualChecksum));
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Read back the <length> bytes we uploaded to <outputFile>, and make sure that they
+     * match the checksum in the copy's codec footer.
+     */
+    private void verifyUploadedChecksum(Path outputFile, long length, byte[] buffer) throws IOException {
+        FSDataInputStream in = _fs.open(outputFile);
+        
+        try {
+            CRC32 checksum = new CRC32();
+            long checksummedLength = length - CHECKSUM_LENGTH;
+            long offset = 0;
+            while (offset < checksummedLength) {
+                int numBytes = (int)Math.min(buffer.length, checksummedLength - offset);
+                in.readFully(buffer, 0, numBytes);
+                checksum.update(buffer, 0, numBytes);
+                offset += numBytes;
+                
+                if (_keepAliveService != null) {
+                    _keepAliveService.progress();
+                }
+            }
+            
+            // Lucene writes longs in big-endian order, same as DataInput.
+            long expectedChecksum = in.readLong();
+            if (expectedChecksum != checksum.getValue()) {
+                throw new IOException(String.format("Checksum mismatch for uploaded %s: expected %x, got %x", outputFile, expectedChecksum, checksum.getValue()));
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static class UploaderThreadFactory implements ThreadFactory {
+        
+        private AtomicInteger _threadIndex = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread result = new Thread(r, "IndexUploader #" + _threadIndex.getAndIncrement());
+            result.setDaemon(true);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.scaleunlimited.cascading.scheme.hadoop;
+
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.xml.sax.SAXException;
+
+import cascading.flow.FlowProcess;
+import cascading.pipe.Pipe;
+import cascading.tap.Tap;
+import cascading.tap.TapException;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+
+import com.scaleunlimited.cascading.scheme.core.SolrSchemeUtil;
+import com.scaleunlimited.cascading.scheme.core.SolrShardPipe;
+import com.scaleunlimited.cascading.scheme.core.SolrWriterOptions;
+
+/**
+ * SolrScheme that builds <numShards> indexes, routing each document using the same hash as
+ * SolrCloud's compositeId router. Shard N is written to the shardN/index subdir of the
+ * sink's path, so the result can be loaded directly into a collection with the same number
+ * of shards.
+ *
+ * The sink sets the number of reducers to be the number of shards, but the incoming pipe
+ * has to be a SolrShardPipe (with the same routing field and number of shards), so that
+ * each shard's documents are all in one reducer. The sink's fields include the shard field
+ * added by that pipe, so a flow without it fails when it's planned. Shards are assigned to
+ * reducers by hash, so a reducer can wind up building more than one shard (and another one
+ * none), but each shard is still only built by one reducer.
+ */
+@SuppressWarnings("serial")
+public class ShardedSolrScheme extends SolrScheme {
+    
+    private String _routingFieldName;
+    private int _numShards;
+    
+    public ShardedSolrScheme(Fields schemeFields, String solrCoreDir, String routingFieldName, int numShards) throws IOException, ParserConfigurationException, SAXException {
+        this(schemeFields, solrCoreDir, routingFieldName, numShards, new SolrWriterOptions());
+    }
+    
+    /**
+     * @param routingFieldName field with the value used to route each document, typically
+     *        the uniqueKey field
+     * @param numShards
+     * @param options settings for how each shard's index is built.
+     */
+    public ShardedSolrScheme(Fields schemeFields, String solrCoreDir, String routingFieldName, int numShards, SolrWriterOptions options) throws IOException, ParserConfigurationException, SAXException {
+        super(schemeFields, solrCoreDir, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, options);
+        
+        if (numShards < 1) {
+            throw new IllegalArgumentException("Number of shards must be at least 1");
+        }
+        
+        if (!schemeFields.contains(new Fields(routingFieldName))) {
+            throw new TapException("Routing field isn't one of the scheme fields: " + routingFieldName);
+        }
+        
+        _routingFieldName = routingFieldName;
+        _numShards = numShards;
+        
+        // Each document's shard comes from the SolrShardPipe's GroupBy.
+        setSinkFields(schemeFields.append(new Fields(SolrShardPipe.SHARD_FIELD_NAME)));
+        
+        // One reducer per shard.
+        setNumSinkParts(numShards);
+    }
+    
+    public String getRoutingFieldName() {
+        return _routingFieldName;
+    }
+    
+    public int getNumShards() {
+        return _numShards;
+    }
+    
+    /**
+     * Convenience for creating the pipe that has to precede this sink.
+     *
+     * @param pipe documents to be indexed
+     * @return pipe that groups the documents by shard.
+     */
+    public SolrShardPipe makeShardPipe(Pipe pipe) {
+        return new SolrShardPipe(pipe, _routingFieldName, _numShards);
+    }
+    
+    @Override
+    public void sinkConfInit(FlowProcess<JobConf> flowProcess, Tap<JobConf, RecordReader<Tuple, Tuple>, OutputCollector<Tuple, Tuple>> tap, JobConf conf) {
+        super.sinkConfInit(flowProcess, tap, conf);
+        
+        conf.setInt(SolrOutputFormat.NUM_SHARDS_KEY, _numShards);
+    }
+}
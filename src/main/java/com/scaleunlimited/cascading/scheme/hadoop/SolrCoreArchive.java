@@ -0,0 +1,144 @@
+package com.scaleunlimited.cascading.scheme.hadoop;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cascading.tap.hadoop.Hfs;
+import cascading.util.Util;
+
+/**
+ * Ships the Solr core directory to the tasks as a single zip file, via the distributed
+ * cache. Hadoop unpacks the archive once per node, and all of the job's tasks on that
+ * node share the result, versus each task copying every file in the core directory
+ * (stopwords, templates, etc) from HDFS.
+ *
+ * Tasks only read from the unpacked core directory, since the index is always written
+ * to a separate data directory.
+ */
+class SolrCoreArchive {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SolrCoreArchive.class);
+    
+    private static final String ARCHIVE_SUFFIX = ".zip";
+    
+    /**
+     * Zip up <solrCoreDir>, copy the result to the job's temp directory, and add it to
+     * the distributed cache. The archive gets deleted when the flow's JVM exits.
+     *
+     * @param conf
+     * @param solrCoreDir
+     * @return path to the archive in the job's FileSystem.
+     * @throws IOException
+     */
+    public static Path addToCache(JobConf conf, File solrCoreDir) throws IOException {
+        String coreName = solrCoreDir.getName();
+        File localArchive = File.createTempFile("solr-core-", ARCHIVE_SUFFIX);
+        
+        try {
+            ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(localArchive));
+            
+            try {
+                addToZip(zos, solrCoreDir, coreName);
+            } finally {
+                zos.close();
+            }
+            
+            // The archive's directory is unique, and its name is the core name, which is
+            // what we use to find the core directory after it's been unpacked.
+            Path archivePath = new Path(Hfs.getTempPath(conf), "solr-core-" + Util.createUniqueID() + "/" + coreName + ARCHIVE_SUFFIX);
+            FileSystem fs = archivePath.getFileSystem(conf);
+            fs.copyFromLocalFile(new Path(localArchive.getAbsolutePath()), archivePath);
+            fs.deleteOnExit(archivePath.getParent());
+            
+            archivePath = fs.makeQualified(archivePath);
+            DistributedCache.addCacheArchive(archivePath.toUri(), conf);
+            LOGGER.debug(String.format("Added %d byte archive of %s to the distributed cache as %s", localArchive.length(), solrCoreDir, archivePath));
+            return archivePath;
+        } finally {
+            localArchive.delete();
+        }
+    }
+    
+    /**
+     * Find the unpacked copy of the core directory archive at <archivePath>.
+     *
+     * @param conf
+     * @param archivePath path returned by addToCache()
+     * @return local core directory, or null if the archive hasn't been unpacked by Hadoop.
+     * @throws IOException
+     */
+    public static File findLocalCoreDir(JobConf conf, Path archivePath) throws IOException {
+        URI[] cacheArchives = DistributedCache.getCacheArchives(conf);
+        Path[] localArchives = DistributedCache.getLocalCacheArchives(conf);
+        if ((cacheArchives == null) || (localArchives == null)) {
+            return null;
+        }
+        
+        // Local archives are in the same order as the archives that were added to the cache.
+        URI archiveURI = archivePath.toUri();
+        for (int i = 0; (i < cacheArchives.length) && (i < localArchives.length); i++) {
+            if (cacheArchives[i].getPath().equals(archiveURI.getPath())) {
+                File result = new File(localArchives[i].toUri().getPath(), getCoreName(archivePath));
+                if (result.isDirectory()) {
+                    return result;
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Copy and unpack the core directory archive ourselves, for when it's not available
+     * from the distributed cache.
+     *
+     * @param conf
+     * @param archivePath path returned by addToCache()
+     * @return local core directory, which the caller has to delete when it's done.
+     * @throws IOException
+     */
+    public static File copyToLocal(JobConf conf, Path archivePath) throws IOException {
+        File localDir = new File(System.getProperty("java.io.tmpdir"), "cascading.solr-" + UUID.randomUUID());
+        File localArchive = new File(localDir, archivePath.getName());
+        
+        FileSystem fs = archivePath.getFileSystem(conf);
+        fs.copyToLocalFile(archivePath, new Path(localArchive.getAbsolutePath()));
+        FileUtil.unZip(localArchive, localDir);
+        localArchive.delete();
+        
+        return new File(localDir, getCoreName(archivePath));
+    }
+    
+    private static String getCoreName(Path archivePath) {
+        String archiveName = archivePath.getName();
+        return archiveName.substring(0, archiveName.length() - ARCHIVE_SUFFIX.length());
+    }
+    
+    private static void addToZip(ZipOutputStream zos, File file, String entryName) throws IOException {
+        if (file.isDirectory()) {
+            zos.putNextEntry(new ZipEntry(entryName + "/"));
+            zos.closeEntry();
+            
+            for (File child : file.listFiles()) {
+                addToZip(zos, child, entryName + "/" + child.getName());
+            }
+        } else {
+            zos.putNextEntry(new ZipEntry(entryName));
+            FileUtils.copyFile(file, zos);
+            zos.closeEntry();
+        }
+    }
+}
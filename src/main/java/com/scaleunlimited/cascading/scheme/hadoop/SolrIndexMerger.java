@@ -0,0 +1,480 @@
+package com.scaleunlimited.cascading.scheme.hadoop;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cascading.flow.Flow;
+import cascading.flow.FlowProcess;
+import cascading.flow.hadoop.HadoopFlowConnector;
+import cascading.flow.hadoop.HadoopFlowProcess;
+import cascading.flow.hadoop.util.HadoopUtil;
+import cascading.operation.BaseOperation;
+import cascading.operation.Buffer;
+import cascading.operation.BufferCall;
+import cascading.operation.OperationCall;
+import cascading.pipe.Every;
+import cascading.pipe.GroupBy;
+import cascading.pipe.Pipe;
+import cascading.scheme.hadoop.SequenceFile;
+import cascading.scheme.hadoop.TextDelimited;
+import cascading.tap.SinkMode;
+import cascading.tap.Tap;
+import cascading.tap.hadoop.Hfs;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
+
+import com.scaleunlimited.cascading.scheme.core.IndexDirectories;
+import com.scaleunlimited.cascading.scheme.core.IndexFinalizer;
+import com.scaleunlimited.cascading.scheme.core.KeepAliveService;
+import com.scaleunlimited.cascading.scheme.core.LuceneWriter;
+import com.scaleunlimited.cascading.scheme.core.SolrShardRouter;
+import com.scaleunlimited.cascading.scheme.core.SolrWriterOptions;
+
+/**
+ * Merges the indexes written by a SolrScheme sink (one per part-xxxxx task directory) into
+ * <numShards> indexes, using a Cascading flow with one reducer per target shard, so the
+ * shards are all merged in parallel. Shard N winds up in the shardN/index subdir of the
+ * output path, the same layout as ShardedSolrScheme. Each shard is written to the task's
+ * work output path, so only the attempt that gets committed shows up in the output. The
+ * output path also gets one part-xxxxx report file per shard.
+ *
+ * Indexes are assigned to shards so that each shard gets about the same number of bytes.
+ * Big indexes are added by copying their segment files; indexes smaller than the minimum
+ * index size are coalesced into a single new segment, so that merging hundreds of tiny
+ * task indexes isn't dominated by per-segment overhead. After that the shard's index is
+ * merged down as per the finalizer, e.g. IndexFinalizer.forceMerge(maxSegments, 0).
+ *
+ * Note that documents aren't re-routed, so the result is only suitable for collections
+ * that don't use hash-based (compositeId) routing. Use ShardedSolrScheme for those.
+ */
+public class SolrIndexMerger {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SolrIndexMerger.class);
+    
+    public static final double DEFAULT_MIN_INDEX_SIZE_MB = 64.0;
+    
+    private static final String SHARD_FN = "shard";
+    private static final String INDEX_PATH_FN = "index-path";
+    private static final String INDEX_SIZE_FN = "index-size";
+    private static final Fields PLAN_FIELDS = new Fields(SHARD_FN, INDEX_PATH_FN, INDEX_SIZE_FN);
+    
+    public static final Fields REPORT_FIELDS = new Fields("shard-name", "num-indexes", "num-docs", "num-segments");
+    
+    private File _solrCoreDir;
+    private int _numShards;
+    private IndexFinalizer _finalizer;
+    private double _minIndexSizeMB;
+    private long _stallTimeout;
+    
+    public SolrIndexMerger(File solrCoreDir, int numShards) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("Number of shards must be at least 1");
+        }
+        
+        _solrCoreDir = solrCoreDir;
+        _numShards = numShards;
+        _finalizer = IndexFinalizer.none();
+        _minIndexSizeMB = DEFAULT_MIN_INDEX_SIZE_MB;
+        _stallTimeout = KeepAliveService.DEFAULT_STALL_TIMEOUT;
+    }
+    
+    public int getNumShards() {
+        return _numShards;
+    }
+    
+    public IndexFinalizer getFinalizer() {
+        return _finalizer;
+    }
+    
+    /**
+     * @param finalizer how each shard's index is merged once all of its task indexes have
+     *        been added. Defaults to IndexFinalizer.none().
+     */
+    public SolrIndexMerger setFinalizer(IndexFinalizer finalizer) {
+        _finalizer = finalizer;
+        return this;
+    }
+    
+    public double getMinIndexSizeMB() {
+        return _minIndexSizeMB;
+    }
+    
+    /**
+     * @param minIndexSizeMB indexes smaller than this are coalesced into one new segment
+     *        per shard, instead of having their segments copied. 0 to always copy.
+     */
+    public SolrIndexMerger setMinIndexSizeMB(double minIndexSizeMB) {
+        if (minIndexSizeMB < 0.0) {
+            throw new IllegalArgumentException("Min index size can't be negative");
+        }
+        
+        _minIndexSizeMB = minIndexSizeMB;
+        return this;
+    }
+    
+    public long getStallTimeout() {
+        return _stallTimeout;
+    }
+    
+    /**
+     * @param stallTimeout if merging or uploading a shard makes no progress for this many
+     *        milliseconds, stop telling Hadoop that the reducer is alive, so it gets killed.
+     *        0 means never stop.
+     */
+    public SolrIndexMerger setStallTimeout(long stallTimeout) {
+        if (stallTimeout < 0) {
+            throw new IllegalArgumentException("Stall timeout can't be negative");
+        }
+        
+        _stallTimeout = stallTimeout;
+        return this;
+    }
+    
+    /**
+     * Find all of the indexes in <inputPath>, write out the plan for which shard each one
+     * goes to, and return the flow that does the merging.
+     *
+     * @param conf job configuration for the flow
+     * @param inputPath output path of the job that built the indexes
+     * @param outputPath where the shardN/index directories will be written
+     * @return flow that will do the merge when completed.
+     * @throws IOException
+     */
+    public Flow<?> makeFlow(JobConf conf, String inputPath, String outputPath) throws IOException {
+        Path input = new Path(inputPath);
+        FileSystem fs = input.getFileSystem(conf);
+        List<Path> indexDirs = IndexDirectories.find(fs, input);
+        if (indexDirs.isEmpty()) {
+            throw new IOException("No Solr indexes found in " + inputPath);
+        } else if (indexDirs.size() < _numShards) {
+            throw new IOException(String.format("Can't make %d shards from %d indexes in %s", _numShards, indexDirs.size(), inputPath));
+        }
+        
+        List<IndexInfo> indexes = new ArrayList<IndexInfo>(indexDirs.size());
+        for (Path indexDir : indexDirs) {
+            indexes.add(new IndexInfo(fs.makeQualified(indexDir).toString(), fs.getContentSummary(indexDir).getLength()));
+        }
+        
+        List<List<IndexInfo>> shards = assignShards(indexes, _numShards);
+        
+        // The plan is the input to the flow, so it can't be in the output path, which gets
+        // replaced when the flow starts.
+        Path planPath = new Path(Hfs.getTempPath(conf), "solr-merge-plan-" + UUID.randomUUID());
+        Tap planTap = new Hfs(new SequenceFile(PLAN_FIELDS), planPath.toString(), SinkMode.REPLACE);
+        TupleEntryCollector writer = planTap.openForWrite(new HadoopFlowProcess(conf));
+        
+        try {
+            for (int shard = 0; shard < shards.size(); shard++) {
+                long shardSize = 0;
+                for (IndexInfo index : shards.get(shard)) {
+                    writer.add(new Tuple(shard, index.getPath(), index.getSize()));
+                    shardSize += index.getSize();
+                }
+                
+                LOGGER.info(String.format("Merging %d indexes (%d bytes) into %s", shards.get(shard).size(), shardSize, SolrShardRouter.getShardName(shard)));
+            }
+        } finally {
+            writer.close();
+        }
+        
+        Path solrCoreArchive = SolrCoreArchive.addToCache(conf, _solrCoreDir);
+        long minIndexSize = (long)(_minIndexSizeMB * 1024 * 1024);
+        
+        Pipe mergePipe = new Pipe("Solr index merge");
+        mergePipe = new GroupBy(mergePipe, new Fields(SHARD_FN));
+        mergePipe = new Every(mergePipe, new Fields(INDEX_PATH_FN, INDEX_SIZE_FN), new MergeBuffer(solrCoreArchive.toString(), _finalizer, minIndexSize, _stallTimeout), Fields.RESULTS);
+        
+        // One reducer per shard. The shard indexes are written next to the reducer's report,
+        // and so they get moved into the output path when the task is committed.
+        TextDelimited reportScheme = new TextDelimited(REPORT_FIELDS, true, "\t");
+        reportScheme.setNumSinkParts(_numShards);
+        Tap reportTap = new Hfs(reportScheme, outputPath, SinkMode.REPLACE);
+        
+        // Merging a shard is a lot of work, so don't do it twice.
+        JobConf flowConf = new JobConf(conf);
+        flowConf.setReduceSpeculativeExecution(false);
+        
+        return new HadoopFlowConnector(HadoopUtil.createProperties(flowConf)).connect(planTap, reportTap, mergePipe);
+    }
+    
+    /**
+     * Assign each index to one of <numShards> shards, biggest first, always picking the
+     * shard with the fewest bytes so far. Each shard's indexes are in path order.
+     */
+    protected static List<List<IndexInfo>> assignShards(List<IndexInfo> indexes, int numShards) {
+        List<IndexInfo> bySize = new ArrayList<IndexInfo>(indexes);
+        Collections.sort(bySize, new Comparator<IndexInfo>() {
+            
+            @Override
+            public int compare(IndexInfo o1, IndexInfo o2) {
+                if (o1.getSize() != o2.getSize()) {
+                    return o1.getSize() > o2.getSize() ? -1 : 1;
+                } else {
+                    return o1.getPath().compareTo(o2.getPath());
+                }
+            }
+        });
+        
+        List<List<IndexInfo>> result = new ArrayList<List<IndexInfo>>(numShards);
+        long[] shardSizes = new long[numShards];
+        for (int i = 0; i < numShards; i++) {
+            result.add(new ArrayList<IndexInfo>());
+        }
+        
+        for (IndexInfo index : bySize) {
+            int smallestShard = 0;
+            for (int i = 1; i < numShards; i++) {
+                if (shardSizes[i] < shardSizes[smallestShard]) {
+                    smallestShard = i;
+                }
+            }
+            
+            result.get(smallestShard).add(index);
+            shardSizes[smallestShard] += index.getSize();
+        }
+        
+        for (List<IndexInfo> shard : result) {
+            Collections.sort(shard, new Comparator<IndexInfo>() {
+                
+                @Override
+                public int compare(IndexInfo o1, IndexInfo o2) {
+                    return o1.getPath().compareTo(o2.getPath());
+                }
+            });
+        }
+        
+        return result;
+    }
+    
+    protected static class IndexInfo {
+        
+        private String _path;
+        private long _size;
+        
+        public IndexInfo(String path, long size) {
+            _path = path;
+            _size = size;
+        }
+        
+        public String getPath() {
+            return _path;
+        }
+        
+        public long getSize() {
+            return _size;
+        }
+    }
+    
+    /**
+     * Builds one shard's index from all of the task indexes assigned to it, in a local
+     * directory, and then uploads the result to the task's work output path.
+     */
+    @SuppressWarnings({"serial", "rawtypes"})
+    private static class MergeBuffer extends BaseOperation<File> implements Buffer<File> {
+        
+        private String _solrCoreArchive;
+        private IndexFinalizer _finalizer;
+        private long _minIndexSize;
+        private long _stallTimeout;
+        
+        private transient boolean _deleteLocalSolrCore;
+        
+        public MergeBuffer(String solrCoreArchive, IndexFinalizer finalizer, long minIndexSize, long stallTimeout) {
+            super(REPORT_FIELDS);
+            
+            _solrCoreArchive = solrCoreArchive;
+            _finalizer = finalizer;
+            _minIndexSize = minIndexSize;
+            _stallTimeout = stallTimeout;
+        }
+        
+        @Override
+        public void prepare(FlowProcess flowProcess, OperationCall<File> operationCall) {
+            super.prepare(flowProcess, operationCall);
+            
+            JobConf conf = ((HadoopFlowProcess)flowProcess).getJobConf();
+            Path solrCoreArchive = new Path(_solrCoreArchive);
+            
+            try {
+                File localSolrCore = SolrCoreArchive.findLocalCoreDir(conf, solrCoreArchive);
+                if (localSolrCore == null) {
+                    LOGGER.info("Solr core directory isn't in the distributed cache, copying from " + solrCoreArchive);
+                    localSolrCore = SolrCoreArchive.copyToLocal(conf, solrCoreArchive);
+                    _deleteLocalSolrCore = true;
+                }
+                
+                operationCall.setContext(localSolrCore);
+            } catch (IOException e) {
+                throw new RuntimeException("Can't get local copy of Solr core directory", e);
+            }
+        }
+        
+        @Override
+        public void operate(FlowProcess flowProcess, BufferCall<File> bufferCall) {
+            int shard = bufferCall.getGroup().getInteger(SHARD_FN);
+            
+            List<String> bigIndexes = new ArrayList<String>();
+            List<String> smallIndexes = new ArrayList<String>();
+            Iterator<TupleEntry> iter = bufferCall.getArgumentsIterator();
+            while (iter.hasNext()) {
+                TupleEntry entry = iter.next();
+                if (entry.getLong(INDEX_SIZE_FN) < _minIndexSize) {
+                    smallIndexes.add(entry.getString(INDEX_PATH_FN));
+                } else {
+                    bigIndexes.add(entry.getString(INDEX_PATH_FN));
+                }
+            }
+            
+            // Coalescing a single index doesn't buy us anything.
+            if (smallIndexes.size() == 1) {
+                bigIndexes.addAll(smallIndexes);
+                smallIndexes.clear();
+            }
+            
+            String shardName = SolrShardRouter.getShardName(shard);
+            HadoopFlowProcess hadoopFlowProcess = (HadoopFlowProcess)flowProcess;
+            KeepAliveService keepAliveService = new KeepAliveService(String.format("SolrIndexMerger (%s)", shardName), new HadoopKeepAliveHook(hadoopFlowProcess.getReporter()), _stallTimeout);
+            keepAliveService.startWork();
+            
+            try {
+                Tuple result = mergeShard(hadoopFlowProcess, keepAliveService, bufferCall.getContext(), shardName, bigIndexes, smallIndexes);
+                bufferCall.getOutputCollector().add(result);
+            } catch (IOException e) {
+                throw new RuntimeException("Error merging indexes for " + shardName, e);
+            } finally {
+                keepAliveService.close();
+            }
+        }
+        
+        private Tuple mergeShard(HadoopFlowProcess flowProcess, KeepAliveService keepAliveService, File localSolrCore, String shardName, List<String> bigIndexes, List<String> smallIndexes) throws IOException {
+            long startTime = System.currentTimeMillis();
+            JobConf conf = flowProcess.getJobConf();
+            
+            // Anything written here by a failed attempt is never committed.
+            Path outputPath = new Path(new Path(FileOutputFormat.getWorkOutputPath(conf), shardName), "index");
+            FileSystem outputFS = outputPath.getFileSystem(conf);
+            
+            File localDir = new File(System.getProperty("java.io.tmpdir"), "cascading.solr-merge-" + UUID.randomUUID());
+            File localIndexDir = new File(localDir, "index");
+            
+            try {
+                int numSegments;
+                LuceneWriter luceneWriter = new LuceneWriter(localSolrCore, localIndexDir, 1);
+                
+                try {
+                    addIndexes(luceneWriter, bigIndexes, false, conf);
+                    keepAliveService.progress();
+                    addIndexes(luceneWriter, smallIndexes, true, conf);
+                    keepAliveService.progress();
+                    numSegments = luceneWriter.finish(_finalizer);
+                } finally {
+                    luceneWriter.close();
+                }
+                
+                int numDocs = getNumDocs(localIndexDir);
+                keepAliveService.progress();
+                
+                IndexUploader uploader = new IndexUploader(outputFS, outputPath, SolrWriterOptions.DEFAULT_NUM_UPLOAD_THREADS, keepAliveService);
+                
+                try {
+                    uploader.finish(localIndexDir);
+                } finally {
+                    uploader.close();
+                }
+                
+                int numIndexes = bigIndexes.size() + smallIndexes.size();
+                LOGGER.info(String.format("Merged %d indexes (%d coalesced) into %s in %dms, with %d docs in %d segments", numIndexes, smallIndexes.size(), outputPath, System.currentTimeMillis() - startTime, numDocs, numSegments));
+                return new Tuple(shardName, numIndexes, numDocs, numSegments);
+            } finally {
+                FileUtils.deleteDirectory(localDir);
+            }
+        }
+        
+        private static void addIndexes(LuceneWriter luceneWriter, List<String> indexPaths, boolean coalesce, JobConf conf) throws IOException {
+            if (indexPaths.isEmpty()) {
+                return;
+            }
+            
+            List<Directory> dirs = new ArrayList<Directory>(indexPaths.size());
+            
+            try {
+                for (String indexPath : indexPaths) {
+                    dirs.add(IndexDirectories.open(new Path(indexPath), conf));
+                }
+                
+                if (coalesce) {
+                    luceneWriter.coalesceIndexes(dirs);
+                } else {
+                    luceneWriter.copyIndexes(dirs);
+                }
+            } finally {
+                for (Directory dir : dirs) {
+                    dir.close();
+                }
+            }
+        }
+        
+        private static int getNumDocs(File indexDir) throws IOException {
+            Directory dir = FSDirectory.open(indexDir);
+            
+            try {
+                DirectoryReader reader = DirectoryReader.open(dir);
+                
+                try {
+                    return reader.numDocs();
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                dir.close();
+            }
+        }
+        
+        @Override
+        public void cleanup(FlowProcess flowProcess, OperationCall<File> operationCall) {
+            super.cleanup(flowProcess, operationCall);
+            
+            File localSolrCore = operationCall.getContext();
+            if (_deleteLocalSolrCore && (localSolrCore != null)) {
+                FileUtils.deleteQuietly(localSolrCore.getParentFile());
+            }
+        }
+    }
+    
+    /**
+     * Merge the indexes in <input path> into <num shards> shards in <output path>, optionally
+     * force merging each shard down to <max segments>.
+     */
+    public static void main(String[] args) throws Exception {
+        if ((args.length < 4) || (args.length > 5)) {
+            System.err.println("Usage: SolrIndexMerger <input path> <output path> <solr core dir> <num shards> [<max segments>]");
+            System.exit(-1);
+        }
+        
+        SolrIndexMerger merger = new SolrIndexMerger(new File(args[2]), Integer.parseInt(args[3]));
+        if (args.length == 5) {
+            merger.setFinalizer(IndexFinalizer.forceMerge(Integer.parseInt(args[4]), 0));
+        }
+        
+        JobConf conf = new JobConf(SolrIndexMerger.class);
+        merger.makeFlow(conf, args[0], args[1]).complete();
+    }
+}
@@ -0,0 +1,315 @@
+package com.scaleunlimited.cascading.scheme.hadoop;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.solr.schema.IndexSchema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cascading.flow.hadoop.util.HadoopUtil;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+
+import com.scaleunlimited.cascading.scheme.core.IndexDirectories;
+import com.scaleunlimited.cascading.scheme.core.SegmentTupleReader;
+import com.scaleunlimited.cascading.scheme.core.SolrSchemeUtil;
+
+/**
+ * Reads the indexes written by SolrOutputFormat back in as tuples. Each segment of each
+ * index is a separate split, and segments with more than maxDocsPerSplit documents are
+ * split into ranges of doc ids, so that large indexes can be read in parallel.
+ */
+public class SolrInputFormat implements InputFormat<Tuple, Tuple> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SolrInputFormat.class);
+    
+    public static final String SOLR_CORE_PATH_KEY = "com.scaleunlimited.cascading.solr.source.corePath";
+    public static final String SOURCE_FIELDS_KEY = "com.scaleunlimited.cascading.solr.sourceFields";
+    public static final String MAX_DOCS_PER_SPLIT_KEY = "com.scaleunlimited.cascading.solr.maxDocsPerSplit";
+    
+    public static final int DEFAULT_MAX_DOCS_PER_SPLIT = 1000000;
+    
+    public static class SolrInputSplit implements InputSplit {
+        
+        private String _indexDir;
+        private String _segmentName;
+        private int _startDoc;
+        private int _endDoc;
+        private long _length;
+        
+        // Only used when scheduling tasks, so (like FileSplit) it's not serialized.
+        private String[] _hosts;
+        
+        public SolrInputSplit() {
+            // For Hadoop serialization
+            _hosts = new String[0];
+        }
+        
+        /**
+         * @param hosts where the split's data is stored, best first.
+         */
+        public SolrInputSplit(String indexDir, String segmentName, int startDoc, int endDoc, long length, String[] hosts) {
+            _indexDir = indexDir;
+            _segmentName = segmentName;
+            _startDoc = startDoc;
+            _endDoc = endDoc;
+            _length = length;
+            _hosts = hosts;
+        }
+        
+        public String getIndexDir() {
+            return _indexDir;
+        }
+        
+        public String getSegmentName() {
+            return _segmentName;
+        }
+        
+        public int getStartDoc() {
+            return _startDoc;
+        }
+        
+        public int getEndDoc() {
+            return _endDoc;
+        }
+        
+        @Override
+        public long getLength() throws IOException {
+            return _length;
+        }
+        
+        @Override
+        public String[] getLocations() throws IOException {
+            return _hosts;
+        }
+        
+        @Override
+        public void write(DataOutput out) throws IOException {
+            Text.writeString(out, _indexDir);
+            Text.writeString(out, _segmentName);
+            WritableUtils.writeVInt(out, _startDoc);
+            WritableUtils.writeVInt(out, _endDoc);
+            WritableUtils.writeVLong(out, _length);
+        }
+        
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            _indexDir = Text.readString(in);
+            _segmentName = Text.readString(in);
+            _startDoc = WritableUtils.readVInt(in);
+            _endDoc = WritableUtils.readVInt(in);
+            _length = WritableUtils.readVLong(in);
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%s/%s[%d-%d]", _indexDir, _segmentName, _startDoc, _endDoc);
+        }
+    }
+    
+    private static class SolrRecordReader implements RecordReader<Tuple, Tuple> {
+        
+        private File _localSolrCore;
+        private boolean _deleteLocalSolrCore;
+        private Directory _indexDir;
+        private SegmentReader _segmentReader;
+        private SegmentTupleReader _tupleReader;
+        private int _numDocs;
+        
+        public SolrRecordReader(JobConf conf, SolrInputSplit split) throws IOException {
+            // We need the schema to convert field values, which we get the same way as the sink.
+            Path solrCoreArchive = new Path(conf.get(SOLR_CORE_PATH_KEY));
+            _localSolrCore = SolrCoreArchive.findLocalCoreDir(conf, solrCoreArchive);
+            if (_localSolrCore == null) {
+                LOGGER.info("Solr core directory isn't in the distributed cache, copying from " + solrCoreArchive);
+                _localSolrCore = SolrCoreArchive.copyToLocal(conf, solrCoreArchive);
+                _deleteLocalSolrCore = true;
+            }
+            
+            IndexSchema schema = SolrSchemeUtil.getSchema(_localSolrCore);
+            Fields sourceFields = HadoopUtil.deserializeBase64(conf.get(SOURCE_FIELDS_KEY), conf, Fields.class);
+            
+            // Only open the split's segment, versus every segment in the index.
+            _indexDir = IndexDirectories.open(new Path(split.getIndexDir()), conf);
+            SegmentInfos segmentInfos = new SegmentInfos();
+            segmentInfos.read(_indexDir);
+            
+            for (SegmentCommitInfo segmentInfo : segmentInfos) {
+                if (segmentInfo.info.name.equals(split.getSegmentName())) {
+                    _segmentReader = new SegmentReader(segmentInfo, IOContext.READ);
+                    break;
+                }
+            }
+            
+            if (_segmentReader == null) {
+                close();
+                throw new IOException("Can't find index segment for split " + split);
+            }
+            
+            _tupleReader = new SegmentTupleReader(_segmentReader, schema, sourceFields, split.getStartDoc(), split.getEndDoc());
+            
+            _numDocs = Math.max(1, _tupleReader.getRemaining());
+        }
+        
+        @Override
+        public boolean next(Tuple key, Tuple value) throws IOException {
+            return _tupleReader.next(value);
+        }
+        
+        @Override
+        public Tuple createKey() {
+            return new Tuple();
+        }
+        
+        @Override
+        public Tuple createValue() {
+            return new Tuple();
+        }
+        
+        @Override
+        public long getPos() throws IOException {
+            return _numDocs - _tupleReader.getRemaining();
+        }
+        
+        @Override
+        public float getProgress() throws IOException {
+            return (float)getPos() / (float)_numDocs;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                if (_segmentReader != null) {
+                    _segmentReader.close();
+                    _segmentReader = null;
+                }
+                
+                _indexDir.close();
+            } finally {
+                if (_deleteLocalSolrCore) {
+                    FileUtils.deleteDirectory(_localSolrCore.getParentFile());
+                    _deleteLocalSolrCore = false;
+                }
+            }
+        }
+    }
+    
+    @Override
+    public InputSplit[] getSplits(JobConf conf, int numSplits) throws IOException {
+        int maxDocsPerSplit = conf.getInt(MAX_DOCS_PER_SPLIT_KEY, DEFAULT_MAX_DOCS_PER_SPLIT);
+        List<InputSplit> result = new ArrayList<InputSplit>();
+        
+        for (Path inputPath : FileInputFormat.getInputPaths(conf)) {
+            FileSystem fs = inputPath.getFileSystem(conf);
+            List<Path> indexDirs = IndexDirectories.find(fs, inputPath);
+            if (indexDirs.isEmpty()) {
+                throw new IOException("No Solr indexes found in " + inputPath);
+            }
+            
+            for (Path indexDir : indexDirs) {
+                Directory dir = IndexDirectories.open(indexDir, conf);
+                
+                try {
+                    SegmentInfos segmentInfos = new SegmentInfos();
+                    segmentInfos.read(dir);
+                    
+                    for (SegmentCommitInfo segmentInfo : segmentInfos) {
+                        int maxDoc = segmentInfo.info.getDocCount();
+                        long segmentSize = segmentInfo.sizeInBytes();
+                        String[] hosts = getSegmentHosts(fs, indexDir, dir, segmentInfo);
+                        
+                        for (int startDoc = 0; startDoc < maxDoc; startDoc += maxDocsPerSplit) {
+                            int endDoc = (int)Math.min(maxDoc, (long)startDoc + maxDocsPerSplit);
+                            long length = (segmentSize * (endDoc - startDoc)) / maxDoc;
+                            result.add(new SolrInputSplit(indexDir.toString(), segmentInfo.info.name, startDoc, endDoc, length, hosts));
+                        }
+                    }
+                } finally {
+                    dir.close();
+                }
+            }
+        }
+        
+        LOGGER.info(String.format("Reading %d splits from %d input paths", result.size(), FileInputFormat.getInputPaths(conf).length));
+        return result.toArray(new InputSplit[result.size()]);
+    }
+    
+    /**
+     * Find the hosts that store the segment's largest file, which is where most of the
+     * split's data will be read from. For a compound file segment this is the .cfs file,
+     * and otherwise typically the stored fields.
+     * 
+     * @param fs
+     * @param indexDir
+     * @param dir
+     * @param segmentInfo
+     * @return hosts for the segment's largest file, with the most data first.
+     * @throws IOException
+     */
+    private static String[] getSegmentHosts(FileSystem fs, Path indexDir, Directory dir, SegmentCommitInfo segmentInfo) throws IOException {
+        String largestFile = null;
+        long largestLength = -1;
+        for (String fileName : segmentInfo.files()) {
+            long length = dir.fileLength(fileName);
+            if (length > largestLength) {
+                largestFile = fileName;
+                largestLength = length;
+            }
+        }
+        
+        if (largestFile == null) {
+            return new String[0];
+        }
+        
+        FileStatus status = fs.getFileStatus(new Path(indexDir, largestFile));
+        final Map<String, Long> hostBytes = new HashMap<String, Long>();
+        for (BlockLocation block : fs.getFileBlockLocations(status, 0, status.getLen())) {
+            for (String host : block.getHosts()) {
+                Long bytes = hostBytes.get(host);
+                hostBytes.put(host, (bytes == null ? 0 : bytes) + block.getLength());
+            }
+        }
+        
+        List<String> hosts = new ArrayList<String>(hostBytes.keySet());
+        Collections.sort(hosts, new Comparator<String>() {
+            
+            @Override
+            public int compare(String host1, String host2) {
+                return Long.compare(hostBytes.get(host2), hostBytes.get(host1));
+            }
+        });
+        
+        return hosts.toArray(new String[hosts.size()]);
+    }
+    
+    @Override
+    public RecordReader<Tuple, Tuple> getRecordReader(InputSplit split, JobConf conf, Reporter reporter) throws IOException {
+        return new SolrRecordReader(conf, (SolrInputSplit)split);
+    }
+}
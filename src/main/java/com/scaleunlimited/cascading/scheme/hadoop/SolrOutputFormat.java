@@ -1,11 +1,17 @@
 package com.scaleunlimited.cascading.scheme.hadoop;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.UUID;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapred.FileOutputFormat;
@@ -13,16 +19,29 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.RecordWriter;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.Progressable;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import cascading.flow.hadoop.util.HadoopUtil;
+import cascading.tap.TapException;
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
 
+import com.scaleunlimited.cascading.scheme.core.DedupMode;
+import com.scaleunlimited.cascading.scheme.core.IndexFinalizer;
+import com.scaleunlimited.cascading.scheme.core.IndexTuning;
+import com.scaleunlimited.cascading.scheme.core.IndexingMetrics;
+import com.scaleunlimited.cascading.scheme.core.IndexingMetrics.Metric;
 import com.scaleunlimited.cascading.scheme.core.KeepAliveHook;
+import com.scaleunlimited.cascading.scheme.core.KeepAliveService;
+import com.scaleunlimited.cascading.scheme.core.LuceneWriter;
 import com.scaleunlimited.cascading.scheme.core.SolrSchemeUtil;
+import com.scaleunlimited.cascading.scheme.core.SolrShardPipe;
+import com.scaleunlimited.cascading.scheme.core.SolrShardRouter;
 import com.scaleunlimited.cascading.scheme.core.SolrWriter;
+import com.scaleunlimited.cascading.scheme.core.SolrWriterOptions;
 
 public class SolrOutputFormat extends FileOutputFormat<Tuple, Tuple> {
     private static final Logger LOGGER = LoggerFactory.getLogger(SolrOutputFormat.class);
@@ -30,132 +49,635 @@ public class SolrOutputFormat extends FileOutputFormat<Tuple, Tuple> {
     public static final String SOLR_CORE_PATH_KEY = "com.scaleunlimited.cascading.solr.corePath";
     public static final String SINK_FIELDS_KEY = "com.scaleunlimited.cascading.solr.sinkFields";
     public static final String MAX_SEGMENTS_KEY = "com.scaleunlimited.cascading.solr.maxSegments";
+    public static final String NUM_INDEXER_THREADS_KEY = "com.scaleunlimited.cascading.solr.numIndexerThreads";
     public static final String DATA_DIR_PROPERTY_NAME_KEY = "com.scaleunlimited.cascading.solr.dataDirPropertyName";
+    public static final String ASYNC_INDEXING_KEY = "com.scaleunlimited.cascading.solr.asyncIndexing";
+    public static final String DIRECT_UPDATES_KEY = "com.scaleunlimited.cascading.solr.directUpdates";
+    public static final String LUCENE_INDEXING_KEY = "com.scaleunlimited.cascading.solr.luceneIndexing";
+    public static final String MAX_DOCS_PER_BATCH_KEY = "com.scaleunlimited.cascading.solr.maxDocsPerBatch";
+    public static final String MAX_BYTES_PER_BATCH_KEY = "com.scaleunlimited.cascading.solr.maxBytesPerBatch";
+    public static final String ADAPTIVE_BATCHING_KEY = "com.scaleunlimited.cascading.solr.adaptiveBatching";
+    public static final String NUM_SUB_INDEXES_KEY = "com.scaleunlimited.cascading.solr.numSubIndexes";
+    public static final String STREAMING_UPLOAD_INTERVAL_KEY = "com.scaleunlimited.cascading.solr.streamingUploadInterval";
+    public static final String NUM_UPLOAD_THREADS_KEY = "com.scaleunlimited.cascading.solr.numUploadThreads";
+    public static final String VERIFY_UPLOADS_KEY = "com.scaleunlimited.cascading.solr.verifyUploads";
+    public static final String HDFS_DIRECTORY_KEY = "com.scaleunlimited.cascading.solr.hdfsDirectory";
+    public static final String BULK_LOAD_CONFIG_KEY = "com.scaleunlimited.cascading.solr.bulkLoadConfig";
+    public static final String AUTO_TUNE_KEY = "com.scaleunlimited.cascading.solr.autoTune";
+    public static final String RAM_BUFFER_SIZE_MB_KEY = "com.scaleunlimited.cascading.solr.ramBufferSizeMB";
+    public static final String MAX_MERGE_THREADS_KEY = "com.scaleunlimited.cascading.solr.maxMergeThreads";
+    public static final String STALL_TIMEOUT_KEY = "com.scaleunlimited.cascading.solr.stallTimeout";
+    public static final String DEDUP_MODE_KEY = "com.scaleunlimited.cascading.solr.dedupMode";
+    public static final String FINALIZER_KEY = "com.scaleunlimited.cascading.solr.finalizer";
+    public static final String NUM_SHARDS_KEY = "com.scaleunlimited.cascading.solr.numShards";
     
     public static final int DEFAULT_MAX_SEGMENTS = 10;
-
+    public static final int DEFAULT_NUM_INDEXER_THREADS = 1;
+    public static final boolean DEFAULT_ASYNC_INDEXING = false;
+    public static final boolean DEFAULT_DIRECT_UPDATES = false;
+    public static final boolean DEFAULT_LUCENE_INDEXING = false;
+    public static final int DEFAULT_MAX_DOCS_PER_BATCH = SolrWriterOptions.DEFAULT_MAX_DOCS_PER_BATCH;
+    public static final long DEFAULT_MAX_BYTES_PER_BATCH = SolrWriterOptions.DEFAULT_MAX_BYTES_PER_BATCH;
+    public static final boolean DEFAULT_ADAPTIVE_BATCHING = false;
+    public static final int DEFAULT_NUM_SUB_INDEXES = SolrWriterOptions.DEFAULT_NUM_SUB_INDEXES;
+    public static final long DEFAULT_STREAMING_UPLOAD_INTERVAL = SolrWriterOptions.DEFAULT_STREAMING_UPLOAD_INTERVAL;
+    public static final int DEFAULT_NUM_UPLOAD_THREADS = SolrWriterOptions.DEFAULT_NUM_UPLOAD_THREADS;
+    public static final boolean DEFAULT_VERIFY_UPLOADS = false;
+    public static final boolean DEFAULT_HDFS_DIRECTORY = false;
+    public static final boolean DEFAULT_BULK_LOAD_CONFIG = false;
+    public static final boolean DEFAULT_AUTO_TUNE = false;
+    public static final float DEFAULT_RAM_BUFFER_SIZE_MB = 0;
+    public static final int DEFAULT_MAX_MERGE_THREADS = 0;
+    public static final long DEFAULT_STALL_TIMEOUT = SolrWriterOptions.DEFAULT_STALL_TIMEOUT;
+    public static final DedupMode DEFAULT_DEDUP_MODE = DedupMode.NONE;
+    
     private static class SolrRecordWriter implements RecordWriter<Tuple, Tuple> {
-
-        private Path _outputPath;
-        private FileSystem _outputFS;
+        
+        private JobConf _conf;
+        private Fields _sinkFields;
+        private String _dataDirPropertyName;
+        private SolrWriterOptions _options;
         
         private transient KeepAliveHook _keepAliveHook;
-        private transient File _localIndexDir;
-        private transient SolrWriter _solrWriter;
+        
+        // For merging and uploading. Each SolrWriter has its own service for indexing.
+        private transient KeepAliveService _keepAliveService;
+        
+        // Uploads and sub-index merges. Each SolrWriter has its own metrics for indexing.
+        private transient IndexingMetrics _metrics;
+        private transient File _localSolrCore;
+        private transient boolean _deleteLocalSolrCore;
+        
+        // The one index this task builds, or null for a sharded sink.
+        private transient TaskIndex _taskIndex;
+        
+        // For a sharded sink, we build one index per shard that we get documents for. The
+        // shard number is in one of the sink fields, and the rest of them are the document.
+        // Grouping by shard doesn't map shard N to reducer N, so a task can get several.
+        private transient int _numShards;
+        private transient int _shardFieldPos;
+        private transient int[] _docFieldPos;
+        private transient Map<Integer, TaskIndex> _shardIndexes;
         
         public SolrRecordWriter(JobConf conf, String name, Progressable progress) throws IOException {
+            _conf = conf;
             
-            // Copy Solr core directory from HDFS to temp local location.
-            Path sourcePath = new Path(conf.get(SOLR_CORE_PATH_KEY));
-            String coreName = sourcePath.getName();
-            String tmpDir = System.getProperty("java.io.tmpdir");
-            File localSolrCore = new File(tmpDir, "cascading.solr-" + UUID.randomUUID() + "/" + coreName);
-            FileSystem sourceFS = sourcePath.getFileSystem(conf);
-            sourceFS.copyToLocalFile(sourcePath, new Path(localSolrCore.getAbsolutePath()));
-            
-            // Figure out where ultimately the results need to wind up.
-            _outputPath = new Path(FileOutputFormat.getTaskOutputPath(conf, name), "index");
-            _outputFS = _outputPath.getFileSystem(conf);
-
-            // Get the set of fields we're indexing.
-            Fields sinkFields = HadoopUtil.deserializeBase64(conf.get(SINK_FIELDS_KEY), conf, Fields.class);
+            // Use the Solr core directory that Hadoop unpacked for all tasks on this node,
+            // or make our own copy if it's not in the distributed cache.
+            Path solrCoreArchive = new Path(conf.get(SOLR_CORE_PATH_KEY));
+            _localSolrCore = SolrCoreArchive.findLocalCoreDir(conf, solrCoreArchive);
+            if (_localSolrCore == null) {
+                LOGGER.info("Solr core directory isn't in the distributed cache, copying from " + solrCoreArchive);
+                _localSolrCore = SolrCoreArchive.copyToLocal(conf, solrCoreArchive);
+                _deleteLocalSolrCore = true;
+            }
             
-            int maxSegments = conf.getInt(MAX_SEGMENTS_KEY, DEFAULT_MAX_SEGMENTS);
+            // Get the set of fields we're indexing.
+            _sinkFields = HadoopUtil.deserializeBase64(conf.get(SINK_FIELDS_KEY), conf, Fields.class);
             
-            String dataDirPropertyName = conf.get(DATA_DIR_PROPERTY_NAME_KEY);
+            _dataDirPropertyName = conf.get(DATA_DIR_PROPERTY_NAME_KEY);
+            _options = getWriterOptions(conf);
             
-            // Set up local Solr home.
-            File localSolrHome = SolrSchemeUtil.makeTempSolrHome(localSolrCore);
-
-            // This is where data will wind up, inside of an index subdir.
-            _localIndexDir = new File(localSolrHome, "data");
-
             _keepAliveHook = new HadoopKeepAliveHook(progress);
+            _keepAliveService = new KeepAliveService(String.format("SolrRecordWriter (%s)", name), _keepAliveHook, _options.getStallTimeout());
+            _metrics = new IndexingMetrics();
+            
+            if (_options.isHdfsDirectory()) {
+                // We can't merge sub-indexes that are written directly to HDFS.
+                _options.setNumSubIndexes(1);
+            }
             
-            _solrWriter = new SolrWriter(_keepAliveHook, sinkFields, dataDirPropertyName, _localIndexDir.getAbsolutePath(), localSolrCore, maxSegments) { };
+            if (_options.isAutoTune()) {
+                autoTune(_options);
+            }
+            
+            _numShards = conf.getInt(NUM_SHARDS_KEY, 0);
+            if (_numShards > 0) {
+                // Without a GroupBy on the shard there's no reduce phase, and every task
+                // would get documents for every shard.
+                if (conf.getNumReduceTasks() == 0) {
+                    throw new IOException(String.format("Sharded Solr sink has to follow a GroupBy on %s (see SolrShardPipe)", SolrShardPipe.SHARD_FIELD_NAME));
+                }
+                
+                Fields shardField = new Fields(SolrShardPipe.SHARD_FIELD_NAME);
+                _shardFieldPos = _sinkFields.getPos(SolrShardPipe.SHARD_FIELD_NAME);
+                _docFieldPos = new int[_sinkFields.size() - 1];
+                for (int i = 0, j = 0; i < _sinkFields.size(); i++) {
+                    if (i != _shardFieldPos) {
+                        _docFieldPos[j++] = i;
+                    }
+                }
+                
+                _sinkFields = _sinkFields.subtract(shardField);
+                _shardIndexes = new HashMap<Integer, TaskIndex>();
+            } else {
+                _taskIndex = new TaskIndex(name);
+            }
+        }
+        
+        /**
+         * Pick the RAM buffer size and number of merge threads for this task's heap
+         * and cores, and log what we picked. This isn't published as a counter, since
+         * counters get summed across tasks, and each task can pick different values.
+         */
+        private void autoTune(SolrWriterOptions options) {
+            Runtime runtime = Runtime.getRuntime();
+            IndexTuning.autoTune(options, runtime.maxMemory(), runtime.availableProcessors());
+            
+            LOGGER.info(String.format("Auto-tuned for %dMB max heap and %d cores: RAM buffer size of %.0fMB, %d max merge threads",
+                            runtime.maxMemory() / (1024 * 1024), runtime.availableProcessors(), options.getRamBufferSizeMB(), options.getMaxMergeThreads()));
+        }
+        
+        private Collection<TaskIndex> getTaskIndexes() {
+            if (_shardIndexes != null) {
+                return _shardIndexes.values();
+            } else {
+                return Collections.singletonList(_taskIndex);
+            }
         }
         
         @Override
         protected void finalize() throws Throwable {
-            if (_solrWriter != null) {
-                _solrWriter.cleanup();
-                _solrWriter = null;
+            for (TaskIndex taskIndex : getTaskIndexes()) {
+                if (taskIndex != null) {
+                    taskIndex.abort();
+                }
             }
             
+            _keepAliveService.close();
             super.finalize();
         }
         
         @Override
         public void close(final Reporter reporter) throws IOException {
-            _solrWriter.cleanup();
-            
-            // Finally we can copy the resulting index up to the target location in HDFS
-            copyToHDFS();
-        }
-
-        private void copyToHDFS() throws IOException {
-            File indexDir = new File(_localIndexDir, "index");
-            
-            // HACK!!! Hadoop has a bug where a .crc file locally with the matching name will
-            // trigger an error, so we want to get rid of all such .crc files from inside of
-            // the index dir.
-            removeCrcFiles(indexDir);
-            
-            // Because we never write anything out, we need to tell Hadoop we're not hung.
-            Thread reporterThread = startProgressThread();
-
             try {
-                long indexSize = FileUtils.sizeOfDirectory(indexDir);
-                LOGGER.info(String.format("Copying %d bytes of index from %s to %s", indexSize, _localIndexDir, _outputPath));
-                _outputFS.copyFromLocalFile(true, new Path(indexDir.getAbsolutePath()), _outputPath);
+                // Finish all of the indexes, even if some of them fail.
+                IOException firstError = null;
+                for (TaskIndex taskIndex : getTaskIndexes()) {
+                    try {
+                        taskIndex.close();
+                    } catch (IOException e) {
+                        if (firstError == null) {
+                            firstError = e;
+                        }
+                    }
+                }
+                
+                if (firstError != null) {
+                    throw firstError;
+                }
             } finally {
-                reporterThread.interrupt();
+                _metrics.publish(_keepAliveHook);
+                _keepAliveService.close();
+                
+                // The core directory from the distributed cache is shared with other tasks.
+                if (_deleteLocalSolrCore) {
+                    FileUtils.deleteDirectory(_localSolrCore.getParentFile());
+                }
             }
         }
         
-        private void removeCrcFiles(File dir) {
-            File[] crcFiles = dir.listFiles(new FilenameFilter() {
-
-                @Override
-                public boolean accept(File dir, String name) {
-                    return name.endsWith(".crc");
-                }
-            });
+        @Override
+        public void write(Tuple key, Tuple value) throws IOException {
+            if (_shardIndexes == null) {
+                _taskIndex.add(value);
+            } else {
+                getShardIndex(value.getInteger(_shardFieldPos)).add(value.get(_docFieldPos));
+            }
+        }
+        
+        /**
+         * Find the index for <shard>, creating it the first time we see a document for
+         * that shard.
+         * 
+         * @param shard
+         * @return index for the document's shard.
+         * @throws IOException if the shard isn't valid.
+         */
+        private TaskIndex getShardIndex(int shard) throws IOException {
+            if ((shard < 0) || (shard >= _numShards)) {
+                throw new IOException(String.format("Invalid shard %d, sink has %d shards", shard, _numShards));
+            }
             
-            for (File crcFile : crcFiles) {
-                crcFile.delete();
+            TaskIndex result = _shardIndexes.get(shard);
+            if (result == null) {
+                String shardName = SolrShardRouter.getShardName(shard);
+                LOGGER.info(String.format("Building index for %s of %d", shardName, _numShards));
+                result = new TaskIndex(shardName);
+                _shardIndexes.put(shard, result);
             }
+            
+            return result;
         }
         
-        @Override
-        public void write(Tuple key, Tuple value) throws IOException {
-            _solrWriter.add(value);
+        /**
+         * One index built by this task, which winds up in the <name> subdir of the
+         * task's output directory.
+         */
+        private class TaskIndex {
+            
+            private Path _outputPath;
+            private FileSystem _outputFS;
+            
+            private File _localIndexDir;
+            private IndexFinalizer _finalizer;
+            private SolrWriter[] _solrWriters;
+            private File[] _subIndexDirs;
+            private int _nextWriter;
+            private int _keyFieldPos;
+            private IndexUploader _uploader;
+            private SegmentStreamer _segmentStreamer;
+            
+            public TaskIndex(String name) throws IOException {
+                // Figure out where ultimately the results need to wind up.
+                _outputPath = new Path(FileOutputFormat.getTaskOutputPath(_conf, name), "index");
+                _outputFS = _outputPath.getFileSystem(_conf);
+                
+                // Set up local Solr home.
+                File localSolrHome = SolrSchemeUtil.makeTempSolrHome(_localSolrCore);
+                
+                // This is where data will wind up, inside of an index subdir.
+                _localIndexDir = new File(localSolrHome, "data");
+                
+                if (!_options.isHdfsDirectory()) {
+                    _uploader = new IndexUploader(_outputFS, _outputPath, _options.getNumUploadThreads(), _keepAliveService)
+                        .setVerifyUploads(_options.isVerifyUploads());
+                }
+                
+                int numSubIndexes = _options.getNumSubIndexes();
+                _solrWriters = new SolrWriter[numSubIndexes];
+                _nextWriter = 0;
+                _keyFieldPos = -1;
+                
+                if (_options.isHdfsDirectory()) {
+                    // Write the index straight into the task's output directory, so there's
+                    // nothing to copy when we're done.
+                    String dataDir = _outputFS.makeQualified(_outputPath.getParent()).toString();
+                    LOGGER.info("Writing index directly to " + _outputPath);
+                    _solrWriters[0] = new SolrWriter(_keepAliveHook, _sinkFields, _dataDirPropertyName, dataDir, _localSolrCore, _options, _conf) { };
+                } else if (numSubIndexes == 1) {
+                    _solrWriters[0] = new SolrWriter(_keepAliveHook, _sinkFields, _dataDirPropertyName, _localIndexDir.getAbsolutePath(), _localSolrCore, _options, _conf) { };
+                    
+                    if (_options.getStreamingUploadInterval() > 0) {
+                        _segmentStreamer = new SegmentStreamer(_solrWriters[0], _uploader, _outputPath, _options.getStreamingUploadInterval(), _metrics);
+                        _segmentStreamer.start();
+                    }
+                } else {
+                    // Each sub-index gets its own writer with its own indexer thread(s), so that
+                    // analysis & indexing for the task is spread across that many cores.
+                    _finalizer = _options.getFinalizer();
+                    
+                    // The sub-index writers use Lucene directly, so we don't start one Solr core
+                    // container per sub-index (which would all share the same data dir property).
+                    SolrWriterOptions subOptions = new SolrWriterOptions(_options);
+                    subOptions.setAsyncIndexing(true);
+                    subOptions.setLuceneIndexing(true);
+                    
+                    // Replacing needs documents to be indexed in the order they were added.
+                    if (_options.getDedupMode() == DedupMode.REPLACE) {
+                        subOptions.setNumIndexerThreads(1);
+                    }
+                    
+                    // No point in merging sub-indexes, since we merge everything at the end.
+                    subOptions.setFinalizer(IndexFinalizer.none());
+                    
+                    _subIndexDirs = new File[numSubIndexes];
+                    for (int i = 0; i < numSubIndexes; i++) {
+                        File subDataDir = new File(localSolrHome, "data-" + i);
+                        _subIndexDirs[i] = new File(subDataDir, "index");
+                        _solrWriters[i] = new SolrWriter(_keepAliveHook, _sinkFields, _dataDirPropertyName, subDataDir.getAbsolutePath(), _localSolrCore, subOptions, _conf) { };
+                    }
+                    
+                    // Each writer only finds duplicates it has seen, so all documents with the
+                    // same key have to go to the same sub-index. The writers have already made
+                    // sure that the key is one of the sink fields.
+                    if (_options.getDedupMode() != DedupMode.NONE) {
+                        String keyFieldName = SolrSchemeUtil.getSchema(_localSolrCore).getUniqueKeyField().getName();
+                        _keyFieldPos = _sinkFields.getPos(keyFieldName);
+                    }
+                }
+            }
+            
+            public void add(Tuple value) throws IOException {
+                Object key = (_keyFieldPos == -1) ? null : value.getObject(_keyFieldPos);
+                if (key != null) {
+                    _solrWriters[(key.toString().hashCode() & Integer.MAX_VALUE) % _solrWriters.length].add(value);
+                    return;
+                }
+                
+                _solrWriters[_nextWriter].add(value);
+                
+                _nextWriter += 1;
+                if (_nextWriter == _solrWriters.length) {
+                    _nextWriter = 0;
+                }
+            }
+            
+            /**
+             * Clean up whatever is still running, when we never got closed.
+             */
+            public void abort() throws IOException {
+                if (_segmentStreamer != null) {
+                    stopStreaming();
+                }
+                
+                if (_solrWriters != null) {
+                    cleanupWriters();
+                }
+                
+                if (_uploader != null) {
+                    _uploader.close();
+                }
+            }
+            
+            public void close() throws IOException {
+                if (_segmentStreamer != null) {
+                    stopStreaming();
+                }
+                
+                cleanupWriters();
+                
+                if (_options.isHdfsDirectory()) {
+                    removeNonIndexFiles();
+                } else {
+                    if (_subIndexDirs != null) {
+                        mergeSubIndexes();
+                    }
+                    
+                    // Finally we can copy the resulting index up to the target location in HDFS
+                    try {
+                        finishUpload();
+                    } finally {
+                        _uploader.close();
+                    }
+                }
+            }
+            
+            private void stopStreaming() throws IOException {
+                SegmentStreamer segmentStreamer = _segmentStreamer;
+                _segmentStreamer = null;
+                
+                try {
+                    segmentStreamer.stopStreaming();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for segment upload to finish", e);
+                }
+            }
+            
+            /**
+             * Upload the index to its final location, in parallel. If we've been streaming
+             * segments during indexing, this is only what hasn't already been uploaded, which
+             * should mostly be segments created by the final commit & merge.
+             * 
+             * @throws IOException
+             */
+            private void finishUpload() throws IOException {
+                File indexDir = new File(_localIndexDir, "index");
+                
+                // Because we never write anything out, we need to tell Hadoop we're not hung. The
+                // uploader reports progress as it copies data.
+                _keepAliveService.startWork();
+                
+                try {
+                    long indexSize = FileUtils.sizeOfDirectory(indexDir);
+                    LOGGER.info(String.format("Copying %d bytes of index from %s to %s", indexSize, _localIndexDir, _outputPath));
+                    
+                    long startTime = System.currentTimeMillis();
+                    long numBytes = _uploader.finish(indexDir);
+                    long deltaTime = Math.max(1, System.currentTimeMillis() - startTime);
+                    _metrics.add(Metric.UPLOAD_BYTES, numBytes);
+                    _metrics.add(Metric.UPLOAD_TIME, deltaTime);
+                    LOGGER.info(String.format("Copied %d bytes in %dms (%.1f MB/sec)", numBytes, deltaTime, (numBytes * 1000.0) / (deltaTime * 1024.0 * 1024.0)));
+                    
+                    FileUtils.deleteDirectory(indexDir);
+                } finally {
+                    _keepAliveService.endWork();
+                }
+            }
+            
+            /**
+             * When Solr writes directly to the task's output directory, it also creates other
+             * things in its data dir (e.g. the transaction log), which aren't part of the result.
+             * 
+             * @throws IOException
+             */
+            private void removeNonIndexFiles() throws IOException {
+                Path dataDir = _outputPath.getParent();
+                for (FileStatus status : _outputFS.listStatus(dataDir)) {
+                    if (!status.getPath().getName().equals(_outputPath.getName())) {
+                        _outputFS.delete(status.getPath(), true);
+                    }
+                }
+                
+                _outputFS.delete(new Path(_outputPath, IndexWriter.WRITE_LOCK_NAME), false);
+            }
+            
+            /**
+             * Clean up all of the writers, even if some of them fail.
+             * 
+             * @throws IOException the first error we got.
+             */
+            private void cleanupWriters() throws IOException {
+                SolrWriter[] solrWriters = _solrWriters;
+                _solrWriters = null;
+                
+                IOException firstError = null;
+                for (SolrWriter solrWriter : solrWriters) {
+                    try {
+                        solrWriter.cleanup();
+                    } catch (IOException e) {
+                        if (firstError == null) {
+                            firstError = e;
+                        }
+                    }
+                }
+                
+                if (firstError != null) {
+                    throw firstError;
+                }
+            }
+            
+            /**
+             * Combine all of the sub-indexes into the one index that the task outputs, via
+             * a segment copy, then merge as per the finalizer.
+             * 
+             * @throws IOException
+             */
+            private void mergeSubIndexes() throws IOException {
+                _keepAliveService.startWork();
+                
+                try {
+                    long startTime = System.currentTimeMillis();
+                    
+                    LuceneWriter luceneWriter = new LuceneWriter(_localSolrCore, new File(_localIndexDir, "index"), 1);
+                    int numSegments;
+                    try {
+                        luceneWriter.addIndexes(Arrays.asList(_subIndexDirs));
+                        _keepAliveService.progress();
+                        numSegments = luceneWriter.finish(_finalizer);
+                    } finally {
+                        luceneWriter.close();
+                    }
+                    
+                    long deltaTime = System.currentTimeMillis() - startTime;
+                    _metrics.add(Metric.FINALIZE_TIME, deltaTime);
+                    _metrics.add(Metric.SUB_INDEXES_MERGED, _subIndexDirs.length);
+                    LOGGER.info(String.format("Merged %d sub-indexes (%s) in %dms, with %d segments", _subIndexDirs.length, _finalizer, deltaTime, numSegments));
+                    
+                    for (File subIndexDir : _subIndexDirs) {
+                        FileUtils.deleteDirectory(subIndexDir.getParentFile());
+                    }
+                } finally {
+                    _keepAliveService.endWork();
+                }
+            }
         }
         
         /**
-         * Fire off a thread that repeatedly calls Hadoop to tell it we're making progress.
-         * @return
+         * Thread that periodically commits the index, and uploads the files for new
+         * segments while indexing continues. If something goes wrong we just stop
+         * streaming, since close() uploads whatever is left anyway.
          */
-        private Thread startProgressThread() {
-            Thread result = new Thread() {
-                @Override
-                public void run() {
-                    while (!isInterrupted()) {
-                        _keepAliveHook.keepAlive();
+        private static class SegmentStreamer extends Thread {
+            
+            private SolrWriter _solrWriter;
+            private IndexUploader _uploader;
+            private Path _outputPath;
+            private long _interval;
+            private IndexingMetrics _metrics;
+            private CountDownLatch _stopLatch;
+            
+            public SegmentStreamer(SolrWriter solrWriter, IndexUploader uploader, Path outputPath, long interval, IndexingMetrics metrics) {
+                super("SolrRecordWriter segment streamer");
+                setDaemon(true);
+                
+                _solrWriter = solrWriter;
+                _uploader = uploader;
+                _outputPath = outputPath;
+                _interval = interval;
+                _metrics = metrics;
+                _stopLatch = new CountDownLatch(1);
+            }
+            
+            @Override
+            public void run() {
+                try {
+                    while (!_stopLatch.await(_interval, TimeUnit.MILLISECONDS)) {
+                        IndexCommit commit = _solrWriter.reserveCommit();
                         
                         try {
-                            sleep(10 * 1000);
-                        } catch (InterruptedException e) {
-                            interrupt();
+                            long startTime = System.currentTimeMillis();
+                            long numBytes = _uploader.uploadCommit(commit);
+                            long deltaTime = System.currentTimeMillis() - startTime;
+                            _metrics.add(Metric.UPLOAD_BYTES, numBytes);
+                            _metrics.add(Metric.UPLOAD_TIME, deltaTime);
+                            _metrics.add(Metric.STREAMED_BYTES, numBytes);
+                            LOGGER.debug(String.format("Streamed %d bytes of segment files to %s in %dms", numBytes, _outputPath, deltaTime));
+                        } finally {
+                            _solrWriter.releaseCommit(commit);
                         }
                     }
+                } catch (InterruptedException e) {
+                    // Time to stop.
+                } catch (Exception e) {
+                    LOGGER.warn("Streaming upload of index segments failed, will upload remaining files at the end", e);
                 }
-            };
+            }
             
-            result.start();
-            return result;
+            /**
+             * Stop streaming, and wait for any in-progress upload to complete.
+             */
+            public void stopStreaming() throws InterruptedException {
+                _stopLatch.countDown();
+                join();
+            }
+        }
+    }
+    
+    /**
+     * Pass the writer settings along to the tasks.
+     * 
+     * @param conf
+     * @param options
+     */
+    public static void setWriterOptions(JobConf conf, SolrWriterOptions options) {
+        // If no max segments was set, let the tasks fall back to our (Hadoop) default.
+        if (options.hasMaxSegments()) {
+            conf.setInt(MAX_SEGMENTS_KEY, options.getMaxSegments());
+        } else {
+            conf.unset(MAX_SEGMENTS_KEY);
+        }
+        
+        conf.setInt(NUM_INDEXER_THREADS_KEY, options.getNumIndexerThreads());
+        conf.setBoolean(ASYNC_INDEXING_KEY, options.isAsyncIndexing());
+        conf.setBoolean(DIRECT_UPDATES_KEY, options.isDirectUpdates());
+        conf.setBoolean(LUCENE_INDEXING_KEY, options.isLuceneIndexing());
+        conf.setInt(MAX_DOCS_PER_BATCH_KEY, options.getMaxDocsPerBatch());
+        conf.setLong(MAX_BYTES_PER_BATCH_KEY, options.getMaxBytesPerBatch());
+        conf.setBoolean(ADAPTIVE_BATCHING_KEY, options.isAdaptiveBatching());
+        conf.setInt(NUM_SUB_INDEXES_KEY, options.getNumSubIndexes());
+        conf.setLong(STREAMING_UPLOAD_INTERVAL_KEY, options.getStreamingUploadInterval());
+        conf.setInt(NUM_UPLOAD_THREADS_KEY, options.getNumUploadThreads());
+        conf.setBoolean(VERIFY_UPLOADS_KEY, options.isVerifyUploads());
+        conf.setBoolean(HDFS_DIRECTORY_KEY, options.isHdfsDirectory());
+        conf.setBoolean(BULK_LOAD_CONFIG_KEY, options.isBulkLoadConfig());
+        conf.setBoolean(AUTO_TUNE_KEY, options.isAutoTune());
+        conf.setFloat(RAM_BUFFER_SIZE_MB_KEY, (float)options.getRamBufferSizeMB());
+        conf.setInt(MAX_MERGE_THREADS_KEY, options.getMaxMergeThreads());
+        conf.setLong(STALL_TIMEOUT_KEY, options.getStallTimeout());
+        conf.setEnum(DEDUP_MODE_KEY, options.getDedupMode());
+        
+        // The default finalizer depends on other settings, which could change in the task.
+        if (options.hasFinalizer()) {
+            try {
+                conf.set(FINALIZER_KEY, HadoopUtil.serializeBase64(options.getFinalizer(), conf));
+            } catch (IOException e) {
+                throw new TapException("Can't serialize index finalizer", e);
+            }
+        } else {
+            conf.unset(FINALIZER_KEY);
+        }
+    }
+    
+    /**
+     * Get the writer settings, using defaults for anything that's not set in <conf>.
+     * 
+     * @param conf
+     * @return settings for the task's SolrWriter.
+     */
+    public static SolrWriterOptions getWriterOptions(JobConf conf) {
+        SolrWriterOptions result = new SolrWriterOptions();
+        result.setMaxSegments(conf.getInt(MAX_SEGMENTS_KEY, DEFAULT_MAX_SEGMENTS));
+        result.setNumIndexerThreads(conf.getInt(NUM_INDEXER_THREADS_KEY, DEFAULT_NUM_INDEXER_THREADS));
+        result.setAsyncIndexing(conf.getBoolean(ASYNC_INDEXING_KEY, DEFAULT_ASYNC_INDEXING));
+        result.setDirectUpdates(conf.getBoolean(DIRECT_UPDATES_KEY, DEFAULT_DIRECT_UPDATES));
+        result.setLuceneIndexing(conf.getBoolean(LUCENE_INDEXING_KEY, DEFAULT_LUCENE_INDEXING));
+        result.setMaxDocsPerBatch(conf.getInt(MAX_DOCS_PER_BATCH_KEY, DEFAULT_MAX_DOCS_PER_BATCH));
+        result.setMaxBytesPerBatch(conf.getLong(MAX_BYTES_PER_BATCH_KEY, DEFAULT_MAX_BYTES_PER_BATCH));
+        result.setAdaptiveBatching(conf.getBoolean(ADAPTIVE_BATCHING_KEY, DEFAULT_ADAPTIVE_BATCHING));
+        result.setNumSubIndexes(conf.getInt(NUM_SUB_INDEXES_KEY, DEFAULT_NUM_SUB_INDEXES));
+        result.setStreamingUploadInterval(conf.getLong(STREAMING_UPLOAD_INTERVAL_KEY, DEFAULT_STREAMING_UPLOAD_INTERVAL));
+        result.setNumUploadThreads(conf.getInt(NUM_UPLOAD_THREADS_KEY, DEFAULT_NUM_UPLOAD_THREADS));
+        result.setVerifyUploads(conf.getBoolean(VERIFY_UPLOADS_KEY, DEFAULT_VERIFY_UPLOADS));
+        result.setHdfsDirectory(conf.getBoolean(HDFS_DIRECTORY_KEY, DEFAULT_HDFS_DIRECTORY));
+        result.setBulkLoadConfig(conf.getBoolean(BULK_LOAD_CONFIG_KEY, DEFAULT_BULK_LOAD_CONFIG));
+        result.setAutoTune(conf.getBoolean(AUTO_TUNE_KEY, DEFAULT_AUTO_TUNE));
+        result.setRamBufferSizeMB(conf.getFloat(RAM_BUFFER_SIZE_MB_KEY, DEFAULT_RAM_BUFFER_SIZE_MB));
+        result.setMaxMergeThreads(conf.getInt(MAX_MERGE_THREADS_KEY, DEFAULT_MAX_MERGE_THREADS));
+        result.setStallTimeout(conf.getLong(STALL_TIMEOUT_KEY, DEFAULT_STALL_TIMEOUT));
+        result.setDedupMode(conf.getEnum(DEDUP_MODE_KEY, DEFAULT_DEDUP_MODE));
+        
+        String finalizer = conf.get(FINALIZER_KEY);
+        if (finalizer != null) {
+            try {
+                result.setFinalizer(HadoopUtil.deserializeBase64(finalizer, conf, IndexFinalizer.class));
+            } catch (IOException e) {
+                throw new TapException("Can't deserialize index finalizer", e);
+            }
         }
         
+        return result;
     }
     
     @Override
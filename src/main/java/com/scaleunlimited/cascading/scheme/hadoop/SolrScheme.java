@@ -5,7 +5,6 @@ import java.io.IOException;
 
 import javax.xml.parsers.ParserConfigurationException;
 
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.OutputCollector;
@@ -19,38 +18,126 @@ import cascading.scheme.SinkCall;
 import cascading.scheme.SourceCall;
 import cascading.tap.Tap;
 import cascading.tap.TapException;
-import cascading.tap.hadoop.Hfs;
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
-import cascading.util.Util;
 
 import com.scaleunlimited.cascading.scheme.core.SolrSchemeUtil;
+import com.scaleunlimited.cascading.scheme.core.SolrWriterOptions;
 
 @SuppressWarnings("serial")
 public class SolrScheme extends Scheme<JobConf, RecordReader<Tuple, Tuple>, OutputCollector<Tuple, Tuple>, Object[], Void> {
 
     private File _solrCoreDir;
-    private int _maxSegments;
     private String _dataDirPropertyName;
+    private SolrWriterOptions _options;
+    private int _maxDocsPerSplit = SolrInputFormat.DEFAULT_MAX_DOCS_PER_SPLIT;
     
     public SolrScheme(Fields schemeFields, String solrCoreDir) throws IOException, ParserConfigurationException, SAXException {
         this(schemeFields, solrCoreDir, SolrOutputFormat.DEFAULT_MAX_SEGMENTS);
     }
     
     public SolrScheme(Fields schemeFields, String solrCoreDir, int maxSegments) throws IOException, ParserConfigurationException, SAXException {
-        this(schemeFields, solrCoreDir, SolrOutputFormat.DEFAULT_MAX_SEGMENTS, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME);
+        this(schemeFields, solrCoreDir, maxSegments, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME);
     }
     
     public SolrScheme(Fields schemeFields, String solrCoreDir, int maxSegments, String dataDirPropertyName) throws IOException, ParserConfigurationException, SAXException {
+        this(schemeFields, solrCoreDir, maxSegments, dataDirPropertyName, SolrOutputFormat.DEFAULT_NUM_INDEXER_THREADS);
+    }
+    
+    /**
+     * @param numIndexerThreads number of threads in each reducer that concurrently send
+     *        documents to the task's Solr core. Values greater than 1 imply async indexing.
+     */
+    public SolrScheme(Fields schemeFields, String solrCoreDir, int maxSegments, String dataDirPropertyName, int numIndexerThreads) throws IOException, ParserConfigurationException, SAXException {
+        this(schemeFields, solrCoreDir, dataDirPropertyName, new SolrWriterOptions().setMaxSegments(maxSegments).setNumIndexerThreads(numIndexerThreads));
+    }
+    
+    public SolrScheme(Fields schemeFields, String solrCoreDir, SolrWriterOptions options) throws IOException, ParserConfigurationException, SAXException {
+        this(schemeFields, solrCoreDir, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, options);
+    }
+    
+    /**
+     * @param options settings for how each reducer builds its index, e.g. batch size limits.
+     */
+    public SolrScheme(Fields schemeFields, String solrCoreDir, String dataDirPropertyName, SolrWriterOptions options) throws IOException, ParserConfigurationException, SAXException {
         super(schemeFields, schemeFields);
 
         _solrCoreDir = new File(solrCoreDir);
-        _maxSegments = maxSegments;
         _dataDirPropertyName = dataDirPropertyName;
+        _options = new SolrWriterOptions(options);
 
         SolrSchemeUtil.validate(_solrCoreDir, _dataDirPropertyName, schemeFields);
     }
     
+    /**
+     * @return the settings used when building the index. Changes made to the result
+     *         will be used by any subsequent flow.
+     */
+    public SolrWriterOptions getWriterOptions() {
+        return _options;
+    }
+    
+    /**
+     * If set, tuples are converted on the reducer thread while a background thread
+     * sends the resulting documents to Solr for indexing.
+     * 
+     * @param asyncIndexing true to index in the background.
+     */
+    public void setAsyncIndexing(boolean asyncIndexing) {
+        _options.setAsyncIndexing(asyncIndexing);
+    }
+    
+    public boolean isAsyncIndexing() {
+        return _options.isAsyncIndexing();
+    }
+    
+    /**
+     * If set, documents are handed directly to the Solr core's update processor
+     * chain, versus being serialized to javabin and parsed by the update handler.
+     * 
+     * @param directUpdates true to skip the javabin round trip.
+     */
+    public void setDirectUpdates(boolean directUpdates) {
+        _options.setDirectUpdates(directUpdates);
+    }
+    
+    public boolean isDirectUpdates() {
+        return _options.isDirectUpdates();
+    }
+    
+    /**
+     * If set, no Solr core is started to build the index. Instead tuples are converted
+     * using the core's schema, and written via a Lucene IndexWriter tuned for bulk
+     * loading. Update request processors configured for the core are NOT run.
+     * 
+     * @param luceneIndexing true to write directly to Lucene.
+     */
+    public void setLuceneIndexing(boolean luceneIndexing) {
+        _options.setLuceneIndexing(luceneIndexing);
+    }
+    
+    public boolean isLuceneIndexing() {
+        return _options.isLuceneIndexing();
+    }
+    
+    /**
+     * When reading indexes, each segment is read by a separate task, and segments with
+     * more than this many documents are split up into multiple tasks.
+     * 
+     * @param maxDocsPerSplit
+     */
+    public void setMaxDocsPerSplit(int maxDocsPerSplit) {
+        if (maxDocsPerSplit < 1) {
+            throw new IllegalArgumentException("Max docs per split must be at least 1");
+        }
+        
+        _maxDocsPerSplit = maxDocsPerSplit;
+    }
+    
+    public int getMaxDocsPerSplit() {
+        return _maxDocsPerSplit;
+    }
+    
     @Override
     public boolean isSink() {
         return true;
@@ -58,25 +145,39 @@ public class SolrScheme extends Scheme<JobConf, RecordReader<Tuple, Tuple>, Outp
     
     @Override
     public boolean isSource() {
-        return false;
+        return true;
     }
     
     @Override
     public void sourceConfInit(FlowProcess<JobConf> flowProcess, Tap<JobConf, RecordReader<Tuple, Tuple>, OutputCollector<Tuple, Tuple>> tap, JobConf conf) {
-        throw new TapException("SolrScheme can only be used as a sink, not a source");
+        SolrSchemeUtil.validateSource(_solrCoreDir, getSourceFields());
+        
+        // Tasks need the schema to convert field values.
+        Path solrCoreArchive;
+        try {
+            solrCoreArchive = SolrCoreArchive.addToCache(conf, _solrCoreDir);
+        } catch (IOException e) {
+            throw new TapException("Can't copy Solr core directory into HDFS", e);
+        }
+        
+        conf.setInputFormat(SolrInputFormat.class);
+        
+        try {
+            conf.set(SolrInputFormat.SOURCE_FIELDS_KEY, HadoopUtil.serializeBase64(getSourceFields(), conf));
+        } catch (IOException e) {
+            throw new TapException("Can't serialize source fields", e);
+        }
+        
+        conf.set(SolrInputFormat.SOLR_CORE_PATH_KEY, solrCoreArchive.toString());
+        conf.setInt(SolrInputFormat.MAX_DOCS_PER_SPLIT_KEY, _maxDocsPerSplit);
     }
 
     @Override
     public void sinkConfInit(FlowProcess<JobConf> flowProcess, Tap<JobConf, RecordReader<Tuple, Tuple>, OutputCollector<Tuple, Tuple>> tap, JobConf conf) {
-        // Pick temp location in HDFS for conf files.
-        // TODO KKr - should I get rid of this temp directory when we're done?
-        String coreDirname = _solrCoreDir.getName();
-        Path hdfsSolrCoreDir = new Path(Hfs.getTempPath(conf),  "solr-core-" + Util.createUniqueID() + "/" + coreDirname);
-        
-        // Copy Solr core directory into HDFS.
+        // Ship the Solr core directory to the tasks as an archive in the distributed cache.
+        Path solrCoreArchive;
         try {
-            FileSystem fs = hdfsSolrCoreDir.getFileSystem(conf);
-            fs.copyFromLocalFile(new Path(_solrCoreDir.getAbsolutePath()), hdfsSolrCoreDir);
+            solrCoreArchive = SolrCoreArchive.addToCache(conf, _solrCoreDir);
         } catch (IOException e) {
             throw new TapException("Can't copy Solr core directory into HDFS", e);
         }
@@ -91,14 +192,27 @@ public class SolrScheme extends Scheme<JobConf, RecordReader<Tuple, Tuple>, Outp
             throw new TapException("Can't serialize sink fields", e);
         }
 
-        conf.set(SolrOutputFormat.SOLR_CORE_PATH_KEY, hdfsSolrCoreDir.toString());
-        conf.setInt(SolrOutputFormat.MAX_SEGMENTS_KEY, _maxSegments);
+        conf.set(SolrOutputFormat.SOLR_CORE_PATH_KEY, solrCoreArchive.toString());
         conf.set(SolrOutputFormat.DATA_DIR_PROPERTY_NAME_KEY, _dataDirPropertyName);
+        SolrOutputFormat.setWriterOptions(conf, _options);
+    }
+
+    @Override
+    public void sourcePrepare(FlowProcess<JobConf> flowProcess, SourceCall<Object[], RecordReader<Tuple, Tuple>> sourceCall) throws IOException {
+        RecordReader<Tuple, Tuple> input = sourceCall.getInput();
+        sourceCall.setContext(new Object[] {input.createKey(), input.createValue()});
     }
 
     @Override
     public boolean source(FlowProcess<JobConf> conf, SourceCall<Object[], RecordReader<Tuple, Tuple>> sourceCall) throws IOException {
-        throw new TapException("SolrScheme can only be used as a sink, not a source");
+        Tuple key = (Tuple)sourceCall.getContext()[0];
+        Tuple value = (Tuple)sourceCall.getContext()[1];
+        if (!sourceCall.getInput().next(key, value)) {
+            return false;
+        }
+        
+        sourceCall.getIncomingEntry().setTuple(value);
+        return true;
     }
 
     @Override
@@ -18,5 +18,10 @@ public class LocalKeepAliveHook extends KeepAliveHook {
     public void keepAlive() {
         _flowProcess.keepAlive();
     }
+    
+    @Override
+    public void increment(String group, String counter, long amount) {
+        _flowProcess.increment(group, counter, amount);
+    }
 
 }
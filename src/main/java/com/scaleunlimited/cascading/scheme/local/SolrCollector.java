@@ -9,11 +9,32 @@ import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
 
 import com.scaleunlimited.cascading.scheme.core.SolrWriter;
+import com.scaleunlimited.cascading.scheme.core.SolrWriterOptions;
 
 public class SolrCollector extends SolrWriter {
 
     public SolrCollector(FlowProcess<Properties> flowProcess, Fields sinkFields, File solrCoreDir, int maxSegments, String dataDirPropertyName, String dataDir) throws IOException {
-        super(new LocalKeepAliveHook(flowProcess), sinkFields, dataDirPropertyName, dataDir, solrCoreDir, maxSegments);
+        this(flowProcess, sinkFields, solrCoreDir, maxSegments, dataDirPropertyName, dataDir, false);
+    }
+    
+    public SolrCollector(FlowProcess<Properties> flowProcess, Fields sinkFields, File solrCoreDir, int maxSegments, String dataDirPropertyName, String dataDir, boolean asyncIndexing) throws IOException {
+        this(flowProcess, sinkFields, solrCoreDir, maxSegments, dataDirPropertyName, dataDir, asyncIndexing, SolrScheme.DEFAULT_NUM_INDEXER_THREADS);
+    }
+    
+    public SolrCollector(FlowProcess<Properties> flowProcess, Fields sinkFields, File solrCoreDir, int maxSegments, String dataDirPropertyName, String dataDir, boolean asyncIndexing, int numIndexerThreads) throws IOException {
+        this(flowProcess, sinkFields, solrCoreDir, maxSegments, dataDirPropertyName, dataDir, asyncIndexing, numIndexerThreads, false);
+    }
+    
+    public SolrCollector(FlowProcess<Properties> flowProcess, Fields sinkFields, File solrCoreDir, int maxSegments, String dataDirPropertyName, String dataDir, boolean asyncIndexing, int numIndexerThreads, boolean directUpdates) throws IOException {
+        this(flowProcess, sinkFields, solrCoreDir, maxSegments, dataDirPropertyName, dataDir, asyncIndexing, numIndexerThreads, directUpdates, false);
+    }
+    
+    public SolrCollector(FlowProcess<Properties> flowProcess, Fields sinkFields, File solrCoreDir, int maxSegments, String dataDirPropertyName, String dataDir, boolean asyncIndexing, int numIndexerThreads, boolean directUpdates, boolean luceneIndexing) throws IOException {
+        super(new LocalKeepAliveHook(flowProcess), sinkFields, dataDirPropertyName, dataDir, solrCoreDir, maxSegments, asyncIndexing, numIndexerThreads, directUpdates, luceneIndexing);
+    }
+    
+    public SolrCollector(FlowProcess<Properties> flowProcess, Fields sinkFields, File solrCoreDir, String dataDirPropertyName, String dataDir, SolrWriterOptions options) throws IOException {
+        super(new LocalKeepAliveHook(flowProcess), sinkFields, dataDirPropertyName, dataDir, solrCoreDir, options, SolrScheme.makeConfiguration(flowProcess));
     }
     
     public void collect(Tuple value) throws IOException {
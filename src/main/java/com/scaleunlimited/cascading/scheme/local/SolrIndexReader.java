@@ -0,0 +1,118 @@
+package com.scaleunlimited.cascading.scheme.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.solr.schema.IndexSchema;
+
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+
+import com.scaleunlimited.cascading.scheme.core.IndexDirectories;
+import com.scaleunlimited.cascading.scheme.core.SegmentTupleReader;
+import com.scaleunlimited.cascading.scheme.core.SolrSchemeUtil;
+
+/**
+ * Reads all of the documents from every index found at a path, one segment at a time.
+ */
+public class SolrIndexReader {
+    
+    private IndexSchema _schema;
+    private Fields _sourceFields;
+    private Configuration _conf;
+    
+    private List<Path> _indexPaths;
+    private int _nextIndex;
+    
+    private Directory _indexDir;
+    private DirectoryReader _indexReader;
+    private List<AtomicReader> _segments;
+    private int _nextSegment;
+    private SegmentTupleReader _tupleReader;
+    
+    public SolrIndexReader(File path, File solrCoreDir, Fields sourceFields, Configuration conf) throws IOException {
+        _schema = SolrSchemeUtil.getSchema(solrCoreDir);
+        _sourceFields = sourceFields;
+        _conf = conf;
+        
+        _indexPaths = IndexDirectories.find(FileSystem.getLocal(_conf), new Path(path.getAbsolutePath()));
+        if (_indexPaths.isEmpty()) {
+            throw new IOException("No Solr indexes found in " + path);
+        }
+        
+        _nextIndex = 0;
+    }
+    
+    /**
+     * Fill in <result> with the next document's values.
+     * 
+     * @param result
+     * @return false if there are no more documents.
+     * @throws IOException
+     */
+    public boolean next(Tuple result) throws IOException {
+        while ((_tupleReader == null) || !_tupleReader.next(result)) {
+            if (!nextSegment()) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private boolean nextSegment() throws IOException {
+        _tupleReader = null;
+        
+        while ((_segments == null) || (_nextSegment == _segments.size())) {
+            closeIndex();
+            
+            if (_nextIndex == _indexPaths.size()) {
+                return false;
+            }
+            
+            _indexDir = IndexDirectories.open(_indexPaths.get(_nextIndex++), _conf);
+            _indexReader = DirectoryReader.open(_indexDir);
+            _segments = new ArrayList<AtomicReader>();
+            for (AtomicReaderContext context : _indexReader.leaves()) {
+                _segments.add(context.reader());
+            }
+            
+            _nextSegment = 0;
+        }
+        
+        AtomicReader segment = _segments.get(_nextSegment++);
+        _tupleReader = new SegmentTupleReader(segment, _schema, _sourceFields, 0, segment.maxDoc());
+        return true;
+    }
+    
+    private void closeIndex() throws IOException {
+        _segments = null;
+        
+        try {
+            if (_indexReader != null) {
+                _indexReader.close();
+                _indexReader = null;
+            }
+        } finally {
+            if (_indexDir != null) {
+                _indexDir.close();
+                _indexDir = null;
+            }
+        }
+    }
+    
+    public void close() throws IOException {
+        _tupleReader = null;
+        _nextIndex = _indexPaths.size();
+        closeIndex();
+    }
+}
@@ -0,0 +1,59 @@
+package com.scaleunlimited.cascading.scheme.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import cascading.flow.FlowProcess;
+import cascading.tap.SinkMode;
+import cascading.tap.TapException;
+import cascading.tap.local.FileTap;
+import cascading.tuple.TupleEntryCollector;
+import cascading.tuple.TupleEntryIterator;
+
+/**
+ * Local tap for reading back the index(es) that a SolrScheme wrote to a DirectoryTap. A
+ * regular FileTap would try to open the directory as a file, so instead we hand the
+ * scheme an IndexInputStream with the directory's path.
+ */
+@SuppressWarnings("serial")
+public class SolrIndexTap extends FileTap {
+    
+    public static class IndexInputStream extends InputStream {
+        
+        private File _path;
+        
+        public IndexInputStream(File path) {
+            _path = path;
+        }
+        
+        public File getPath() {
+            return _path;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            throw new IOException("Solr index directories can't be read as a stream");
+        }
+    }
+    
+    public SolrIndexTap(SolrScheme scheme, String path) {
+        super(scheme, path, SinkMode.KEEP);
+    }
+    
+    @Override
+    public TupleEntryIterator openForRead(FlowProcess<Properties> flowProcess, InputStream input) throws IOException {
+        if (input == null) {
+            input = new IndexInputStream(new File(getIdentifier()));
+        }
+        
+        return super.openForRead(flowProcess, input);
+    }
+    
+    @Override
+    public TupleEntryCollector openForWrite(FlowProcess<Properties> flowProcess, OutputStream output) throws IOException {
+        throw new TapException("SolrIndexTap can only be used as a source, use a DirectoryTap to write indexes");
+    }
+}
@@ -8,6 +8,7 @@ import java.util.Properties;
 
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.apache.hadoop.conf.Configuration;
 import org.xml.sax.SAXException;
 
 import cascading.flow.FlowProcess;
@@ -17,37 +18,110 @@ import cascading.scheme.SourceCall;
 import cascading.tap.Tap;
 import cascading.tap.TapException;
 import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
 
 import com.scaleunlimited.cascading.local.DirectoryFileOutputStream;
 import com.scaleunlimited.cascading.scheme.core.SolrSchemeUtil;
+import com.scaleunlimited.cascading.scheme.core.SolrWriterOptions;
 
 @SuppressWarnings("serial")
-public class SolrScheme extends Scheme<Properties, InputStream, OutputStream, Void, SolrCollector> {
+public class SolrScheme extends Scheme<Properties, InputStream, OutputStream, SolrIndexReader, SolrCollector> {
 
     public static final int DEFAULT_DEFAULT_MAX_SEGMENTS = 1;
+    public static final int DEFAULT_NUM_INDEXER_THREADS = 1;
     
     private File _solrCoreDir;
-    private int _maxSegments;
     private String _dataDirPropertyName;
+    private SolrWriterOptions _options;
     
     public SolrScheme(Fields schemeFields, String solrCoreDir) throws IOException, ParserConfigurationException, SAXException {
         this(schemeFields, solrCoreDir, DEFAULT_DEFAULT_MAX_SEGMENTS);
     }
     
     public SolrScheme(Fields schemeFields, String solrCoreDir, int maxSegments) throws IOException, ParserConfigurationException, SAXException {
-        this(schemeFields, solrCoreDir, DEFAULT_DEFAULT_MAX_SEGMENTS, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME);
+        this(schemeFields, solrCoreDir, maxSegments, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME);
     }
     
     public SolrScheme(Fields schemeFields, String solrCoreDir, int maxSegments, String dataDirPropertyName) throws IOException, ParserConfigurationException, SAXException {
+        this(schemeFields, solrCoreDir, maxSegments, dataDirPropertyName, DEFAULT_NUM_INDEXER_THREADS);
+    }
+    
+    /**
+     * @param numIndexerThreads number of threads that concurrently send documents to
+     *        the Solr core. Values greater than 1 imply async indexing.
+     */
+    public SolrScheme(Fields schemeFields, String solrCoreDir, int maxSegments, String dataDirPropertyName, int numIndexerThreads) throws IOException, ParserConfigurationException, SAXException {
+        this(schemeFields, solrCoreDir, dataDirPropertyName, new SolrWriterOptions().setMaxSegments(maxSegments).setNumIndexerThreads(numIndexerThreads));
+    }
+    
+    public SolrScheme(Fields schemeFields, String solrCoreDir, SolrWriterOptions options) throws IOException, ParserConfigurationException, SAXException {
+        this(schemeFields, solrCoreDir, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, options);
+    }
+    
+    /**
+     * @param options settings for how the index gets built, e.g. batch size limits.
+     */
+    public SolrScheme(Fields schemeFields, String solrCoreDir, String dataDirPropertyName, SolrWriterOptions options) throws IOException, ParserConfigurationException, SAXException {
         super(schemeFields, schemeFields);
 
         _solrCoreDir = new File(solrCoreDir);
-        _maxSegments = maxSegments;
         _dataDirPropertyName = dataDirPropertyName;
+        _options = new SolrWriterOptions(options);
 
         SolrSchemeUtil.validate(_solrCoreDir, _dataDirPropertyName, schemeFields);
     }
     
+    /**
+     * @return the settings used when building the index. Changes made to the result
+     *         will be used by any subsequent flow.
+     */
+    public SolrWriterOptions getWriterOptions() {
+        return _options;
+    }
+    
+    /**
+     * If set, tuples are converted on the sink thread while a background thread
+     * sends the resulting documents to Solr for indexing.
+     * 
+     * @param asyncIndexing true to index in the background.
+     */
+    public void setAsyncIndexing(boolean asyncIndexing) {
+        _options.setAsyncIndexing(asyncIndexing);
+    }
+    
+    public boolean isAsyncIndexing() {
+        return _options.isAsyncIndexing();
+    }
+    
+    /**
+     * If set, documents are handed directly to the Solr core's update processor
+     * chain, versus being serialized to javabin and parsed by the update handler.
+     * 
+     * @param directUpdates true to skip the javabin round trip.
+     */
+    public void setDirectUpdates(boolean directUpdates) {
+        _options.setDirectUpdates(directUpdates);
+    }
+    
+    public boolean isDirectUpdates() {
+        return _options.isDirectUpdates();
+    }
+    
+    /**
+     * If set, no Solr core is started to build the index. Instead tuples are converted
+     * using the core's schema, and written via a Lucene IndexWriter tuned for bulk
+     * loading. Update request processors configured for the core are NOT run.
+     * 
+     * @param luceneIndexing true to write directly to Lucene.
+     */
+    public void setLuceneIndexing(boolean luceneIndexing) {
+        _options.setLuceneIndexing(luceneIndexing);
+    }
+    
+    public boolean isLuceneIndexing() {
+        return _options.isLuceneIndexing();
+    }
+    
     @Override
     public boolean isSink() {
         return true;
@@ -55,17 +129,42 @@ public class SolrScheme extends Scheme<Properties, InputStream, OutputStream, Vo
     
     @Override
     public boolean isSource() {
-        return false;
+        return true;
     }
     
     @Override
     public void sourceConfInit(FlowProcess<Properties> flowProcess, Tap<Properties, InputStream, OutputStream> tap, Properties conf) {
-        throw new TapException("SolrScheme can only be used as a sink, not a source");
+        SolrSchemeUtil.validateSource(_solrCoreDir, getSourceFields());
     }
 
     @Override
-    public boolean source(FlowProcess<Properties> conf, SourceCall<Void, InputStream> sourceCall) throws IOException {
-        throw new TapException("SolrScheme can only be used as a sink, not a source");
+    public void sourcePrepare(FlowProcess<Properties> flowProcess, SourceCall<SolrIndexReader, InputStream> sourceCall) throws IOException {
+        if (!(sourceCall.getInput() instanceof SolrIndexTap.IndexInputStream)) {
+            throw new TapException("SolrScheme can only be used with a SolrIndexTap as a source in local mode");
+        }
+        
+        File path = ((SolrIndexTap.IndexInputStream)sourceCall.getInput()).getPath();
+        sourceCall.setContext(new SolrIndexReader(path, _solrCoreDir, getSourceFields(), makeConfiguration(flowProcess)));
+    }
+    
+    @Override
+    public boolean source(FlowProcess<Properties> conf, SourceCall<SolrIndexReader, InputStream> sourceCall) throws IOException {
+        Tuple result = new Tuple();
+        if (!sourceCall.getContext().next(result)) {
+            return false;
+        }
+        
+        sourceCall.getIncomingEntry().setTuple(result);
+        return true;
+    }
+    
+    @Override
+    public void sourceCleanup(FlowProcess<Properties> flowProcess, SourceCall<SolrIndexReader, InputStream> sourceCall) throws IOException {
+        SolrIndexReader reader = sourceCall.getContext();
+        if (reader != null) {
+            reader.close();
+            sourceCall.setContext(null);
+        }
     }
 
     @Override
@@ -79,7 +178,7 @@ public class SolrScheme extends Scheme<Properties, InputStream, OutputStream, Vo
 
         // Set context to be the embedded solr server (or rather a wrapper for it, that handles caching)
         // TODO this call gets made BEFORE sinkConfInit, so I don't have the _dataDir set up at this point, which seems wrong.
-        SolrCollector collector = new SolrCollector(flowProcess, getSinkFields(), _solrCoreDir, _maxSegments, _dataDirPropertyName, path);
+        SolrCollector collector = new SolrCollector(flowProcess, getSinkFields(), _solrCoreDir, _dataDirPropertyName, path, _options);
         sinkCall.setContext(collector);
     }
     
@@ -98,5 +197,22 @@ public class SolrScheme extends Scheme<Properties, InputStream, OutputStream, Vo
         SolrCollector collector = sinkCall.getContext();
         collector.cleanup();
     }
+    
+    /**
+     * Make a Hadoop configuration with all of the flow's properties, for accessing
+     * indexes via a Hadoop FileSystem.
+     * 
+     * @param flowProcess
+     * @return configuration for the flow.
+     */
+    static Configuration makeConfiguration(FlowProcess<Properties> flowProcess) {
+        Configuration result = new Configuration();
+        Properties props = flowProcess.getConfigCopy();
+        for (String key : props.stringPropertyNames()) {
+            result.set(key, props.getProperty(key));
+        }
+        
+        return result;
+    }
 
 }
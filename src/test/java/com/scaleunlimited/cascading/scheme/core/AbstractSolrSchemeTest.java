@@ -2,9 +2,18 @@ package com.scaleunlimited.cascading.scheme.core;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Type;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.hadoop.io.BytesWritable;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
 import org.apache.solr.client.solrj.response.QueryResponse;
@@ -13,6 +22,7 @@ import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.core.CoreContainer;
 import org.junit.Assert;
 import org.junit.Before;
+import org.w3c.dom.Document;
 
 import cascading.flow.Flow;
 import cascading.flow.FlowConnector;
@@ -20,26 +30,34 @@ import cascading.flow.FlowProcess;
 import cascading.flow.local.LocalFlowProcess;
 import cascading.pipe.Pipe;
 import cascading.scheme.Scheme;
+import cascading.stats.FlowStats;
 import cascading.tap.SinkMode;
 import cascading.tap.Tap;
 import cascading.tap.TapException;
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
 import cascading.tuple.TupleEntryCollector;
+import cascading.tuple.TupleEntryIterator;
 
 import com.scaleunlimited.cascading.local.DirectoryTap;
+import com.scaleunlimited.cascading.scheme.core.IndexingMetrics.Metric;
 import com.scaleunlimited.cascading.scheme.local.SolrScheme;
 
 public abstract class AbstractSolrSchemeTest extends Assert {
 
     private static final String SOLR_HOME_DIR = "src/test/resources/solr-home-4.1/"; 
     protected static final String SOLR_CORE_DIR = SOLR_HOME_DIR + "collection1"; 
-
+    
+    protected static final Fields SIMPLE_FIELDS = new Fields("id", "name", "price", "inStock");
+    
     protected abstract String getTestDir();
     
     protected abstract Tap<?, ?, ?> makeSourceTap(Fields fields, String path);
     protected abstract FlowProcess<?> makeFlowProcess();
     protected abstract Tap<?, ?, ?> makeSolrSink(Fields fields, String path) throws Exception;
+    protected abstract Tap<?, ?, ?> makeSolrSink(Scheme<?, ?, ?, ?, ?> scheme, String path) throws Exception;
+    protected abstract Tap<?, ?, ?> makeSolrSource(Scheme<?, ?, ?, ?, ?> scheme, String path) throws Exception;
     protected abstract FlowConnector makeFlowConnector();
     
     protected abstract Scheme<?, ?, ?, ?, ?> makeScheme(Fields schemeFields, String solrCoreDir) throws Exception;
@@ -48,6 +66,10 @@ public abstract class AbstractSolrSchemeTest extends Assert {
     
     protected abstract Scheme<?, ?, ?, ?, ?> makeScheme(Fields schemeFields, String solrCoreDir, int maxSegments, String dataDirPropertyName) throws Exception;
     
+    protected abstract Scheme<?, ?, ?, ?, ?> makeScheme(Fields schemeFields, String solrCoreDir, int maxSegments, String dataDirPropertyName, int numIndexerThreads) throws Exception;
+    
+    protected abstract Scheme<?, ?, ?, ?, ?> makeScheme(Fields schemeFields, String solrCoreDir, SolrWriterOptions options) throws Exception;
+    
     @Before
     public void setup() throws IOException {
         File outputDir = new File(getTestDir());
@@ -81,7 +103,18 @@ public abstract class AbstractSolrSchemeTest extends Assert {
             assert(e.getMessage().contains("field name doesn't exist"));
         }
     }
-
+    
+    protected void testSchemeWrongFieldType() throws Exception {
+        try {
+            // Binary data can't go into the float "price" field.
+            Fields typedFields = new Fields(new Comparable[] {"id", "price"}, new Type[] {String.class, byte[].class});
+            makeScheme(typedFields, SOLR_CORE_DIR);
+            fail("Should have thrown exception");
+        } catch (TapException e) {
+            assert(e.getMessage().contains("can't be converted"));
+        }
+    }
+    
     protected void testSchemeMissingRequiredField() throws Exception {
         try {
             makeScheme(new Fields("sku"), SOLR_CORE_DIR);
@@ -106,6 +139,333 @@ public abstract class AbstractSolrSchemeTest extends Assert {
         writer.close();
     }
     
+    /**
+     * Index <numDocs> tuples with SIMPLE_FIELDS using <scheme>, and verify that they
+     * all wind up in the resulting index.
+     * 
+     * @return the flow that did the indexing.
+     */
+    protected Flow<?> testIndexing(Scheme<?, ?, ?, ?, ?> scheme, String testName, int numDocs) throws Exception {
+        return testIndexing(scheme, testName, numDocs, numDocs);
+    }
+    
+    /**
+     * Index <numDocs> tuples with SIMPLE_FIELDS using <scheme>, where tuple i has an id of
+     * i % <numIds> and a name of "product #i", and verify that we wind up with one document
+     * per id. If <numIds> is less than <numDocs>, the scheme has to deduplicate.
+     * 
+     * @return the flow that did the indexing.
+     */
+    protected Flow<?> testIndexing(Scheme<?, ?, ?, ?, ?> scheme, String testName, int numDocs, int numIds) throws Exception {
+        final String in = getTestDir() + testName + "/in";
+        final String out = getTestDir() + testName + "/out";
+        
+        Tap source = makeSourceTap(SIMPLE_FIELDS, in);
+        TupleEntryCollector write = source.openForWrite(makeFlowProcess());
+        for (int i = 0; i < numDocs; i++) {
+            write.add(new Tuple(i % numIds, "product #" + i, i * 1.0f, true));
+        }
+        write.close();
+        
+        Pipe writePipe = new Pipe("tuples to Solr");
+        Tap solrSink = makeSolrSink(scheme, out);
+        Flow flow = makeFlowConnector().connect(source, solrSink, writePipe);
+        flow.complete();
+        
+        assertEquals(Math.min(numDocs, numIds), getNumDocs(out + "/part-00000/index"));
+        return flow;
+    }
+    
+    protected void testMultiThreadedIndexing() throws Exception {
+        Scheme<?, ?, ?, ?, ?> scheme = makeScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, 1, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, 4);
+        testIndexing(scheme, "testMultiThreadedIndexing", 5678);
+    }
+    
+    protected void testBatchLimits() throws Exception {
+        // Tiny batches, with the byte limit kicking in before the doc count limit.
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setMaxDocsPerBatch(20)
+            .setMaxBytesPerBatch(1000)
+            .setAsyncIndexing(true);
+        Flow<?> flow = testIndexing(makeScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options), "testBatchLimits", 1234);
+        
+        // Each document is estimated at more than 125 bytes, so no batch has more than 8 docs.
+        assertTrue(getCounter(flow.getFlowStats(), Metric.BATCHES_INDEXED) >= (1234 / 8));
+    }
+    
+    protected void testAdaptiveBatching() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setMaxDocsPerBatch(AdaptiveBatchSizer.MIN_DOCS_PER_BATCH)
+            .setAdaptiveBatching(true)
+            .setNumIndexerThreads(2);
+        Flow<?> flow = testIndexing(makeScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options), "testAdaptiveBatching", 4321);
+        
+        // Small batches index quickly, so the batch size should have grown.
+        assertTrue(getCounter(flow.getFlowStats(), Metric.BATCHES_INDEXED) < (4321 / AdaptiveBatchSizer.MIN_DOCS_PER_BATCH));
+    }
+    
+    protected void testBulkLoadConfig() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setBulkLoadConfig(true);
+        testIndexing(makeScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options), "testBulkLoadConfig", 3210);
+        
+        // The writer deletes its derived config when it's done, so make our own copy.
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        File sourceFile = new File(SOLR_CORE_DIR, "conf/solrconfig.xml");
+        Document source = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(sourceFile);
+        assertEquals(1.0, xpath.evaluate("count(/config/updateHandler/updateLog)", source, XPathConstants.NUMBER));
+        assertEquals(1.0, xpath.evaluate("count(/config/updateHandler/autoCommit)", source, XPathConstants.NUMBER));
+        
+        File configFile = new File(getTestDir() + "testBulkLoadConfig/solrconfig-bulk.xml");
+        BulkLoadConfig.write(new File(SOLR_CORE_DIR), configFile, 256.0, false);
+        Document config = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(configFile);
+        
+        assertEquals(0.0, xpath.evaluate("count(/config/updateHandler/updateLog)", config, XPathConstants.NUMBER));
+        assertEquals(0.0, xpath.evaluate("count(/config/updateHandler/autoCommit)", config, XPathConstants.NUMBER));
+        assertEquals(0.0, xpath.evaluate("count(/config/query/filterCache)", config, XPathConstants.NUMBER));
+        assertEquals("256.0", xpath.evaluate("/config/indexConfig/ramBufferSizeMB", config));
+        assertEquals("solr.MMapDirectoryFactory", xpath.evaluate("/config/directoryFactory/@class", config));
+        
+        // Writing via a Hadoop FileSystem needs our directory factory, and HDFS locks.
+        BulkLoadConfig.write(new File(SOLR_CORE_DIR), configFile, 256.0, true);
+        config = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(configFile);
+        assertEquals(HadoopDirectoryFactory.class.getName(), xpath.evaluate("/config/directoryFactory/@class", config));
+        assertEquals("hdfs", xpath.evaluate("/config/indexConfig/lockType", config));
+    }
+    
+    protected void testFinalizers() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setFinalizer(IndexFinalizer.forceMerge(1, 2));
+        testIndexing(makeScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options), "testFinalizers/forceMerge", 2345);
+        assertEquals(1, getNumSegments(getTestDir() + "testFinalizers/forceMerge/out/part-00000/index"));
+        
+        options.setFinalizer(IndexFinalizer.none());
+        testIndexing(makeScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options), "testFinalizers/none", 2345);
+        int numSegments = getNumSegments(getTestDir() + "testFinalizers/none/out/part-00000/index");
+        assertTrue(numSegments >= 1);
+        
+        // A tiered merge never leaves more segments than we get without merging.
+        options.setFinalizer(IndexFinalizer.tieredMerge(100.0));
+        testIndexing(makeScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options), "testFinalizers/tieredMerge", 2345);
+        int numTieredSegments = getNumSegments(getTestDir() + "testFinalizers/tieredMerge/out/part-00000/index");
+        assertTrue(numTieredSegments >= 1);
+        assertTrue(numTieredSegments <= numSegments);
+    }
+    
+    protected void testSortedIndex() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setMaxDocsPerBatch(100)
+            .setFinalizer(IndexFinalizer.sorted("price", true));
+        testIndexing(makeScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options), "testSortedIndex", 2345);
+        
+        // Price goes up with the id, so the highest id should be first.
+        String indexDir = getTestDir() + "testSortedIndex/out/part-00000/index";
+        assertEquals(1, getNumSegments(indexDir));
+        
+        Directory dir = FSDirectory.open(new File(indexDir));
+        DirectoryReader reader = DirectoryReader.open(dir);
+        
+        try {
+            assertEquals("2344", reader.document(0).get("id"));
+            assertEquals("0", reader.document(reader.maxDoc() - 1).get("id"));
+        } finally {
+            reader.close();
+            dir.close();
+        }
+    }
+    
+    protected void testSolrSource() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setMaxDocsPerBatch(100)
+            .setFinalizer(IndexFinalizer.none());
+        Scheme<?, ?, ?, ?, ?> scheme = makeScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options);
+        testIndexing(scheme, "testSolrSource", 1234);
+        
+        // Only read back some of the fields, in a different order.
+        scheme.setSourceFields(new Fields("price", "id"));
+        Tap source = makeSolrSource(scheme, getTestDir() + "testSolrSource/out");
+        
+        boolean[] found = new boolean[1234];
+        TupleEntryIterator iter = source.openForRead(makeFlowProcess());
+        
+        try {
+            while (iter.hasNext()) {
+                TupleEntry te = iter.next();
+                assertEquals(2, te.size());
+                
+                int id = Integer.parseInt(te.getString("id"));
+                assertFalse(found[id]);
+                found[id] = true;
+                assertEquals(id * 1.0f, te.getFloat("price"), 0.0f);
+            }
+        } finally {
+            iter.close();
+        }
+        
+        for (int i = 0; i < found.length; i++) {
+            assertTrue("Missing doc " + i, found[i]);
+        }
+    }
+    
+    protected void testSolrSourceDocValues() throws Exception {
+        final Fields testFields = new Fields("id", "name", "added_date");
+        final String in = getTestDir() + "testSolrSourceDocValues/in";
+        final String out = getTestDir() + "testSolrSourceDocValues/out";
+        final long baseTime = 1413547200000L;
+        
+        Tap source = makeSourceTap(testFields, in);
+        TupleEntryCollector write = source.openForWrite(makeFlowProcess());
+        for (int i = 0; i < 100; i++) {
+            write.add(new Tuple(i, "product #" + i, baseTime + (i * 1000L)));
+        }
+        write.close();
+        
+        Scheme<?, ?, ?, ?, ?> scheme = makeScheme(testFields, SOLR_CORE_DIR);
+        Flow flow = makeFlowConnector().connect(source, makeSolrSink(scheme, out), new Pipe("tuples to Solr"));
+        flow.complete();
+        
+        // The date isn't stored, so it has to come back from the docValues.
+        scheme.setSourceFields(new Fields("id", "added_date"));
+        TupleEntryIterator iter = makeSolrSource(scheme, out).openForRead(makeFlowProcess());
+        
+        int numDocs = 0;
+        try {
+            while (iter.hasNext()) {
+                TupleEntry te = iter.next();
+                int id = Integer.parseInt(te.getString("id"));
+                assertEquals(baseTime + (id * 1000L), te.getObject("added_date"));
+                numDocs += 1;
+            }
+        } finally {
+            iter.close();
+        }
+        
+        assertEquals(100, numDocs);
+    }
+    
+    protected void testIndexingMetrics() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setMaxDocsPerBatch(100);
+        Flow<?> flow = testIndexing(makeScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options), "testIndexingMetrics", 1234);
+        
+        FlowStats stats = flow.getFlowStats();
+        assertEquals(1234, getCounter(stats, Metric.DOCS_ADDED));
+        assertEquals(1234 * SIMPLE_FIELDS.size(), getCounter(stats, Metric.FIELD_VALUES_CONVERTED));
+        assertTrue(getCounter(stats, Metric.BYTES_CONVERTED) > 0);
+        
+        // Every batch winds up in exactly one bucket of the latency histogram.
+        assertEquals(13, getCounter(stats, Metric.BATCHES_INDEXED));
+        long numBatches = getCounter(stats, Metric.BATCHES_UNDER_10MS)
+                        + getCounter(stats, Metric.BATCHES_UNDER_100MS)
+                        + getCounter(stats, Metric.BATCHES_UNDER_1S)
+                        + getCounter(stats, Metric.BATCHES_UNDER_10S)
+                        + getCounter(stats, Metric.BATCHES_OVER_10S);
+        assertEquals(13, numBatches);
+        
+        assertTrue(getCounter(stats, Metric.CORE_STARTUP_TIME) > 0);
+    }
+    
+    protected void testDedupDrop() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setMaxDocsPerBatch(100)
+            .setDedupMode(DedupMode.DROP);
+        Flow<?> flow = testIndexing(makeScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options), "testDedupDrop", 1000, 400);
+        
+        FlowStats stats = flow.getFlowStats();
+        assertEquals(400, getCounter(stats, Metric.DOCS_ADDED));
+        assertEquals(600, getCounter(stats, Metric.DUPLICATES_DROPPED));
+        assertEquals(0, getCounter(stats, Metric.DUPLICATES_REPLACED));
+        
+        // The first document with each id is the one we keep.
+        assertEquals("product #5", getIndexedName("testDedupDrop", 5));
+    }
+    
+    protected void testDedupReplace() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setMaxDocsPerBatch(100)
+            .setDedupMode(DedupMode.REPLACE);
+        
+        // Each way of indexing handles replacements differently.
+        SolrWriterOptions[] variants = {
+            new SolrWriterOptions(options),
+            new SolrWriterOptions(options).setDirectUpdates(true),
+            new SolrWriterOptions(options).setLuceneIndexing(true)
+        };
+        
+        for (int i = 0; i < variants.length; i++) {
+            Flow<?> flow = testIndexing(makeScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, variants[i]), "testDedupReplace/" + i, 1000, 400);
+            
+            FlowStats stats = flow.getFlowStats();
+            assertEquals(1000, getCounter(stats, Metric.DOCS_ADDED));
+            assertEquals(0, getCounter(stats, Metric.DUPLICATES_DROPPED));
+            assertEquals(600, getCounter(stats, Metric.DUPLICATES_REPLACED));
+            
+            // Ids 0...199 are written 3 times, and the last one (i = 800 + id) wins.
+            assertEquals("product #805", getIndexedName("testDedupReplace/" + i, 5));
+        }
+    }
+    
+    /**
+     * @return the name of the document with <id> in the index built by testIndexing()
+     *         for <testName>.
+     */
+    protected String getIndexedName(String testName, int id) throws Exception {
+        QueryResponse res = querySolr(getTestDir() + testName + "/out/part-00000", "id:" + id);
+        assertEquals(1, res.getResults().getNumFound());
+        return (String)res.getResults().get(0).getFieldValue("name");
+    }
+    
+    protected static long getCounter(FlowStats stats, Metric metric) {
+        return stats.getCounterValue(IndexingMetrics.COUNTER_GROUP, metric.getName());
+    }
+    
+    /**
+     * Verify that Solr can open the index in <dataDir> using our test core, and that
+     * <query> returns <numHits> results.
+     */
+    protected static void checkSolrQuery(String dataDir, String query, long numHits) throws Exception {
+        QueryResponse res = querySolr(dataDir, query);
+        assertEquals(numHits, res.getResults().getNumFound());
+    }
+    
+    private static QueryResponse querySolr(String dataDir, String query) throws Exception {
+        System.setProperty("solr.data.dir", dataDir);
+        
+        CoreContainer coreContainer = new CoreContainer(SOLR_HOME_DIR);
+        coreContainer.load();
+        
+        try {
+            SolrServer solrServer = new EmbeddedSolrServer(coreContainer, "");
+            ModifiableSolrParams params = new ModifiableSolrParams();
+            params.set(CommonParams.Q, query);
+            return solrServer.query(params);
+        } finally {
+            coreContainer.shutdown();
+        }
+    }
+    
+    protected static int getNumSegments(String indexDir) throws IOException {
+        Directory dir = FSDirectory.open(new File(indexDir));
+        
+        try {
+            return IndexFinalizer.countSegments(dir);
+        } finally {
+            dir.close();
+        }
+    }
+    
+    protected static int getNumDocs(String indexDir) throws IOException {
+        Directory dir = FSDirectory.open(new File(indexDir));
+        DirectoryReader reader = DirectoryReader.open(dir);
+        
+        try {
+            return reader.numDocs();
+        } finally {
+            reader.close();
+            dir.close();
+        }
+    }
+    
     protected void testSimpleIndexing() throws Exception {
         final Fields testFields = new Fields("id", "name", "price", "cat", "inStock", "image");
 
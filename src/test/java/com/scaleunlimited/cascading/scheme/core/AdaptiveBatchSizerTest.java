@@ -0,0 +1,55 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveBatchSizerTest extends Assert {
+    
+    @Test
+    public void testGrowAndShrink() throws Exception {
+        TestBatchSizer sizer = new TestBatchSizer(100);
+        assertEquals(100, sizer.getDocsPerBatch());
+        
+        // Fast, full batches grow by 25%, up to 8x the starting size.
+        sizer.batchIndexed(100, 10);
+        assertEquals(125, sizer.getDocsPerBatch());
+        for (int i = 0; i < 20; i++) {
+            sizer.batchIndexed(sizer.getDocsPerBatch(), 10);
+        }
+        
+        assertEquals(800, sizer.getDocsPerBatch());
+        
+        // Batches that weren't full don't make it grow.
+        sizer = new TestBatchSizer(100);
+        sizer.batchIndexed(50, 10);
+        assertEquals(100, sizer.getDocsPerBatch());
+        
+        // Slow batches shrink by 25%.
+        sizer.batchIndexed(100, 5000);
+        assertEquals(75, sizer.getDocsPerBatch());
+        
+        // Running low on heap cuts it in half, but never below the min.
+        sizer._freeHeapRatio = 0.1;
+        sizer.batchIndexed(75, 10);
+        assertEquals(37, sizer.getDocsPerBatch());
+        for (int i = 0; i < 5; i++) {
+            sizer.batchIndexed(10, 10);
+        }
+        
+        assertEquals(AdaptiveBatchSizer.MIN_DOCS_PER_BATCH, sizer.getDocsPerBatch());
+    }
+    
+    private static class TestBatchSizer extends AdaptiveBatchSizer {
+        
+        private double _freeHeapRatio = 1.0;
+        
+        public TestBatchSizer(int initialDocsPerBatch) {
+            super(initialDocsPerBatch);
+        }
+        
+        @Override
+        protected double getFreeHeapRatio() {
+            return _freeHeapRatio;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.solr.schema.IndexSchema;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FieldConverterTest extends Assert {
+    
+    private static final String SOLR_CORE_DIR = "src/test/resources/solr-home-4.1/collection1";
+    
+    @Test
+    public void testIntegralFields() throws Exception {
+        IndexSchema schema = SolrSchemeUtil.getSchema(new File(SOLR_CORE_DIR));
+        FieldConverter intConverter = FieldConverter.forField(schema.getField("popularity"));
+        FieldConverter longConverter = FieldConverter.forField(schema.getField("_version_"));
+        
+        assertEquals(3, intConverter.convert(3));
+        assertEquals(3.0, intConverter.convert(3.0));
+        assertEquals(5000000000L, longConverter.convert(5000000000L));
+        
+        // Solr parses strings, and complains if they're not whole numbers.
+        assertEquals("3.7", intConverter.convert("3.7"));
+        
+        assertConvertFails(intConverter, 3.7);
+        assertConvertFails(intConverter, 3.7f);
+        assertConvertFails(intConverter, new DoubleWritable(3.7));
+        assertConvertFails(intConverter, Double.NaN);
+        assertConvertFails(intConverter, 5000000000L);
+        assertConvertFails(intConverter, 5000000000.0);
+        assertConvertFails(longConverter, 1.5);
+        assertConvertFails(longConverter, Double.POSITIVE_INFINITY);
+        assertConvertFails(longConverter, new Date());
+    }
+    
+    @Test
+    public void testFloatFields() throws Exception {
+        IndexSchema schema = SolrSchemeUtil.getSchema(new File(SOLR_CORE_DIR));
+        FieldConverter floatConverter = FieldConverter.forField(schema.getField("price"));
+        
+        assertEquals(3.7, floatConverter.convert(3.7));
+        assertEquals(3.7, floatConverter.convert(new DoubleWritable(3.7)));
+        assertEquals(5, floatConverter.convert(5));
+        
+        assertFalse(floatConverter.canConvert(Date.class));
+        assertFalse(floatConverter.canConvert(byte[].class));
+        assertTrue(floatConverter.canConvert(Double.class));
+    }
+    
+    @Test
+    public void testBinaryCopying() throws Exception {
+        IndexSchema schema = SolrSchemeUtil.getSchema(new File(SOLR_CORE_DIR));
+        BytesWritable bw = new BytesWritable(new byte[] {1, 2, 3});
+        
+        Object copy = FieldConverter.forField(schema.getField("image"), true).convert(bw);
+        Object view = FieldConverter.forField(schema.getField("image"), false).convert(bw);
+        
+        // Reuse the BytesWritable for another value.
+        bw.set(new byte[] {4, 5, 6}, 0, 3);
+        
+        assertArrayEquals(new byte[] {1, 2, 3}, (byte[])copy);
+        assertArrayEquals(new byte[] {4, 5, 6}, toBytes(view));
+    }
+    
+    private static byte[] toBytes(Object value) {
+        if (value instanceof byte[]) {
+            return (byte[])value;
+        }
+        
+        ByteBuffer buffer = ((ByteBuffer)value).duplicate();
+        byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+    
+    private static void assertConvertFails(FieldConverter converter, Object value) {
+        try {
+            converter.convert(value);
+            fail("Should have rejected " + value);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,448 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import cascading.flow.Flow;
+import cascading.flow.FlowConnector;
+import cascading.flow.FlowProcess;
+import cascading.flow.hadoop.HadoopFlowConnector;
+import cascading.flow.hadoop.HadoopFlowProcess;
+import cascading.flow.hadoop.util.HadoopUtil;
+import cascading.flow.local.LocalFlowConnector;
+import cascading.flow.local.LocalFlowProcess;
+import cascading.pipe.Pipe;
+import cascading.scheme.hadoop.SequenceFile;
+import cascading.tap.SinkMode;
+import cascading.tap.Tap;
+import cascading.tap.hadoop.Hfs;
+import cascading.tap.local.FileTap;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntryCollector;
+import cascading.tuple.hadoop.BytesSerialization;
+import cascading.tuple.hadoop.TupleSerializationProps;
+
+import com.scaleunlimited.cascading.local.DirectoryTap;
+import com.scaleunlimited.cascading.local.KryoScheme;
+
+/**
+ * End-to-end index build, using synthetic documents, through both the local SolrScheme and
+ * the Hadoop SolrScheme (with the local job runner), so everything runs in this JVM on a
+ * single box. Run via main(), with optional args of number of docs, a label for the results
+ * (e.g. the version being tested), and the path to the results file.
+ *
+ * Each platform has two phases: "generate" writes the synthetic tuples to a source tap, and
+ * "index" runs the flow that reads them and writes them to the Solr sink. For each phase we
+ * report elapsed time, docs/sec, peak heap used, GC time, peak local disk used by the
+ * platform's working directory (sampled, since intermediate files come and go), and the size
+ * of the phase's output (the source data, or the final index). The working directory is also
+ * the JVM's temp dir while the platform runs, since that's where the Hadoop tasks build their
+ * indexes before uploading them.
+ *
+ * Results are printed, and appended to the results file as tab-separated lines (with a header
+ * line if the file is new), so that runs of different versions can be compared.
+ */
+public class IndexBuildBenchmark {
+    
+    private static final String SOLR_CORE_DIR = "src/test/resources/solr-home-4.1/collection1";
+    private static final String WORKING_DIR = "build/test/IndexBuildBenchmark/";
+    private static final String DEFAULT_RESULTS_FILE = WORKING_DIR + "results.tsv";
+    
+    // These all have to be (static) fields in the test core's schema.
+    private static final Fields BENCHMARK_FIELDS = new Fields("id", "name", "description", "price", "popularity",
+                    "inStock", "last_modified", "cat", "features", "image");
+    
+    private static final String[] COLUMNS = {
+        "label", "platform", "phase", "docs", "elapsed_ms", "docs_per_sec",
+        "peak_heap_bytes", "gc_ms", "peak_disk_bytes", "output_bytes"
+    };
+    
+    private static final long DISK_SAMPLE_INTERVAL = 500L;
+    
+    private enum Platform {
+        LOCAL,
+        HADOOP
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        String label = args.length > 1 ? args[1] : "dev";
+        File resultsFile = new File(args.length > 2 ? args[2] : DEFAULT_RESULTS_FILE);
+        
+        List<String> results = new ArrayList<String>();
+        String tmpDir = System.getProperty("java.io.tmpdir");
+        
+        try {
+            for (Platform platform : Platform.values()) {
+                File workingDir = new File(WORKING_DIR, platform.name().toLowerCase());
+                FileUtils.deleteDirectory(workingDir);
+                workingDir.mkdirs();
+                
+                // The temp Solr home for each task's index is in here, so it gets sampled.
+                File javaTmpDir = new File(workingDir, "java-tmp");
+                javaTmpDir.mkdirs();
+                System.setProperty("java.io.tmpdir", javaTmpDir.getAbsolutePath());
+                
+                File inDir = new File(workingDir, "in");
+                File outDir = new File(workingDir, "out");
+                
+                Tap source = makeSourceTap(platform, inDir.getAbsolutePath());
+                PhaseStats stats = new PhaseStats(workingDir);
+                generateDocs(source, makeFlowProcess(platform), numDocs);
+                results.add(stats.finish(label, platform, "generate", numDocs, inDir));
+                
+                Tap solrSink = makeSolrSink(platform, outDir.getAbsolutePath());
+                Flow<?> flow = makeFlowConnector(platform, workingDir).connect(source, solrSink, new Pipe("tuples to Solr"));
+                stats = new PhaseStats(workingDir);
+                flow.complete();
+                results.add(stats.finish(label, platform, "index", numDocs, outDir));
+            }
+        } finally {
+            System.setProperty("java.io.tmpdir", tmpDir);
+        }
+        
+        writeResults(results, resultsFile);
+    }
+    
+    private static void generateDocs(Tap source, FlowProcess flowProcess, int numDocs) throws Exception {
+        DocGenerator generator = new DocGenerator(1L);
+        TupleEntryCollector write = source.openForWrite(flowProcess);
+        
+        try {
+            for (int i = 0; i < numDocs; i++) {
+                write.add(generator.makeDoc(i));
+            }
+        } finally {
+            write.close();
+        }
+    }
+    
+    private static void writeResults(List<String> results, File resultsFile) throws Exception {
+        StringBuilder header = new StringBuilder();
+        for (String column : COLUMNS) {
+            if (header.length() > 0) {
+                header.append('\t');
+            }
+            
+            header.append(column);
+        }
+        
+        System.out.println(header);
+        for (String result : results) {
+            System.out.println(result);
+        }
+        
+        boolean newFile = !resultsFile.exists();
+        resultsFile.getAbsoluteFile().getParentFile().mkdirs();
+        PrintWriter pw = new PrintWriter(new FileWriter(resultsFile, true));
+        
+        try {
+            if (newFile) {
+                pw.println(header);
+            }
+            
+            for (String result : results) {
+                pw.println(result);
+            }
+        } finally {
+            pw.close();
+        }
+    }
+    
+    @SuppressWarnings("rawtypes")
+    private static Tap makeSourceTap(Platform platform, String path) {
+        switch (platform) {
+            case LOCAL:
+                return new FileTap(new KryoScheme(BENCHMARK_FIELDS), path, SinkMode.REPLACE);
+            case HADOOP:
+                return new Hfs(new SequenceFile(BENCHMARK_FIELDS), path, SinkMode.REPLACE);
+            default:
+                throw new IllegalArgumentException("Unknown platform: " + platform);
+        }
+    }
+    
+    @SuppressWarnings("rawtypes")
+    private static Tap makeSolrSink(Platform platform, String path) throws Exception {
+        switch (platform) {
+            case LOCAL:
+                return new DirectoryTap(new com.scaleunlimited.cascading.scheme.local.SolrScheme(BENCHMARK_FIELDS, SOLR_CORE_DIR), path, SinkMode.REPLACE);
+            case HADOOP:
+                return new Hfs(new com.scaleunlimited.cascading.scheme.hadoop.SolrScheme(BENCHMARK_FIELDS, SOLR_CORE_DIR), path, SinkMode.REPLACE);
+            default:
+                throw new IllegalArgumentException("Unknown platform: " + platform);
+        }
+    }
+    
+    private static FlowProcess<?> makeFlowProcess(Platform platform) {
+        switch (platform) {
+            case LOCAL:
+                return new LocalFlowProcess();
+            case HADOOP:
+                return new HadoopFlowProcess(HadoopUtil.createJobConf(makeHadoopProps(null), null));
+            default:
+                throw new IllegalArgumentException("Unknown platform: " + platform);
+        }
+    }
+    
+    private static FlowConnector makeFlowConnector(Platform platform, File workingDir) {
+        switch (platform) {
+            case LOCAL:
+                return new LocalFlowConnector();
+            case HADOOP:
+                return new HadoopFlowConnector(makeHadoopProps(workingDir));
+            default:
+                throw new IllegalArgumentException("Unknown platform: " + platform);
+        }
+    }
+    
+    /**
+     * @param workingDir if not null, where the local job runner should put its temp files, so
+     * that they're included in the disk usage.
+     */
+    private static Map<Object, Object> makeHadoopProps(File workingDir) {
+        Map<Object, Object> props = new HashMap<Object, Object>();
+        TupleSerializationProps.addSerialization(props, BytesSerialization.class.getName());
+        if (workingDir != null) {
+            props.put("hadoop.tmp.dir", new File(workingDir, "tmp").getAbsolutePath());
+        }
+        
+        return props;
+    }
+    
+    /**
+     * Generates documents with (roughly) realistic distributions: Zipf-distributed words,
+     * log-normal body lengths, multi-valued fields with varying numbers of values, and a
+     * binary blob in some of the documents.
+     */
+    private static class DocGenerator {
+        
+        private static final int VOCABULARY_SIZE = 20000;
+        private static final int NUM_CATEGORIES = 200;
+        
+        // Median body length is e^5 (about 150) words.
+        private static final double BODY_LENGTH_MEAN = 5.0;
+        private static final double BODY_LENGTH_SIGMA = 1.0;
+        private static final int MAX_BODY_LENGTH = 10000;
+        
+        private static final float IMAGE_PROBABILITY = 0.2f;
+        private static final int MAX_IMAGE_SIZE = 64 * 1024;
+        
+        private static final long START_TIME = 1262304000000L; // 2010-01-01
+        private static final long TIME_RANGE = 5L * 365 * 24 * 60 * 60 * 1000;
+        
+        private Random _rand;
+        private String[] _words;
+        private double[] _cumulativeWeights;
+        
+        public DocGenerator(long seed) {
+            _rand = new Random(seed);
+            
+            _words = new String[VOCABULARY_SIZE];
+            _cumulativeWeights = new double[VOCABULARY_SIZE];
+            double total = 0.0;
+            for (int i = 0; i < VOCABULARY_SIZE; i++) {
+                _words[i] = makeWord();
+                total += 1.0 / (i + 1);
+                _cumulativeWeights[i] = total;
+            }
+            
+            for (int i = 0; i < VOCABULARY_SIZE; i++) {
+                _cumulativeWeights[i] /= total;
+            }
+        }
+        
+        public Tuple makeDoc(int docIndex) {
+            Tuple result = new Tuple();
+            result.add("doc-" + docIndex);
+            result.add(makeText(2 + _rand.nextInt(7)));
+            
+            int bodyLength = (int)Math.exp(BODY_LENGTH_MEAN + (_rand.nextGaussian() * BODY_LENGTH_SIGMA));
+            result.add(makeText(Math.max(1, Math.min(MAX_BODY_LENGTH, bodyLength))));
+            
+            result.add((float)Math.round(_rand.nextFloat() * 100000.0f) / 100.0f);
+            result.add((int)(100 * _rand.nextFloat() * _rand.nextFloat()));
+            result.add(_rand.nextFloat() < 0.8f);
+            result.add(START_TIME + (long)(_rand.nextDouble() * TIME_RANGE));
+            
+            Tuple categories = new Tuple();
+            int numCategories = 1 + _rand.nextInt(5);
+            for (int i = 0; i < numCategories; i++) {
+                categories.add("category-" + _rand.nextInt(NUM_CATEGORIES));
+            }
+            
+            result.add(categories);
+            
+            Tuple features = new Tuple();
+            int numFeatures = _rand.nextInt(11);
+            for (int i = 0; i < numFeatures; i++) {
+                features.add(makeText(3 + _rand.nextInt(8)));
+            }
+            
+            result.add(features);
+            
+            if (_rand.nextFloat() < IMAGE_PROBABILITY) {
+                byte[] image = new byte[1 + _rand.nextInt(MAX_IMAGE_SIZE)];
+                _rand.nextBytes(image);
+                result.add(image);
+            } else {
+                result.add(null);
+            }
+            
+            return result;
+        }
+        
+        private String makeText(int numWords) {
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < numWords; i++) {
+                if (i > 0) {
+                    result.append(' ');
+                }
+                
+                result.append(nextWord());
+            }
+            
+            return result.toString();
+        }
+        
+        private String nextWord() {
+            double target = _rand.nextDouble();
+            int low = 0;
+            int high = _cumulativeWeights.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (_cumulativeWeights[mid] < target) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            
+            return _words[low];
+        }
+        
+        private String makeWord() {
+            int length = 2 + _rand.nextInt(6) + _rand.nextInt(6);
+            char[] result = new char[length];
+            for (int i = 0; i < length; i++) {
+                result[i] = (char)('a' + _rand.nextInt(26));
+            }
+            
+            return new String(result);
+        }
+    }
+    
+    /**
+     * Tracks resource usage from when it's created until finish() is called.
+     */
+    private static class PhaseStats {
+        
+        private File _workingDir;
+        private long _startTime;
+        private long _startGCTime;
+        private volatile long _peakDiskUsage;
+        private Thread _diskSampler;
+        
+        public PhaseStats(File workingDir) {
+            _workingDir = workingDir;
+            
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                }
+            }
+            
+            _startGCTime = getGCTime();
+            _peakDiskUsage = getDiskUsage(_workingDir);
+            
+            _diskSampler = new Thread("disk usage sampler") {
+                
+                @Override
+                public void run() {
+                    while (!isInterrupted()) {
+                        _peakDiskUsage = Math.max(_peakDiskUsage, getDiskUsage(_workingDir));
+                        
+                        try {
+                            Thread.sleep(DISK_SAMPLE_INTERVAL);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            };
+            
+            _diskSampler.setDaemon(true);
+            _diskSampler.start();
+            
+            _startTime = System.currentTimeMillis();
+        }
+        
+        /**
+         * @return the tab-separated results line for this phase.
+         */
+        public String finish(String label, Platform platform, String phase, int numDocs, File outputDir) throws InterruptedException {
+            long elapsedTime = System.currentTimeMillis() - _startTime;
+            long gcTime = getGCTime() - _startGCTime;
+            
+            // Sum of the per-pool peaks, so this can be a bit higher than the actual peak.
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+            
+            _diskSampler.interrupt();
+            _diskSampler.join();
+            long peakDisk = Math.max(_peakDiskUsage, getDiskUsage(_workingDir));
+            
+            return String.format("%s\t%s\t%s\t%d\t%d\t%.1f\t%d\t%d\t%d\t%d", label, platform.name().toLowerCase(), phase,
+                            numDocs, elapsedTime, (numDocs * 1000.0) / Math.max(1, elapsedTime), peakHeap, gcTime,
+                            peakDisk, getDiskUsage(outputDir));
+        }
+        
+        private static long getGCTime() {
+            long result = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                result += Math.max(0, gc.getCollectionTime());
+            }
+            
+            return result;
+        }
+        
+        /**
+         * Total size of the files in <dir>, which is safe to call while files are being created
+         * and deleted (unlike FileUtils.sizeOfDirectory).
+         */
+        private static long getDiskUsage(File dir) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return 0;
+            }
+            
+            long result = 0;
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    result += getDiskUsage(file);
+                } else {
+                    result += file.length();
+                }
+            }
+            
+            return result;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.solr.schema.IndexSchema;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexFinalizerTest extends Assert {
+    
+    private static final String TEST_DIR = "build/test/IndexFinalizerTest/";
+    private static final String SOLR_CORE_DIR = "src/test/resources/solr-home-4.1/collection1";
+    
+    private static final int NUM_SEGMENTS = 12;
+    private static final double SEGMENTS_PER_TIER = 50.0;
+    
+    @Before
+    public void setup() throws IOException {
+        File outputDir = new File(TEST_DIR);
+        if (outputDir.exists()) {
+            FileUtils.deleteDirectory(outputDir);
+        }
+    }
+    
+    @Test
+    public void testNoMerge() throws Exception {
+        assertEquals(NUM_SEGMENTS, finish(IndexFinalizer.none(), "testNoMerge"));
+    }
+    
+    @Test
+    public void testForceMerge() throws Exception {
+        assertEquals(1, finish(IndexFinalizer.forceMerge(1, 2), "testForceMerge"));
+    }
+    
+    @Test
+    public void testTieredMerge() throws Exception {
+        int numSegments = finish(IndexFinalizer.tieredMerge(100.0), "testTieredMerge");
+        assertTrue(numSegments >= 1);
+        assertTrue(numSegments < NUM_SEGMENTS);
+    }
+    
+    /**
+     * Build an index with NUM_SEGMENTS small segments, using a merge policy that won't merge
+     * them by itself, then run <finalizer> and return the resulting number of segments. We also
+     * check that the finalizer left the merge policy's settings the way they were.
+     */
+    private static int finish(IndexFinalizer finalizer, String testName) throws IOException {
+        IndexSchema schema = SolrSchemeUtil.getSchema(new File(SOLR_CORE_DIR));
+        
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(SEGMENTS_PER_TIER);
+        mergePolicy.setFloorSegmentMB(0.001);
+        double maxMergedSegmentMB = mergePolicy.getMaxMergedSegmentMB();
+        
+        IndexWriterConfig config = new IndexWriterConfig(schema.getDefaultLuceneMatchVersion(), schema.getIndexAnalyzer());
+        config.setMergePolicy(mergePolicy);
+        
+        Directory indexDir = FSDirectory.open(new File(TEST_DIR + testName));
+        IndexWriter indexWriter = new IndexWriter(indexDir, config);
+        
+        try {
+            for (int i = 0; i < NUM_SEGMENTS; i++) {
+                for (int j = 0; j < 10; j++) {
+                    Document doc = new Document();
+                    doc.add(new StringField("id", String.format("%d-%d", i, j), Store.YES));
+                    indexWriter.addDocument(doc);
+                }
+                
+                indexWriter.commit();
+            }
+            
+            assertEquals(NUM_SEGMENTS, IndexFinalizer.countSegments(indexDir));
+            
+            finalizer.merge(indexWriter, schema);
+            indexWriter.commit();
+            
+            assertEquals(SEGMENTS_PER_TIER, mergePolicy.getSegmentsPerTier(), 0.0);
+            assertEquals(maxMergedSegmentMB, mergePolicy.getMaxMergedSegmentMB(), 0.0);
+            return IndexFinalizer.countSegments(indexDir);
+        } finally {
+            indexWriter.close();
+            indexDir.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.File;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+
+/**
+ * Compares an index that's been sorted by price (descending) with one that's been
+ * force merged to a single segment in arrival order, for index size, build time, and the
+ * latency of top-N queries sorted by price. Run via main(), with optional args of number
+ * of docs and number of queries.
+ */
+public class IndexSortBenchmark {
+    
+    private static final String SOLR_CORE_DIR = "src/test/resources/solr-home-4.1/collection1";
+    private static final String WORKING_DIR = "build/test/IndexSortBenchmark/";
+    
+    private static final Fields BENCHMARK_FIELDS = new Fields("id", "name", "price", "popularity");
+    
+    private static final String SORT_FIELD = "price";
+    
+    private static final String[] WORDS = {
+        "solr", "lucene", "cascading", "hadoop", "index", "search", "document", "field",
+        "schema", "shard", "segment", "merge", "token", "analyzer", "query", "score"
+    };
+    
+    private static final int TOP_N = 10;
+    
+    public static void main(String[] args) throws Exception {
+        int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        
+        IndexFinalizer[] finalizers = {
+            IndexFinalizer.forceMerge(1, 0),
+            IndexFinalizer.sorted(SORT_FIELD, true)
+        };
+        
+        Sort sort = new Sort(SolrSchemeUtil.getSchema(new File(SOLR_CORE_DIR)).getField(SORT_FIELD).getSortField(true));
+        
+        for (IndexFinalizer finalizer : finalizers) {
+            File dataDir = new File(WORKING_DIR, finalizer.toString().replaceAll("[^a-z0-9]+", "-"));
+            FileUtils.deleteDirectory(dataDir);
+            
+            long buildTime = buildIndex(finalizer, dataDir, numDocs);
+            File indexDir = new File(dataDir, "index");
+            long indexSize = FileUtils.sizeOfDirectory(indexDir);
+            
+            // Warm up the searcher (and the field cache) first.
+            runQueries(indexDir, sort, Math.min(1000, numQueries));
+            long queryTime = runQueries(indexDir, sort, numQueries);
+            
+            System.out.println(String.format("%s: %d docs built in %dms, index size %d bytes, %.1f microseconds/query for top %d by %s",
+                            finalizer, numDocs, buildTime, indexSize, (queryTime / 1000.0) / numQueries, TOP_N, SORT_FIELD));
+        }
+    }
+    
+    private static long buildIndex(IndexFinalizer finalizer, File dataDir, int numDocs) throws Exception {
+        long startTime = System.currentTimeMillis();
+        
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setLuceneIndexing(true)
+            .setFinalizer(finalizer);
+        
+        SolrWriter writer = new SolrWriter(new KeepAliveHook() {
+            
+            @Override
+            public void keepAlive() {
+            }
+        }, BENCHMARK_FIELDS, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, dataDir.getAbsolutePath(), new File(SOLR_CORE_DIR), options) { };
+        
+        Random rand = new Random(1L);
+        for (int i = 0; i < numDocs; i++) {
+            writer.add(new Tuple(i, makeText(rand, 5), rand.nextFloat() * 1000.0f, rand.nextInt(100)));
+        }
+        
+        writer.cleanup();
+        return System.currentTimeMillis() - startTime;
+    }
+    
+    /**
+     * @return total nanoseconds for <numQueries> single-term queries, sorted by <sort>.
+     */
+    private static long runQueries(File indexDir, Sort sort, int numQueries) throws Exception {
+        Directory dir = FSDirectory.open(indexDir);
+        DirectoryReader reader = DirectoryReader.open(dir);
+        
+        try {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            
+            long startTime = System.nanoTime();
+            for (int i = 0; i < numQueries; i++) {
+                TermQuery query = new TermQuery(new Term("name", WORDS[i % WORDS.length]));
+                searcher.search(query, TOP_N, sort);
+            }
+            
+            return System.nanoTime() - startTime;
+        } finally {
+            reader.close();
+            dir.close();
+        }
+    }
+    
+    private static String makeText(Random rand, int numWords) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < numWords; i++) {
+            if (i > 0) {
+                result.append(' ');
+            }
+            
+            result.append(WORDS[rand.nextInt(WORDS.length)]);
+        }
+        
+        return result.toString();
+    }
+}
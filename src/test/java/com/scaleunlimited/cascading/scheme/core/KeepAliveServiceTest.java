@@ -0,0 +1,129 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KeepAliveServiceTest extends Assert {
+    
+    // Long enough that the scheduler never calls heartbeat() while the test is running.
+    private static final long HEARTBEAT_INTERVAL = 60 * 60 * 1000L;
+    
+    private static final long STALL_TIMEOUT = 500L;
+    
+    @Test
+    public void testStallDetection() throws Exception {
+        CountingHook hook = new CountingHook();
+        TestKeepAliveService service = new TestKeepAliveService(hook, STALL_TIMEOUT);
+        
+        try {
+            // Nothing while there's no work going on.
+            service.advance(100L);
+            assertEquals(0, hook._numKeepAlives);
+            
+            // Heartbeats while there's work, as long as it's making progress.
+            service.startWork();
+            for (int i = 0; i < 10; i++) {
+                service.advance(100L);
+                service.progress();
+            }
+            
+            assertEquals(10, hook._numKeepAlives);
+            assertFalse(service.isStalled());
+            
+            // Still alive right up until the timeout.
+            service.advance(STALL_TIMEOUT - 1);
+            assertEquals(11, hook._numKeepAlives);
+            assertFalse(service.isStalled());
+            
+            // Stops once we've gone too long without progress.
+            service.advance(1L);
+            assertTrue(service.isStalled());
+            service.advance(100L);
+            assertEquals(11, hook._numKeepAlives);
+            
+            // And starts again when progress resumes.
+            service.progress();
+            service.advance(100L);
+            assertFalse(service.isStalled());
+            assertEquals(12, hook._numKeepAlives);
+            
+            // Nothing once the work is done, even if it's been a long time.
+            service.endWork();
+            service.advance(STALL_TIMEOUT * 2);
+            assertEquals(12, hook._numKeepAlives);
+            assertFalse(service.isStalled());
+        } finally {
+            service.close();
+        }
+    }
+    
+    @Test
+    public void testNoStallTimeout() throws Exception {
+        CountingHook hook = new CountingHook();
+        TestKeepAliveService service = new TestKeepAliveService(hook, 0);
+        
+        try {
+            service.startWork();
+            service.advance(KeepAliveService.DEFAULT_STALL_TIMEOUT * 2);
+            assertEquals(1, hook._numKeepAlives);
+            assertFalse(service.isStalled());
+        } finally {
+            service.close();
+        }
+    }
+    
+    @Test
+    public void testNestedWork() throws Exception {
+        CountingHook hook = new CountingHook();
+        TestKeepAliveService service = new TestKeepAliveService(hook, STALL_TIMEOUT);
+        
+        try {
+            service.startWork();
+            service.startWork();
+            service.endWork();
+            
+            // Still one unit of work going on.
+            service.advance(100L);
+            assertEquals(1, hook._numKeepAlives);
+            
+            service.endWork();
+            service.advance(100L);
+            assertEquals(1, hook._numKeepAlives);
+        } finally {
+            service.close();
+        }
+    }
+    
+    private static class CountingHook extends KeepAliveHook {
+        
+        private int _numKeepAlives = 0;
+        
+        @Override
+        public void keepAlive() {
+            _numKeepAlives += 1;
+        }
+    }
+    
+    /**
+     * KeepAliveService where the test controls the clock, and calls heartbeat() itself
+     * each time the clock is advanced.
+     */
+    private static class TestKeepAliveService extends KeepAliveService {
+        
+        private long _currentTime = 0;
+        
+        public TestKeepAliveService(KeepAliveHook hook, long stallTimeout) {
+            super("TestKeepAliveService", hook, HEARTBEAT_INTERVAL, stallTimeout);
+        }
+        
+        public void advance(long millis) {
+            _currentTime += millis;
+            heartbeat();
+        }
+        
+        @Override
+        protected long currentTimeMillis() {
+            return _currentTime;
+        }
+    }
+}
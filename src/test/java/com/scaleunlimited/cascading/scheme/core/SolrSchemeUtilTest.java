@@ -0,0 +1,41 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.schema.IndexSchema;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SolrSchemeUtilTest extends Assert {
+    
+    private static final String TEST_DIR = "build/test/SolrSchemeUtilTest/";
+    private static final String SOLR_CORE_DIR = "src/test/resources/solr-home-4.1/collection1";
+    
+    @Before
+    public void setup() throws IOException {
+        File outputDir = new File(TEST_DIR);
+        if (outputDir.exists()) {
+            FileUtils.deleteDirectory(outputDir);
+        }
+    }
+    
+    @Test
+    public void testSchemaCache() throws Exception {
+        File solrCoreDir = new File(TEST_DIR + "testSchemaCache/collection1");
+        FileUtils.copyDirectory(new File(SOLR_CORE_DIR), solrCoreDir);
+        
+        IndexSchema schema = SolrSchemeUtil.getSchema(solrCoreDir);
+        assertSame(schema, SolrSchemeUtil.getSchema(solrCoreDir));
+        
+        // A change to a file in a conf subdir means the schema gets parsed again.
+        File stopwordsFile = new File(solrCoreDir, "conf/lang/stopwords_en.txt");
+        assertTrue(stopwordsFile.setLastModified(System.currentTimeMillis() + 60000));
+        
+        IndexSchema newSchema = SolrSchemeUtil.getSchema(solrCoreDir);
+        assertNotSame(schema, newSchema);
+        assertSame(newSchema, SolrSchemeUtil.getSchema(solrCoreDir));
+    }
+}
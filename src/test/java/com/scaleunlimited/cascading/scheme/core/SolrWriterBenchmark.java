@@ -0,0 +1,119 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+
+/**
+ * Simple throughput comparison of the different SolrWriter indexing modes, using
+ * the test Solr core. Run via main(), with optional args of number of docs and
+ * number of indexer threads.
+ * 
+ * SOLR_BULK_CONFIG is the same as SOLR_SERVER, but with the indexing-only version of
+ * the core's solrconfig.xml. SolrWriter logs the core startup time for each mode.
+ * 
+ * Also reports bytes allocated per document by the calling (sink) thread, which
+ * with one indexer thread includes all conversion, batching and indexing work.
+ */
+public class SolrWriterBenchmark {
+    
+    private static final String SOLR_CORE_DIR = "src/test/resources/solr-home-4.1/collection1";
+    private static final String WORKING_DIR = "build/test/SolrWriterBenchmark/";
+    
+    private static final Fields BENCHMARK_FIELDS = new Fields("id", "name", "price", "cat", "inStock", "features");
+    
+    private static final String[] WORDS = {
+        "solr", "lucene", "cascading", "hadoop", "index", "search", "document", "field",
+        "schema", "shard", "segment", "merge", "token", "analyzer", "query", "score"
+    };
+    
+    private enum Mode {
+        SOLR_SERVER,
+        SOLR_BULK_CONFIG,
+        SOLR_DIRECT,
+        LUCENE
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        
+        // Warm up the JVM first, then do the real runs.
+        for (Mode mode : Mode.values()) {
+            runBenchmark(mode, Math.min(10000, numDocs), numThreads);
+        }
+        
+        for (Mode mode : Mode.values()) {
+            long startBytes = getAllocatedBytes();
+            long deltaTime = runBenchmark(mode, numDocs, numThreads);
+            long deltaBytes = getAllocatedBytes() - startBytes;
+            
+            System.out.println(String.format("%s: %d docs in %dms (%.1f docs/sec) using %d threads, %d bytes/doc allocated by sink thread",
+                            mode, numDocs, deltaTime, (numDocs * 1000.0) / Math.max(1, deltaTime), numThreads, deltaBytes / numDocs));
+        }
+    }
+    
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        } else {
+            return 0;
+        }
+    }
+    
+    private static long runBenchmark(Mode mode, int numDocs, int numThreads) throws Exception {
+        File dataDir = new File(WORKING_DIR, mode.name());
+        FileUtils.deleteDirectory(dataDir);
+        
+        long startTime = System.currentTimeMillis();
+        
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setNumIndexerThreads(numThreads)
+            .setBulkLoadConfig(mode == Mode.SOLR_BULK_CONFIG)
+            .setDirectUpdates(mode == Mode.SOLR_DIRECT)
+            .setLuceneIndexing(mode == Mode.LUCENE);
+        
+        SolrWriter writer = new SolrWriter(new KeepAliveHook() {
+            
+            @Override
+            public void keepAlive() {
+            }
+        }, BENCHMARK_FIELDS, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, dataDir.getAbsolutePath(), new File(SOLR_CORE_DIR), options) { };
+        
+        Random rand = new Random(1L);
+        for (int i = 0; i < numDocs; i++) {
+            writer.add(makeTuple(rand, i));
+        }
+        
+        writer.cleanup();
+        return System.currentTimeMillis() - startTime;
+    }
+    
+    private static Tuple makeTuple(Random rand, int id) {
+        return new Tuple(id,
+                         makeText(rand, 5),
+                         rand.nextFloat() * 1000.0f,
+                         new Tuple(WORDS[rand.nextInt(WORDS.length)], WORDS[rand.nextInt(WORDS.length)]),
+                         rand.nextBoolean(),
+                         new Tuple(makeText(rand, 50), makeText(rand, 50)));
+    }
+    
+    private static String makeText(Random rand, int numWords) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < numWords; i++) {
+            if (i > 0) {
+                result.append(' ');
+            }
+            
+            result.append(WORDS[rand.nextInt(WORDS.length)]);
+        }
+        
+        return result.toString();
+    }
+}
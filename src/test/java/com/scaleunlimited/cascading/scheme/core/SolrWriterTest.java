@@ -0,0 +1,160 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.LiveIndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+
+public class SolrWriterTest extends Assert {
+    
+    private static final String TEST_DIR = "build/test/SolrWriterTest/";
+    private static final String SOLR_CORE_DIR = "src/test/resources/solr-home-4.1/collection1";
+    
+    private static final Fields SIMPLE_FIELDS = new Fields("id", "name", "price", "inStock");
+    
+    @Before
+    public void setup() throws IOException {
+        File outputDir = new File(TEST_DIR);
+        if (outputDir.exists()) {
+            FileUtils.deleteDirectory(outputDir);
+        }
+    }
+    
+    @Test
+    public void testReserveCommit() throws Exception {
+        // Batches of 50, so everything we add has been indexed when we commit.
+        SolrWriterOptions options = new SolrWriterOptions().setMaxDocsPerBatch(50);
+        checkReserveCommit(options, "testReserveCommit/solr");
+        checkReserveCommit(new SolrWriterOptions(options).setLuceneIndexing(true), "testReserveCommit/lucene");
+    }
+    
+    private void checkReserveCommit(SolrWriterOptions options, String testName) throws Exception {
+        SolrWriter writer = makeWriter(options, testName);
+        
+        try {
+            addDocuments(writer, 0, 100);
+            IndexCommit firstCommit = writer.reserveCommit();
+            
+            // The next commit would normally delete the files for the first one.
+            addDocuments(writer, 100, 200);
+            IndexCommit secondCommit = writer.reserveCommit();
+            assertTrue(secondCommit.getGeneration() > firstCommit.getGeneration());
+            
+            assertTrue(getFileNames(firstCommit).containsAll(firstCommit.getFileNames()));
+            assertTrue(getFileNames(secondCommit).containsAll(secondCommit.getFileNames()));
+            
+            writer.releaseCommit(firstCommit);
+            writer.releaseCommit(secondCommit);
+        } finally {
+            writer.cleanup();
+        }
+    }
+    
+    @Test
+    public void testTuning() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setRamBufferSizeMB(200)
+            .setMaxMergeThreads(3);
+        checkTuning(options, "testTuning/solr");
+        checkTuning(new SolrWriterOptions(options).setLuceneIndexing(true), "testTuning/lucene");
+    }
+    
+    private void checkTuning(SolrWriterOptions options, String testName) throws Exception {
+        SolrWriter writer = makeWriter(options, testName);
+        
+        try {
+            LiveIndexWriterConfig config = writer.getIndexWriterConfig();
+            assertEquals(200.0, config.getRAMBufferSizeMB(), 0.0);
+            
+            ConcurrentMergeScheduler mergeScheduler = (ConcurrentMergeScheduler)config.getMergeScheduler();
+            assertEquals(3, mergeScheduler.getMaxThreadCount());
+            assertTrue(mergeScheduler.getMaxMergeCount() > 3);
+        } finally {
+            writer.cleanup();
+        }
+    }
+    
+    @Test
+    public void testReusedBinaryValue() throws Exception {
+        checkReusedBinaryValue(new SolrWriterOptions(), "testReusedBinaryValue/solr");
+        checkReusedBinaryValue(new SolrWriterOptions().setLuceneIndexing(true), "testReusedBinaryValue/lucene");
+        checkReusedBinaryValue(new SolrWriterOptions().setMaxDocsPerBatch(1), "testReusedBinaryValue/unbatched");
+    }
+    
+    private void checkReusedBinaryValue(SolrWriterOptions options, String testName) throws Exception {
+        String dataDir = new File(TEST_DIR + testName).getAbsolutePath();
+        SolrWriter writer = new SolrWriter(new NullKeepAliveHook(), new Fields("id", "name", "image"), SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, dataDir, new File(SOLR_CORE_DIR), options) { };
+        
+        // Hadoop reuses the same BytesWritable for each value it deserializes.
+        BytesWritable bw = new BytesWritable();
+        bw.setCapacity(10);
+        
+        try {
+            bw.set(new byte[] {1, 2, 3}, 0, 3);
+            writer.add(new Tuple(1, "product #1", bw));
+            bw.set(new byte[] {4, 5, 6, 7}, 0, 4);
+            writer.add(new Tuple(2, "product #2", bw));
+        } finally {
+            writer.cleanup();
+        }
+        
+        Directory dir = FSDirectory.open(new File(dataDir, "index"));
+        DirectoryReader reader = DirectoryReader.open(dir);
+        
+        try {
+            assertEquals(2, reader.numDocs());
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                Document doc = reader.document(i);
+                BytesRef image = doc.getBinaryValue("image");
+                byte[] imageData = Arrays.copyOfRange(image.bytes, image.offset, image.offset + image.length);
+                if (doc.get("id").equals("1")) {
+                    assertArrayEquals(new byte[] {1, 2, 3}, imageData);
+                } else {
+                    assertArrayEquals(new byte[] {4, 5, 6, 7}, imageData);
+                }
+            }
+        } finally {
+            reader.close();
+            dir.close();
+        }
+    }
+    
+    private static List<String> getFileNames(IndexCommit commit) throws IOException {
+        return Arrays.asList(commit.getDirectory().listAll());
+    }
+    
+    private static void addDocuments(SolrWriter writer, int startId, int endId) throws IOException {
+        for (int i = startId; i < endId; i++) {
+            writer.add(new Tuple(i, "product #" + i, i * 1.0f, true));
+        }
+    }
+    
+    private static SolrWriter makeWriter(SolrWriterOptions options, String testName) throws IOException {
+        String dataDir = new File(TEST_DIR + testName).getAbsolutePath();
+        return new SolrWriter(new NullKeepAliveHook(), SIMPLE_FIELDS, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, dataDir, new File(SOLR_CORE_DIR), options) { };
+    }
+    
+    private static class NullKeepAliveHook extends KeepAliveHook {
+        
+        @Override
+        public void keepAlive() {
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.scaleunlimited.cascading.scheme.core;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UniqueKeyFilterTest extends Assert {
+    
+    @Test
+    public void testDuplicates() throws Exception {
+        UniqueKeyFilter filter = new UniqueKeyFilter();
+        
+        // Enough keys to force several resizes.
+        for (int i = 0; i < 200000; i++) {
+            assertTrue(filter.add("key-" + i));
+        }
+        
+        for (int i = 0; i < 200000; i++) {
+            assertFalse(filter.add("key-" + i));
+        }
+        
+        assertEquals(200000, filter.size());
+        assertFalse(filter.add(new StringBuilder("key-17")));
+    }
+    
+    @Test
+    public void testFingerprintCollisions() throws Exception {
+        // Every key has the same fingerprint, so we have to compare the actual keys.
+        UniqueKeyFilter filter = new UniqueKeyFilter() {
+            
+            @Override
+            protected long getFingerprint(CharSequence key) {
+                return 1L;
+            }
+        };
+        
+        for (int i = 0; i < 100; i++) {
+            assertTrue(filter.add("key-" + i));
+        }
+        
+        assertFalse(filter.add("key-0"));
+        assertFalse(filter.add("key-99"));
+        assertTrue(filter.add("key-100"));
+        assertEquals(101, filter.size());
+        assertTrue(filter.getNumCollisions() > 0);
+    }
+    
+    @Test
+    public void testLongKeys() throws Exception {
+        UniqueKeyFilter filter = new UniqueKeyFilter();
+        
+        // Keys that don't fit in the rest of a page, or in a page at all.
+        char[] chars = new char[(1 << 20) + 10];
+        Arrays.fill(chars, 'x');
+        String longKey = new String(chars);
+        
+        assertTrue(filter.add("a"));
+        assertTrue(filter.add(longKey));
+        assertTrue(filter.add(longKey.substring(1)));
+        assertTrue(filter.add("b"));
+        
+        assertFalse(filter.add("a"));
+        assertFalse(filter.add(longKey));
+        assertFalse(filter.add(longKey.substring(1)));
+        assertFalse(filter.add("b"));
+        assertTrue(filter.add(longKey + "y"));
+    }
+}
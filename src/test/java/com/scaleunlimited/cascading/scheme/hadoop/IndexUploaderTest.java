@@ -0,0 +1,195 @@
+package com.scaleunlimited.cascading.scheme.hadoop;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.scaleunlimited.cascading.scheme.core.IndexFinalizer;
+import com.scaleunlimited.cascading.scheme.core.LuceneWriter;
+
+public class IndexUploaderTest extends Assert {
+    
+    private static final String TEST_DIR = "build/test/IndexUploaderTest/";
+    private static final String SOLR_CORE_DIR = "src/test/resources/solr-home-4.1/collection1";
+    
+    @Before
+    public void setup() throws IOException {
+        File outputDir = new File(TEST_DIR);
+        if (outputDir.exists()) {
+            FileUtils.deleteDirectory(outputDir);
+        }
+    }
+    
+    @Test
+    public void testUpload() throws Exception {
+        File indexDir = makeIndex("testUpload/index");
+        IndexUploader uploader = new IndexUploader(FileSystem.getLocal(new Configuration()), new Path(TEST_DIR + "testUpload/out"), 2);
+        
+        try {
+            assertTrue(uploader.finish(indexDir) > 0);
+        } finally {
+            uploader.close();
+        }
+        
+        Directory dir = FSDirectory.open(new File(TEST_DIR + "testUpload/out"));
+        DirectoryReader reader = DirectoryReader.open(dir);
+        
+        try {
+            assertEquals(100, reader.numDocs());
+        } finally {
+            reader.close();
+            dir.close();
+        }
+    }
+    
+    @Test
+    public void testCorruptLocalFile() throws Exception {
+        File indexDir = makeIndex("testCorruptLocalFile/index");
+        corruptFile(getSegmentInfoFile(indexDir));
+        
+        IndexUploader uploader = new IndexUploader(FileSystem.getLocal(new Configuration()), new Path(TEST_DIR + "testCorruptLocalFile/out"), 2);
+        
+        try {
+            uploader.finish(indexDir);
+            fail("Should have thrown exception");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Checksum mismatch"));
+        } finally {
+            uploader.close();
+        }
+    }
+    
+    @Test
+    public void testCorruptUploadedFile() throws Exception {
+        File indexDir = makeIndex("testCorruptUploadedFile/index");
+        
+        FileSystem fs = new CorruptingFileSystem();
+        fs.initialize(URI.create("file:///"), new Configuration());
+        Path outputPath = new Path(new File(TEST_DIR + "testCorruptUploadedFile/out").getAbsolutePath());
+        
+        // By default we don't read back what we uploaded, so we don't notice.
+        IndexUploader uploader = new IndexUploader(fs, outputPath, 2);
+        try {
+            uploader.finish(indexDir);
+        } finally {
+            uploader.close();
+        }
+        
+        uploader = new IndexUploader(fs, outputPath, 2).setVerifyUploads(true);
+        try {
+            uploader.finish(indexDir);
+            fail("Should have thrown exception");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Checksum mismatch for uploaded"));
+        } finally {
+            uploader.close();
+        }
+    }
+    
+    private static File makeIndex(String testName) throws IOException {
+        File indexDir = new File(TEST_DIR + testName);
+        LuceneWriter writer = new LuceneWriter(new File(SOLR_CORE_DIR), indexDir, 1);
+        
+        try {
+            for (int i = 0; i < 100; i++) {
+                SolrInputDocument doc = new SolrInputDocument();
+                doc.addField("id", "" + i);
+                doc.addField("name", "product #" + i);
+                writer.add(doc);
+            }
+            
+            writer.finish(IndexFinalizer.forceMerge(1, 0));
+        } finally {
+            writer.close();
+        }
+        
+        return indexDir;
+    }
+    
+    private static File getSegmentInfoFile(File indexDir) {
+        for (File file : indexDir.listFiles()) {
+            if (file.getName().endsWith(".si")) {
+                return file;
+            }
+        }
+        
+        throw new IllegalStateException("No segment info file in " + indexDir);
+    }
+    
+    /**
+     * Flip the bits of one byte near the start of <file>, which isn't part of the footer.
+     */
+    private static void corruptFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        
+        try {
+            raf.seek(4);
+            int b = raf.read();
+            raf.seek(4);
+            raf.write(~b);
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Local file system that flips the bits of the first byte written to every file.
+     */
+    private static class CorruptingFileSystem extends RawLocalFileSystem {
+        
+        @Override
+        public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize, short replication, long blockSize, Progressable progress) throws IOException {
+            OutputStream out = super.create(f, permission, overwrite, bufferSize, replication, blockSize, progress);
+            return new FSDataOutputStream(new CorruptingOutputStream(out), null);
+        }
+    }
+    
+    private static class CorruptingOutputStream extends FilterOutputStream {
+        
+        private boolean _corrupted = false;
+        
+        public CorruptingOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            if (!_corrupted) {
+                _corrupted = true;
+                b = ~b;
+            }
+            
+            out.write(b);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!_corrupted && (len > 0)) {
+                write(b[off]);
+                off += 1;
+                len -= 1;
+            }
+            
+            out.write(b, off, len);
+        }
+    }
+}
@@ -1,25 +1,55 @@
 package com.scaleunlimited.cascading.scheme.hadoop;
 
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.junit.Test;
 
+import cascading.flow.Flow;
 import cascading.flow.FlowConnector;
 import cascading.flow.FlowProcess;
 import cascading.flow.hadoop.HadoopFlowConnector;
 import cascading.flow.hadoop.HadoopFlowProcess;
 import cascading.flow.hadoop.util.HadoopUtil;
+import cascading.flow.planner.PlannerException;
+import cascading.pipe.Pipe;
 import cascading.scheme.Scheme;
 import cascading.scheme.hadoop.SequenceFile;
 import cascading.tap.SinkMode;
 import cascading.tap.Tap;
+import cascading.tap.TapException;
 import cascading.tap.hadoop.Hfs;
 import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntryCollector;
 import cascading.tuple.hadoop.BytesSerialization;
 import cascading.tuple.hadoop.TupleSerializationProps;
 
 import com.scaleunlimited.cascading.scheme.core.AbstractSolrSchemeTest;
+import com.scaleunlimited.cascading.scheme.core.DedupMode;
+import com.scaleunlimited.cascading.scheme.core.IndexFinalizer;
+import com.scaleunlimited.cascading.scheme.core.IndexTuning;
+import com.scaleunlimited.cascading.scheme.core.IndexingMetrics.Metric;
+import com.scaleunlimited.cascading.scheme.core.SolrSchemeUtil;
+import com.scaleunlimited.cascading.scheme.core.SolrShardRouter;
+import com.scaleunlimited.cascading.scheme.core.SolrWriterOptions;
 
 public class SolrSchemeHadoopTest extends AbstractSolrSchemeTest {
 
@@ -59,12 +89,32 @@ public class SolrSchemeHadoopTest extends AbstractSolrSchemeTest {
         return new SolrScheme(schemeFields, solrCoreDir, maxSegments, dataDirPropertyName);
     }
     
+    @Override
+    protected Scheme<?, ?, ?, ?, ?> makeScheme(Fields schemeFields, String solrCoreDir, int maxSegments, String dataDirPropertyName, int numIndexerThreads) throws Exception {
+        return new SolrScheme(schemeFields, solrCoreDir, maxSegments, dataDirPropertyName, numIndexerThreads);
+    }
+    
+    @Override
+    protected Scheme<?, ?, ?, ?, ?> makeScheme(Fields schemeFields, String solrCoreDir, SolrWriterOptions options) throws Exception {
+        return new SolrScheme(schemeFields, solrCoreDir, options);
+    }
+    
     @Override
     protected Tap<?, ?, ?> makeSolrSink(Fields fields, String path) throws Exception {
         Scheme scheme = new SolrScheme(fields, SOLR_CORE_DIR);
         return new Hfs(scheme, path, SinkMode.REPLACE);
     }
     
+    @Override
+    protected Tap<?, ?, ?> makeSolrSink(Scheme<?, ?, ?, ?, ?> scheme, String path) throws Exception {
+        return new Hfs((Scheme)scheme, path, SinkMode.REPLACE);
+    }
+    
+    @Override
+    protected Tap<?, ?, ?> makeSolrSource(Scheme<?, ?, ?, ?, ?> scheme, String path) throws Exception {
+        return new Hfs((Scheme)scheme, path);
+    }
+    
     @Override
     protected Tap<?, ?, ?> makeSourceTap(Fields fields, String path) {
         return new Hfs(new SequenceFile(fields), path, SinkMode.REPLACE);
@@ -85,6 +135,11 @@ public class SolrSchemeHadoopTest extends AbstractSolrSchemeTest {
         super.testSchemeWrongFields();
     }
     
+    @Test
+    public void testSchemeWrongFieldType() throws Exception {
+        super.testSchemeWrongFieldType();
+    }
+    
     @Test
     public void testSchemeMissingRequiredField() throws Exception {
         super.testSchemeMissingRequiredField();
@@ -100,4 +155,516 @@ public class SolrSchemeHadoopTest extends AbstractSolrSchemeTest {
         super.testSimpleIndexing();
     }
     
+    @Test
+    public void testAsyncIndexing() throws Exception {
+        SolrScheme scheme = new SolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR);
+        scheme.setAsyncIndexing(true);
+        super.testIndexing(scheme, "testAsyncIndexing", 2345);
+    }
+    
+    @Test
+    public void testMultiThreadedIndexing() throws Exception {
+        super.testMultiThreadedIndexing();
+    }
+    
+    @Test
+    public void testDirectUpdates() throws Exception {
+        SolrScheme scheme = new SolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, 1, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, 2);
+        scheme.setDirectUpdates(true);
+        super.testIndexing(scheme, "testDirectUpdates", 3456);
+    }
+    
+    @Test
+    public void testLuceneIndexing() throws Exception {
+        SolrScheme scheme = new SolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, 1, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, 2);
+        scheme.setLuceneIndexing(true);
+        super.testIndexing(scheme, "testLuceneIndexing", 4567);
+        
+        // Make sure the result is a valid index for our Solr core.
+        checkSolrQuery(getTestDir() + "testLuceneIndexing/out/part-00000", "name:product", 4567);
+        checkSolrQuery(getTestDir() + "testLuceneIndexing/out/part-00000", "id:17", 1);
+    }
+    
+    @Test
+    public void testBatchLimits() throws Exception {
+        super.testBatchLimits();
+    }
+    
+    @Test
+    public void testAdaptiveBatching() throws Exception {
+        super.testAdaptiveBatching();
+    }
+    
+    @Test
+    public void testBulkLoadConfig() throws Exception {
+        super.testBulkLoadConfig();
+    }
+    
+    @Test
+    public void testFinalizers() throws Exception {
+        super.testFinalizers();
+    }
+    
+    @Test
+    public void testSortedIndex() throws Exception {
+        super.testSortedIndex();
+    }
+    
+    @Test
+    public void testSolrSource() throws Exception {
+        super.testSolrSource();
+    }
+    
+    @Test
+    public void testSolrSourceDocValues() throws Exception {
+        super.testSolrSourceDocValues();
+    }
+    
+    @Test
+    public void testIndexingMetrics() throws Exception {
+        super.testIndexingMetrics();
+    }
+    
+    @Test
+    public void testDedupDrop() throws Exception {
+        super.testDedupDrop();
+    }
+    
+    @Test
+    public void testDedupReplace() throws Exception {
+        super.testDedupReplace();
+    }
+    
+    @Test
+    public void testSolrSourceSplits() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setFinalizer(IndexFinalizer.forceMerge(1, 0));
+        testIndexing(makeScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options), "testSolrSourceSplits", 1000);
+        
+        // A single segment with 1000 docs should get split up into doc ranges.
+        JobConf conf = new JobConf();
+        FileInputFormat.setInputPaths(conf, new Path(getTestDir() + "testSolrSourceSplits/out"));
+        conf.setInt(SolrInputFormat.MAX_DOCS_PER_SPLIT_KEY, 300);
+        InputSplit[] splits = new SolrInputFormat().getSplits(conf, 1);
+        assertEquals(4, splits.length);
+        
+        int numDocs = 0;
+        for (InputSplit split : splits) {
+            SolrInputFormat.SolrInputSplit solrSplit = (SolrInputFormat.SolrInputSplit)split;
+            assertEquals(numDocs, solrSplit.getStartDoc());
+            numDocs = solrSplit.getEndDoc();
+            
+            // The local file system says everything is on localhost.
+            assertEquals("localhost", solrSplit.getLocations()[0]);
+        }
+        
+        assertEquals(1000, numDocs);
+    }
+    
+    @Test
+    public void testSubIndexes() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setMaxSegments(2)
+            .setNumSubIndexes(3);
+        SolrScheme scheme = new SolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options);
+        Flow<?> flow = super.testIndexing(scheme, "testSubIndexes", 3456);
+        assertEquals(3, getCounter(flow.getFlowStats(), Metric.SUB_INDEXES_MERGED));
+        
+        // Each document should show up exactly once in the merged index.
+        checkSolrQuery(getTestDir() + "testSubIndexes/out/part-00000", "name:product", 3456);
+        checkSolrQuery(getTestDir() + "testSubIndexes/out/part-00000", "id:17", 1);
+        
+        // And the sub-indexes get merged down to maxSegments.
+        Directory dir = FSDirectory.open(new File(getTestDir() + "testSubIndexes/out/part-00000/index"));
+        try {
+            SegmentInfos segmentInfos = new SegmentInfos();
+            segmentInfos.read(dir);
+            assertTrue(segmentInfos.size() <= 2);
+        } finally {
+            dir.close();
+        }
+    }
+    
+    @Test
+    public void testDedupSubIndexes() throws Exception {
+        // Each sub-index only sees its own documents, so all documents with the same
+        // key have to wind up in the same sub-index.
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setMaxDocsPerBatch(100)
+            .setNumSubIndexes(3);
+        
+        options.setDedupMode(DedupMode.DROP);
+        super.testIndexing(new SolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options), "testDedupSubIndexes/drop", 1000, 400);
+        assertEquals("product #5", getIndexedName("testDedupSubIndexes/drop", 5));
+        
+        options.setDedupMode(DedupMode.REPLACE);
+        super.testIndexing(new SolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options), "testDedupSubIndexes/replace", 1000, 400);
+        assertEquals("product #805", getIndexedName("testDedupSubIndexes/replace", 5));
+    }
+    
+    @Test
+    public void testStreamingUpload() throws Exception {
+        // Lots of small segments and frequent commits, with no final merge, so that
+        // most segments get uploaded while we're still indexing.
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setMaxSegments(100)
+            .setMaxDocsPerBatch(50)
+            .setStreamingUploadInterval(50);
+        SolrScheme scheme = new SolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options);
+        Flow<?> flow = super.testIndexing(scheme, "testStreamingUpload", 5678);
+        
+        // Some of the index should have been uploaded before we were done indexing.
+        assertTrue(getCounter(flow.getFlowStats(), Metric.STREAMED_BYTES) > 0);
+        
+        checkSolrQuery(getTestDir() + "testStreamingUpload/out/part-00000", "name:product", 5678);
+        checkSolrQuery(getTestDir() + "testStreamingUpload/out/part-00000", "id:17", 1);
+    }
+    
+    @Test
+    public void testHdfsDirectory() throws Exception {
+        // The test output is on the local file system, which we access via Hadoop.
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setMaxSegments(2)
+            .setHdfsDirectory(true);
+        SolrScheme scheme = new SolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options);
+        super.testIndexing(scheme, "testHdfsDirectory", 2345);
+        
+        checkSolrQuery(getTestDir() + "testHdfsDirectory/out/part-00000", "name:product", 2345);
+        checkSolrQuery(getTestDir() + "testHdfsDirectory/out/part-00000", "id:17", 1);
+        
+        // Nothing but the index should wind up in the task output directory.
+        String[] outputFiles = new File(getTestDir() + "testHdfsDirectory/out/part-00000").list();
+        assertEquals(1, outputFiles.length);
+        assertEquals("index", outputFiles[0]);
+    }
+    
+    @Test
+    public void testHdfsDirectoryWithLuceneIndexing() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setMaxSegments(2)
+            .setLuceneIndexing(true)
+            .setHdfsDirectory(true);
+        SolrScheme scheme = new SolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options);
+        super.testIndexing(scheme, "testHdfsDirectoryWithLuceneIndexing", 2345);
+        
+        checkSolrQuery(getTestDir() + "testHdfsDirectoryWithLuceneIndexing/out/part-00000", "name:product", 2345);
+        checkSolrQuery(getTestDir() + "testHdfsDirectoryWithLuceneIndexing/out/part-00000", "id:17", 1);
+    }
+    
+    @Test
+    public void testHdfsDirectoryUsesJobConf() throws Exception {
+        // The file system for this scheme is only registered in the job's conf, so
+        // the writer fails if it uses a default Configuration anywhere.
+        JobConf conf = new JobConf();
+        conf.set("fs." + TestFileSystem.SCHEME + ".impl", TestFileSystem.class.getName());
+        conf.setBoolean("fs." + TestFileSystem.SCHEME + ".impl.disable.cache", true);
+        conf.set("mapreduce.task.attempt.id", "attempt_201410171200_0001_r_000000_0");
+        String outDir = new File(TEST_DIR + "testHdfsDirectoryUsesJobConf/out").getAbsolutePath();
+        FileOutputFormat.setOutputPath(conf, new Path(TestFileSystem.SCHEME + "://" + outDir));
+        
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setLuceneIndexing(true)
+            .setHdfsDirectory(true);
+        SolrScheme scheme = new SolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options);
+        scheme.sinkConfInit(new HadoopFlowProcess(conf), null, conf);
+        
+        RecordWriter<Tuple, Tuple> writer = new SolrOutputFormat().getRecordWriter(null, conf, "part-00000", Reporter.NULL);
+        for (int i = 0; i < 100; i++) {
+            writer.write(Tuple.NULL, new Tuple(i, "product #" + i, i * 1.0f, true));
+        }
+        
+        writer.close(Reporter.NULL);
+        
+        Path indexPath = new Path(FileOutputFormat.getTaskOutputPath(conf, "part-00000"), "index");
+        assertEquals(TestFileSystem.SCHEME, indexPath.toUri().getScheme());
+        assertEquals(100, getNumDocs(indexPath.toUri().getPath()));
+    }
+    
+    @Test
+    public void testAutoTune() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setNumIndexerThreads(2)
+            .setAutoTune(true);
+        SolrScheme scheme = new SolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, options);
+        super.testIndexing(scheme, "testAutoTune", 1234);
+        
+        // 4GB heap and 8 cores, so a 1GB RAM buffer and 6 merge threads, limited to 4.
+        options = new SolrWriterOptions().setNumIndexerThreads(2);
+        IndexTuning.autoTune(options, 4096 * 1024 * 1024L, 8);
+        assertEquals(1024.0, options.getRamBufferSizeMB(), 0.0);
+        assertEquals(4, options.getMaxMergeThreads());
+        
+        // Split across two sub-indexes, with a small heap.
+        options = new SolrWriterOptions().setNumSubIndexes(2);
+        IndexTuning.autoTune(options, 512 * 1024 * 1024L, 8);
+        assertEquals(64.0, options.getRamBufferSizeMB(), 0.0);
+        assertEquals(1, options.getMaxMergeThreads());
+        
+        // Explicit settings are left alone.
+        options = new SolrWriterOptions().setRamBufferSizeMB(100).setMaxMergeThreads(3);
+        IndexTuning.autoTune(options, 4096 * 1024 * 1024L, 8);
+        assertEquals(100.0, options.getRamBufferSizeMB(), 0.0);
+        assertEquals(3, options.getMaxMergeThreads());
+    }
+    
+    @Test
+    public void testShardedSink() throws Exception {
+        final String in = TEST_DIR + "testShardedSink/in";
+        final String out = TEST_DIR + "testShardedSink/out";
+        final int numDocs = 3456;
+        final int numShards = 3;
+        
+        SolrShardRouter router = new SolrShardRouter(numShards);
+        int[] shardCounts = new int[numShards];
+        
+        Tap source = makeSourceTap(SIMPLE_FIELDS, in);
+        TupleEntryCollector write = source.openForWrite(makeFlowProcess());
+        for (int i = 0; i < numDocs; i++) {
+            write.add(new Tuple(i, "product #" + i, i * 1.0f, true));
+            shardCounts[router.getShard(i)] += 1;
+        }
+        write.close();
+        
+        ShardedSolrScheme scheme = new ShardedSolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, "id", numShards);
+        Pipe writePipe = scheme.makeShardPipe(new Pipe("tuples to Solr"));
+        Tap solrSink = makeSolrSink(scheme, out);
+        Flow flow = makeFlowConnector().connect(source, solrSink, writePipe);
+        flow.complete();
+        
+        // Each shard's index has exactly the documents that Solr would route to it.
+        for (int shard = 0; shard < numShards; shard++) {
+            assertTrue(shardCounts[shard] > 0);
+            assertEquals(shardCounts[shard], getNumDocs(out + "/" + SolrShardRouter.getShardName(shard) + "/index"));
+        }
+        
+        checkSolrQuery(out + "/" + SolrShardRouter.getShardName(router.getShard(17)), "id:17", 1);
+    }
+    
+    @Test(expected = TapException.class)
+    public void testShardedSinkChecksRoutingField() throws Exception {
+        new ShardedSolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, "bogus", 2);
+    }
+    
+    @Test
+    public void testShardedSinkMultipleReducers() throws Exception {
+        final int numShards = 3;
+        
+        // The local runner only has one reducer, so set up what a reduce task on a cluster
+        // would see. The GroupBy hashes shards to reducers, so one task can get several.
+        JobConf conf = new JobConf();
+        conf.setNumReduceTasks(numShards);
+        conf.set("mapreduce.task.attempt.id", "attempt_201410171200_0001_r_000000_0");
+        FileOutputFormat.setOutputPath(conf, new Path(new File(TEST_DIR + "testShardedSinkMultipleReducers/out").getAbsolutePath()));
+        
+        ShardedSolrScheme scheme = new ShardedSolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, "id", numShards);
+        scheme.sinkConfInit(new HadoopFlowProcess(conf), null, conf);
+        
+        SolrShardRouter router = new SolrShardRouter(numShards);
+        int[] shardCounts = new int[numShards];
+        RecordWriter<Tuple, Tuple> writer = new SolrOutputFormat().getRecordWriter(null, conf, "part-00000", Reporter.NULL);
+        for (int i = 0; i < 200; i++) {
+            int shard = router.getShard(i);
+            if (shard < 2) {
+                writer.write(Tuple.NULL, new Tuple(i, "product #" + i, i * 1.0f, true, shard));
+                shardCounts[shard] += 1;
+            }
+        }
+        
+        writer.close(Reporter.NULL);
+        
+        // Both shards get built by this task, and the third one doesn't show up.
+        for (int shard = 0; shard < numShards; shard++) {
+            Path shardPath = FileOutputFormat.getTaskOutputPath(conf, SolrShardRouter.getShardName(shard));
+            if (shard < 2) {
+                assertTrue(shardCounts[shard] > 0);
+                assertEquals(shardCounts[shard], getNumDocs(shardPath.toUri().getPath() + "/index"));
+            } else {
+                assertFalse(new File(shardPath.toUri().getPath()).exists());
+            }
+        }
+    }
+    
+    @Test(expected = PlannerException.class)
+    public void testShardedSinkNeedsShardPipe() throws Exception {
+        ShardedSolrScheme scheme = new ShardedSolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, "id", 2);
+        Tap source = makeSourceTap(SIMPLE_FIELDS, TEST_DIR + "testShardedSinkNeedsShardPipe/in");
+        
+        // Without the SolrShardPipe's GroupBy, there's no shard field for the sink.
+        makeFlowConnector().connect(source, makeSolrSink(scheme, TEST_DIR + "testShardedSinkNeedsShardPipe/out"), new Pipe("tuples to Solr"));
+    }
+    
+    @Test
+    public void testIndexMerger() throws Exception {
+        final String in = TEST_DIR + "testIndexMerger/in";
+        final String indexes = TEST_DIR + "testIndexMerger/indexes";
+        final int numDocs = 2345;
+        
+        // Build 5 small indexes, to be merged into 2 shards.
+        Tap source = makeSourceTap(SIMPLE_FIELDS, in);
+        TupleEntryCollector write = source.openForWrite(makeFlowProcess());
+        for (int i = 0; i < numDocs; i++) {
+            write.add(new Tuple(i, "product #" + i, i * 1.0f, true));
+        }
+        write.close();
+        
+        ShardedSolrScheme scheme = new ShardedSolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, "id", 5);
+        Flow flow = makeFlowConnector().connect(source, makeSolrSink(scheme, indexes), scheme.makeShardPipe(new Pipe("tuples to Solr")));
+        flow.complete();
+        
+        // Copy segments, and leave them alone.
+        SolrIndexMerger merger = new SolrIndexMerger(new File(SOLR_CORE_DIR), 2)
+            .setMinIndexSizeMB(0.0);
+        checkMergedShards(merger, indexes, TEST_DIR + "testIndexMerger/copied", numDocs);
+        
+        // Coalesce the (tiny) indexes, and then force merge them.
+        merger = new SolrIndexMerger(new File(SOLR_CORE_DIR), 2)
+            .setFinalizer(IndexFinalizer.forceMerge(1, 0));
+        checkMergedShards(merger, indexes, TEST_DIR + "testIndexMerger/coalesced", numDocs);
+        
+        for (int shard = 0; shard < 2; shard++) {
+            assertEquals(1, getNumSegments(TEST_DIR + "testIndexMerger/coalesced/" + SolrShardRouter.getShardName(shard) + "/index"));
+        }
+        
+        checkSolrQuery(TEST_DIR + "testIndexMerger/coalesced/shard1", "*:*", getNumDocs(TEST_DIR + "testIndexMerger/coalesced/shard1/index"));
+    }
+    
+    private void checkMergedShards(SolrIndexMerger merger, String in, String out, int numDocs) throws Exception {
+        Flow<?> flow = merger.makeFlow(new JobConf(), in, out);
+        assertFalse(((JobConf)flow.getConfig()).getReduceSpeculativeExecution());
+        flow.complete();
+        
+        int totalDocs = 0;
+        for (int shard = 0; shard < merger.getNumShards(); shard++) {
+            int shardDocs = getNumDocs(out + "/" + SolrShardRouter.getShardName(shard) + "/index");
+            assertTrue(shardDocs > 0);
+            totalDocs += shardDocs;
+        }
+        
+        assertEquals(numDocs, totalDocs);
+    }
+    
+    @Test
+    public void testIndexMergerBalancesShards() throws Exception {
+        List<SolrIndexMerger.IndexInfo> indexes = new ArrayList<SolrIndexMerger.IndexInfo>();
+        indexes.add(new SolrIndexMerger.IndexInfo("part-00000", 10));
+        indexes.add(new SolrIndexMerger.IndexInfo("part-00001", 100));
+        indexes.add(new SolrIndexMerger.IndexInfo("part-00002", 50));
+        indexes.add(new SolrIndexMerger.IndexInfo("part-00003", 40));
+        indexes.add(new SolrIndexMerger.IndexInfo("part-00004", 20));
+        
+        List<List<SolrIndexMerger.IndexInfo>> shards = SolrIndexMerger.assignShards(indexes, 2);
+        assertEquals(2, shards.size());
+        
+        // Biggest first: 100 | 50, 40, 20 | and then 10 goes with the 100, so 110 in each.
+        assertEquals(2, shards.get(0).size());
+        assertEquals("part-00000", shards.get(0).get(0).getPath());
+        assertEquals("part-00001", shards.get(0).get(1).getPath());
+        assertEquals(3, shards.get(1).size());
+        assertEquals("part-00002", shards.get(1).get(0).getPath());
+    }
+    
+    @Test
+    public void testSolrCoreArchive() throws Exception {
+        JobConf conf = new JobConf();
+        Path archivePath = SolrCoreArchive.addToCache(conf, new File(SOLR_CORE_DIR));
+        assertEquals("collection1.zip", archivePath.getName());
+        assertEquals(1, DistributedCache.getCacheArchives(conf).length);
+        
+        // Nothing has been localized by Hadoop, so we have to make our own copy.
+        assertNull(SolrCoreArchive.findLocalCoreDir(conf, archivePath));
+        File localCoreDir = SolrCoreArchive.copyToLocal(conf, archivePath);
+        
+        try {
+            assertEquals("collection1", localCoreDir.getName());
+            assertTrue(new File(localCoreDir, "conf/solrconfig.xml").exists());
+            assertTrue(new File(localCoreDir, "conf/schema.xml").exists());
+            
+            // Once Hadoop has unpacked the archive, tasks use that copy.
+            DistributedCache.setLocalArchives(conf, localCoreDir.getParentFile().getAbsolutePath());
+            File cachedCoreDir = SolrCoreArchive.findLocalCoreDir(conf, archivePath);
+            assertNotNull(cachedCoreDir);
+            assertEquals(localCoreDir.getCanonicalFile(), cachedCoreDir.getCanonicalFile());
+        } finally {
+            FileUtils.deleteDirectory(localCoreDir.getParentFile());
+        }
+    }
+    
+    @Test
+    public void testWriterOptionsInConf() throws Exception {
+        SolrWriterOptions options = new SolrWriterOptions()
+            .setMaxSegments(3)
+            .setNumIndexerThreads(2)
+            .setMaxDocsPerBatch(50)
+            .setMaxBytesPerBatch(12345L)
+            .setAdaptiveBatching(true)
+            .setNumSubIndexes(4)
+            .setStreamingUploadInterval(1000L)
+            .setNumUploadThreads(8)
+            .setVerifyUploads(true)
+            .setHdfsDirectory(true)
+            .setBulkLoadConfig(true)
+            .setAutoTune(true)
+            .setRamBufferSizeMB(256)
+            .setMaxMergeThreads(3)
+            .setStallTimeout(60000L)
+            .setDedupMode(DedupMode.REPLACE)
+            .setFinalizer(IndexFinalizer.tieredMerge(500.0));
+        
+        JobConf conf = new JobConf();
+        SolrOutputFormat.setWriterOptions(conf, options);
+        SolrWriterOptions confOptions = SolrOutputFormat.getWriterOptions(conf);
+        
+        assertEquals(3, confOptions.getMaxSegments());
+        assertEquals(2, confOptions.getNumIndexerThreads());
+        assertTrue(confOptions.isAsyncIndexing());
+        assertEquals(50, confOptions.getMaxDocsPerBatch());
+        assertEquals(12345L, confOptions.getMaxBytesPerBatch());
+        assertTrue(confOptions.isAdaptiveBatching());
+        assertEquals(4, confOptions.getNumSubIndexes());
+        assertEquals(1000L, confOptions.getStreamingUploadInterval());
+        assertEquals(8, confOptions.getNumUploadThreads());
+        assertTrue(confOptions.isVerifyUploads());
+        assertTrue(confOptions.isHdfsDirectory());
+        assertTrue(confOptions.isBulkLoadConfig());
+        assertTrue(confOptions.isAutoTune());
+        assertEquals(256.0, confOptions.getRamBufferSizeMB(), 0.0);
+        assertEquals(3, confOptions.getMaxMergeThreads());
+        assertEquals(60000L, confOptions.getStallTimeout());
+        assertEquals(DedupMode.REPLACE, confOptions.getDedupMode());
+        assertEquals(IndexFinalizer.tieredMerge(500.0).toString(), confOptions.getFinalizer().toString());
+        
+        // And we get the defaults for anything that's not set.
+        confOptions = SolrOutputFormat.getWriterOptions(new JobConf());
+        assertEquals(SolrOutputFormat.DEFAULT_MAX_SEGMENTS, confOptions.getMaxSegments());
+        assertEquals(SolrOutputFormat.DEFAULT_MAX_DOCS_PER_BATCH, confOptions.getMaxDocsPerBatch());
+        assertEquals(SolrOutputFormat.DEFAULT_MAX_BYTES_PER_BATCH, confOptions.getMaxBytesPerBatch());
+        assertFalse(confOptions.isAdaptiveBatching());
+        assertFalse(confOptions.isVerifyUploads());
+        assertFalse(confOptions.isHdfsDirectory());
+        assertFalse(confOptions.isBulkLoadConfig());
+        
+        // Options with no max segments set shouldn't override the Hadoop default.
+        conf = new JobConf();
+        SolrOutputFormat.setWriterOptions(conf, new SolrWriterOptions());
+        assertEquals(SolrOutputFormat.DEFAULT_MAX_SEGMENTS, SolrOutputFormat.getWriterOptions(conf).getMaxSegments());
+        assertFalse(confOptions.hasFinalizer());
+        assertEquals(SolrOutputFormat.DEFAULT_STALL_TIMEOUT, confOptions.getStallTimeout());
+        assertEquals(SolrOutputFormat.DEFAULT_DEDUP_MODE, confOptions.getDedupMode());
+        assertFalse(confOptions.isAutoTune());
+        assertEquals(0.0, confOptions.getRamBufferSizeMB(), 0.0);
+    }
+    
+    /**
+     * Local file system that's registered under its own scheme, and so can only be
+     * found via a Configuration that's been told about it.
+     */
+    public static class TestFileSystem extends RawLocalFileSystem {
+        
+        public static final String SCHEME = "solrtestfs";
+        
+        @Override
+        public URI getUri() {
+            return URI.create(SCHEME + ":///");
+        }
+    }
 }
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.solr.schema.IndexSchema;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -20,6 +21,8 @@ import cascading.tuple.Fields;
 import com.scaleunlimited.cascading.local.DirectoryTap;
 import com.scaleunlimited.cascading.local.KryoScheme;
 import com.scaleunlimited.cascading.scheme.core.AbstractSolrSchemeTest;
+import com.scaleunlimited.cascading.scheme.core.SolrSchemeUtil;
+import com.scaleunlimited.cascading.scheme.core.SolrWriterOptions;
 
 public class SolrSchemeLocalTest extends AbstractSolrSchemeTest {
 
@@ -45,6 +48,16 @@ public class SolrSchemeLocalTest extends AbstractSolrSchemeTest {
         return new DirectoryTap(new SolrScheme(fields, SOLR_CORE_DIR), path);
     }
     
+    @Override
+    protected Tap<?, ?, ?> makeSolrSink(Scheme<?, ?, ?, ?, ?> scheme, String path) throws Exception {
+        return new DirectoryTap((Scheme)scheme, path);
+    }
+    
+    @Override
+    protected Tap<?, ?, ?> makeSolrSource(Scheme<?, ?, ?, ?, ?> scheme, String path) throws Exception {
+        return new SolrIndexTap((SolrScheme)scheme, path);
+    }
+    
     @Override
     protected FlowConnector makeFlowConnector() {
         return new LocalFlowConnector();
@@ -65,6 +78,16 @@ public class SolrSchemeLocalTest extends AbstractSolrSchemeTest {
         return new SolrScheme(schemeFields, solrCoreDir, maxSegments, dataDirPropertyName);
     }
     
+    @Override
+    protected Scheme<?, ?, ?, ?, ?> makeScheme(Fields schemeFields, String solrCoreDir, int maxSegments, String dataDirPropertyName, int numIndexerThreads) throws Exception {
+        return new SolrScheme(schemeFields, solrCoreDir, maxSegments, dataDirPropertyName, numIndexerThreads);
+    }
+    
+    @Override
+    protected Scheme<?, ?, ?, ?, ?> makeScheme(Fields schemeFields, String solrCoreDir, SolrWriterOptions options) throws Exception {
+        return new SolrScheme(schemeFields, solrCoreDir, options);
+    }
+    
     @Test
     public void testSchemeChecksMissingConf() throws Exception {
         super.testSchemeChecksMissingConf();
@@ -80,11 +103,34 @@ public class SolrSchemeLocalTest extends AbstractSolrSchemeTest {
         super.testSchemeWrongFields();
     }
     
+    @Test
+    public void testSchemeWrongFieldType() throws Exception {
+        super.testSchemeWrongFieldType();
+    }
+    
     @Test
     public void testSchemeMissingRequiredField() throws Exception {
         super.testSchemeMissingRequiredField();
     }
     
+    @Test
+    public void testSchemaIsCached() throws Exception {
+        File solrCoreDir = new File(SOLR_CORE_DIR);
+        assertSame(SolrSchemeUtil.getSchema(solrCoreDir), SolrSchemeUtil.getSchema(solrCoreDir));
+        
+        // Touching a conf file means we have to parse it again.
+        File schemaFile = new File(solrCoreDir, "conf/schema.xml");
+        long lastModified = schemaFile.lastModified();
+        IndexSchema schema = SolrSchemeUtil.getSchema(solrCoreDir);
+        
+        try {
+            assertTrue(schemaFile.setLastModified(lastModified + 2000));
+            assertNotSame(schema, SolrSchemeUtil.getSchema(solrCoreDir));
+        } finally {
+            schemaFile.setLastModified(lastModified);
+        }
+    }
+    
     @Test
     public void testIndexSink() throws Exception {
         super.testIndexSink();
@@ -95,4 +141,84 @@ public class SolrSchemeLocalTest extends AbstractSolrSchemeTest {
         super.testSimpleIndexing();
     }
     
+    @Test
+    public void testAsyncIndexing() throws Exception {
+        SolrScheme scheme = new SolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR);
+        scheme.setAsyncIndexing(true);
+        super.testIndexing(scheme, "testAsyncIndexing", 2345);
+    }
+    
+    @Test
+    public void testMultiThreadedIndexing() throws Exception {
+        super.testMultiThreadedIndexing();
+    }
+    
+    @Test
+    public void testDirectUpdates() throws Exception {
+        SolrScheme scheme = new SolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, 1, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, 2);
+        scheme.setDirectUpdates(true);
+        super.testIndexing(scheme, "testDirectUpdates", 3456);
+    }
+    
+    @Test
+    public void testLuceneIndexing() throws Exception {
+        SolrScheme scheme = new SolrScheme(SIMPLE_FIELDS, SOLR_CORE_DIR, 1, SolrSchemeUtil.DEFAULT_DATA_DIR_PROPERTY_NAME, 2);
+        scheme.setLuceneIndexing(true);
+        super.testIndexing(scheme, "testLuceneIndexing", 4567);
+        
+        // Make sure the result is a valid index for our Solr core.
+        checkSolrQuery(getTestDir() + "testLuceneIndexing/out/part-00000", "name:product", 4567);
+        checkSolrQuery(getTestDir() + "testLuceneIndexing/out/part-00000", "id:17", 1);
+    }
+    
+    @Test
+    public void testBatchLimits() throws Exception {
+        super.testBatchLimits();
+    }
+    
+    @Test
+    public void testAdaptiveBatching() throws Exception {
+        super.testAdaptiveBatching();
+    }
+    
+    @Test
+    public void testBulkLoadConfig() throws Exception {
+        super.testBulkLoadConfig();
+    }
+    
+    @Test
+    public void testFinalizers() throws Exception {
+        super.testFinalizers();
+    }
+    
+    @Test
+    public void testSortedIndex() throws Exception {
+        super.testSortedIndex();
+    }
+    
+    @Test
+    public void testSolrSource() throws Exception {
+        super.testSolrSource();
+    }
+    
+    @Test
+    public void testSolrSourceDocValues() throws Exception {
+        super.testSolrSourceDocValues();
+    }
+    
+    @Test
+    public void testIndexingMetrics() throws Exception {
+        super.testIndexingMetrics();
+    }
+    
+    @Test
+    public void testDedupDrop() throws Exception {
+        super.testDedupDrop();
+    }
+    
+    @Test
+    public void testDedupReplace() throws Exception {
+        super.testDedupReplace();
+    }
+    
 }